@@ -25,7 +25,6 @@ import com.google.common.collect.Lists;
 import com.sun.istack.internal.Nullable;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
-import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
 import org.apache.mahout.knn.search.UpdatableSearcher;
 import org.apache.mahout.math.Centroid;
 import org.apache.mahout.math.Vector;
@@ -66,6 +65,10 @@ public class BallKMeans implements Iterable<Centroid> {
   // greater, we consider it an outlier and we don't use it.
   private double trimFraction;
 
+  // A squared distance computed from a dot product (see squaredDistance) is only used if it is at
+  // least this many times larger than its worst round-off.
+  private static final double MIN_ROUNDOFF_RATIO = 1.0e6;
+
   public BallKMeans(UpdatableSearcher searcher, int numClusters, int maxNumIterations) {
     this(searcher, numClusters, maxNumIterations, 0.9);
   }
@@ -120,10 +123,16 @@ public class BallKMeans implements Iterable<Centroid> {
     }
     // Given the centroid, we can compute \Delta_1^2(X), the total squared distance for the datapoints
     // this accelerates seed selection.
+    // The squared distances are computed from dot products and the squared norms of the
+    // datapoints, which are computed only once.
+    double[] squaredNorms = new double[datapoints.size()];
+    for (int i = 0; i < datapoints.size(); ++i) {
+      squaredNorms[i] = datapoints.get(i).getLengthSquared();
+    }
+    double centerNorm = center.getLengthSquared();
     double radius = 0;
-    DistanceMeasure l2 = new SquaredEuclideanDistanceMeasure();
-    for (WeightedVector row : datapoints) {
-      radius += l2.distance(row, center);
+    for (int i = 0; i < datapoints.size(); ++i) {
+      radius += squaredDistance(datapoints.get(i), squaredNorms[i], center, centerNorm);
     }
 
     // Find the first seed c_1 (and conceptually the second, c_2) as might be done in the 2-means clustering so that
@@ -146,17 +155,19 @@ public class BallKMeans implements Iterable<Centroid> {
     Multinomial<Integer> seedSelector = new Multinomial<Integer>();
     for (int i = 0; i < datapoints.size(); ++i) {
       double selectionProbability =
-          radius + datapoints.size() * l2.distance(datapoints.get(i), center);
+          radius + datapoints.size()
+              * squaredDistance(datapoints.get(i), squaredNorms[i], center, centerNorm);
       seedSelector.add(i, selectionProbability);
     }
 
     Centroid c_1 = new Centroid((WeightedVector)datapoints.get(seedSelector.sample()).clone());
     c_1.setIndex(0);
+    double seedNorm = c_1.getLengthSquared();
     // Construct a set of weighted things which can be used for random selection.  Initial weights are
     // set to the squared distance from c_1
     for (int i = 0; i < datapoints.size(); ++i) {
       WeightedVector row = datapoints.get(i);
-      final double w = l2.distance(c_1, row) * row.getWeight();
+      final double w = squaredDistance(c_1, seedNorm, row, squaredNorms[i]) * row.getWeight();
       seedSelector.set(i, w);
     }
 
@@ -179,7 +190,8 @@ public class BallKMeans implements Iterable<Centroid> {
       // Re-weight everything according to the minimum distance to a seed.
       for (int currSeedIndex : seedSelector) {
         WeightedVector curr = datapoints.get(currSeedIndex);
-        double newWeight = nextSeed.getWeight() * l2.distance(nextSeed, curr);
+        double newWeight = nextSeed.getWeight()
+            * squaredDistance(nextSeed, squaredNorms[seedIndex], curr, squaredNorms[currSeedIndex]);
         if (newWeight < seedSelector.getWeight(currSeedIndex)) {
           seedSelector.set(currSeedIndex, newWeight);
         }
@@ -187,6 +199,23 @@ public class BallKMeans implements Iterable<Centroid> {
     }
   }
 
+  /**
+   * Computes the squared Euclidean distance between two vectors from their squared norms and a
+   * single dot product instead of their difference.  The round-off of that form is relative to the
+   * norms rather than to the distance, so when the distance isn't much larger than the round-off
+   * (points that are close together compared to their distance from the origin) it is computed
+   * from the difference instead.
+   */
+  private static double squaredDistance(Vector x, double xSquaredNorm, Vector y,
+                                        double ySquaredNorm) {
+    double estimate = xSquaredNorm + ySquaredNorm - 2 * x.dot(y);
+    double error = 4 * (x.size() + 2) * Math.ulp(1.0) * (xSquaredNorm + ySquaredNorm);
+    if (estimate > MIN_ROUNDOFF_RATIO * error) {
+      return estimate;
+    }
+    return x.getDistanceSquared(y);
+  }
+
   /**
    * Examines the datapoints and updates cluster centers to be the centroid of the nearest datapoints points.  To
    * compute a new center for cluster c_i, we average all points that are closer than d_i * trimFraction
@@ -252,9 +281,8 @@ public class BallKMeans implements Iterable<Centroid> {
           newCentroids.get(closestIndex).update(datapoint);
         }
       }
-      // Add new centers back into searcher.
-      centroids.clear();
-      centroids.addAll(newCentroids);
+      // Replace the centers in the searcher, building its index from scratch in one pass.
+      centroids.replaceAll(newCentroids);
     }
   }
 
@@ -154,18 +154,15 @@ public class StreamingKMeans {
 
   private UpdatableSearcher clusterInternal(Iterable<Centroid> datapoints,
                                             boolean collapseClusters) {
-    // We clear the centroids we have in case of cluster collapse, the old clusters are the
-    // datapoints but we need to re-cluster them.
-    if (collapseClusters) {
-      centroids.clear();
-    }
-
+    // We replace the centroids we have in case of cluster collapse, the old clusters are the
+    // datapoints but we need to re-cluster them.  Each is either merged into the nearest new
+    // cluster or added as one, so the searcher starts from the first of them alone.
     int numCentroidsToSkip = 0;
-    if (centroids.size() == 0) {
+    if (collapseClusters || centroids.size() == 0) {
       // Assign the first datapoint to the first cluster.
       // Adding a vector to a searcher would normally just reference the copy,
       // but we could potentially mutate it and so we need to make a clone.
-      centroids.add(Iterables.get(datapoints, 0).clone());
+      centroids.replaceAll(Collections.singletonList(Iterables.get(datapoints, 0).clone()));
       numCentroidsToSkip = 1;
       ++numProcessedDatapoints;
     }
@@ -195,13 +192,20 @@ public class StreamingKMeans {
         // We know that all the points we inserted in the centroids searcher are (or extend)
         // WeightedVector, so the cast will always succeed.
         Centroid centroid = (Centroid)closestPair.getValue();
-        // We will update the centroid by removing it from the searcher and reinserting it to
-        // ensure consistency.
-        if (!centroids.remove(centroid, 1e-7)) {
-          throw new RuntimeException("Unable to remove centroid");
+        // Searchers that can find the centroid they returned are told it moved once it is
+        // updated in place.  The others have it removed and added again to ensure consistency.
+        if (centroids.canUpdateInPlace()) {
+          centroid.update(row);
+          if (!centroids.updated(centroid)) {
+            throw new RuntimeException("Unable to update centroid");
+          }
+        } else {
+          if (!centroids.remove(centroid, 1e-7)) {
+            throw new RuntimeException("Unable to remove centroid");
+          }
+          centroid.update(row);
+          centroids.add(centroid);
         }
-        centroid.update(row);
-        centroids.add(centroid);
       }
 
       if (!collapseClusters && centroids.size() > estimatedNumClusters) {
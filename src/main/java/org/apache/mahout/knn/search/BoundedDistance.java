@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Distances that can be computed against a bound and abandoned as soon as the partial sum shows
+ * that the distance is larger than the bound.  When looking for the k nearest neighbors, the bound
+ * is the distance of the k-th best neighbor found so far.  Once there are k neighbors, most
+ * candidates lose to it long before all the dimensions have been summed.
+ *
+ * All of these distances are sums of a non-negative term for each dimension (possibly with a
+ * square root taken at the end) so a partial sum can only grow.  The sums are accumulated without
+ * the square root, checking against the bound every CHECK_INTERVAL dimensions.  If a distance is
+ * abandoned, the value returned is larger than the bound but is not the full distance.  If it
+ * isn't, the value is the full distance.
+ */
+public enum BoundedDistance {
+  SQUARED_EUCLIDEAN(true) {
+    @Override
+    public double toAccumulated(double distance) {
+      return distance;
+    }
+
+    @Override
+    public double fromAccumulated(double accumulated) {
+      return accumulated;
+    }
+  },
+
+  EUCLIDEAN(true) {
+    @Override
+    public double toAccumulated(double distance) {
+      return distance * distance;
+    }
+
+    @Override
+    public double fromAccumulated(double accumulated) {
+      return Math.sqrt(accumulated);
+    }
+  },
+
+  MANHATTAN(false) {
+    @Override
+    public double toAccumulated(double distance) {
+      return distance;
+    }
+
+    @Override
+    public double fromAccumulated(double accumulated) {
+      return accumulated;
+    }
+  };
+
+  /**
+   * Returns whether the terms are squared differences, as for the Euclidean distances.
+   */
+  public boolean sumsSquares() {
+    return squared;
+  }
+
+  // The number of dimensions summed between comparisons with the bound.  Checking every dimension
+  // would cost more in branches than it saves.
+  static final int CHECK_INTERVAL = 8;
+
+  // Whether the term for each dimension is the squared difference (or else the absolute one).
+  private final boolean squared;
+
+  BoundedDistance(boolean squared) {
+    this.squared = squared;
+  }
+
+  /**
+   * Returns the bounded version of a distance measure or null if there is none.
+   */
+  public static BoundedDistance forMeasure(DistanceMeasure distanceMeasure) {
+    Class<?> measureClass = distanceMeasure.getClass();
+    if (measureClass == SquaredEuclideanDistanceMeasure.class) {
+      return SQUARED_EUCLIDEAN;
+    } else if (measureClass == EuclideanDistanceMeasure.class) {
+      return EUCLIDEAN;
+    } else if (measureClass == ManhattanDistanceMeasure.class) {
+      return MANHATTAN;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Converts a distance to the units of the sums accumulated by this distance.
+   */
+  public abstract double toAccumulated(double distance);
+
+  /**
+   * Converts an accumulated sum to a distance.
+   */
+  public abstract double fromAccumulated(double accumulated);
+
+  /**
+   * Converts a lower bound on the Euclidean distance between two vectors to a lower bound on this
+   * distance.  The Manhattan distance is never smaller than the Euclidean one.
+   */
+  public double fromEuclideanBound(double euclidean) {
+    return squared ? fromAccumulated(euclidean * euclidean) : euclidean;
+  }
+
+  /**
+   * Computes the distance between two dense vectors, stopping early if it is larger than bound.
+   *
+   * @return The distance, or a value larger than bound if the distance is larger than bound.
+   */
+  public double distance(Vector v1, Vector v2, double bound) {
+    Preconditions.checkArgument(v1.size() == v2.size(),
+        "Vectors must have the same dimension. Got " + v1.size() + " and " + v2.size());
+    final double limit = toAccumulated(bound);
+    final int dimension = v1.size();
+    double sum = 0;
+    int i = 0;
+    while (i < dimension) {
+      int end = Math.min(dimension, i + CHECK_INTERVAL);
+      if (squared) {
+        for (; i < end; ++i) {
+          double delta = v1.getQuick(i) - v2.getQuick(i);
+          sum += delta * delta;
+        }
+      } else {
+        for (; i < end; ++i) {
+          sum += Math.abs(v1.getQuick(i) - v2.getQuick(i));
+        }
+      }
+      if (sum > limit) {
+        break;
+      }
+    }
+    return fromAccumulated(sum);
+  }
+
+  /**
+   * Accumulates the terms of the distance between a query and a packed row and stops early if
+   * the sum gets larger than limit.
+   *
+   * @param query       The query, with its values in the same order as those of the row.
+   * @param queryOffset Where the query starts in query.
+   * @param block       The block holding the row.
+   * @param offset      Where the row starts in the block.
+   * @param dimension   The dimension of the query and row.
+   * @param limit       The bound in accumulated units (see toAccumulated).
+   * @return The accumulated sum, which is larger than limit if the summing was stopped early.
+   */
+  public double accumulate(double[] query, int queryOffset, double[] block, int offset,
+                           int dimension, double limit) {
+    double sum = 0;
+    int i = 0;
+    while (i < dimension) {
+      int end = Math.min(dimension, i + CHECK_INTERVAL);
+      if (squared) {
+        for (; i < end; ++i) {
+          double delta = block[offset + i] - query[queryOffset + i];
+          sum += delta * delta;
+        }
+      } else {
+        for (; i < end; ++i) {
+          sum += Math.abs(block[offset + i] - query[queryOffset + i]);
+        }
+      }
+      if (sum > limit) {
+        break;
+      }
+    }
+    return sum;
+  }
+}
@@ -18,8 +18,10 @@
 package org.apache.mahout.knn.search;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.WeightedVector;
@@ -27,12 +29,31 @@ import org.apache.mahout.math.random.WeightedThing;
 
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Search for nearest neighbors using a complete search (i.e. looping through
  * the references and comparing each vector to the query).
+ *
+ * With Euclidean, squared Euclidean, Manhattan or cosine distance, the values of the reference
+ * vectors can also be packed into contiguous primitive blocks (see PackedRows) which are scored
+ * many rows at a time by a DistanceKernel instead of going through the DistanceMeasure one pair of
+ * Vectors at a time.  Packing is asked for with the packRows argument of the constructors.  The
+ * original vectors are still kept so that they are what search, iterator and remove return.
+ *
+ * With the first three measures, the distance to each reference vector is abandoned as soon as
+ * it is known to be larger than the worst of the best neighbors found so far (see
+ * BoundedDistance).  Packed rows are summed with the dimensions of highest variance first so that
+ * happens sooner.
+ *
+ * With the same measures, the reference vectors can also be kept as int8 or float16 codes (see
+ * QuantizedRows).  The codes are scanned to find QuantizedRows.RERANK_FACTOR times as many
+ * candidates as needed and only those are compared exactly with the query.  The results are then
+ * no longer guaranteed to be exact.
  */
 public class BruteSearch extends UpdatableSearcher {
   /**
@@ -40,16 +61,166 @@ public class BruteSearch extends UpdatableSearcher {
    */
   private List<Vector> referenceVectors;
 
+  /**
+   * The squared norms of the reference vectors if distances are computed from dot products (see
+   * usesSquaredNorms), squaredNorms[i] being that of referenceVectors.get(i).
+   */
+  private double[] squaredNorms = new double[16];
+
+  /**
+   * The row number of each reference vector, by reference, so that removing a vector that was
+   * added doesn't take a pass over all of them.  A vector added more than once maps to one of its
+   * rows.
+   */
+  private Map<Vector, Integer> rowNumbers = Maps.newIdentityHashMap();
+
+  /**
+   * Whether a vector was ever added more than once, in which case it has rows that rowNumbers
+   * doesn't know about.
+   */
+  private boolean duplicates = false;
+
+  /**
+   * Whether the values of the reference vectors should be packed into primitive blocks.
+   */
+  private boolean packRows;
+
+  /**
+   * The packed copies of the reference vectors, row i being referenceVectors.get(i).  Created
+   * when the first vector is added, since that is when the dimension is known.
+   */
+  private PackedRows packedRows = null;
+
+  /**
+   * How to quantize the reference vectors for the first pass of searches, or null for no
+   * quantization.
+   */
+  private QuantizedRows.Encoding quantization;
+
+  /**
+   * The quantized copies of the reference vectors, row i being referenceVectors.get(i).  Created
+   * when the first vector is added and replaced by calibrate.
+   */
+  private volatile QuantizedRows quantizedRows = null;
+
+  /**
+   * The number of packed rows scored by each call to the kernel.  The bound passed to the kernel
+   * is updated between calls.
+   */
+  private static final int KERNEL_ROWS = 64;
+
+  /**
+   * The number of queries scored together against the packed rows when searching for many
+   * queries at once.  The queries in a block and a block of packed rows fit in cache together.
+   */
+  private static final int QUERY_BLOCK_SIZE = 32;
+
+  /**
+   * The smallest number of reference vectors worth scanning as a separate range when a single
+   * query is searched with more than one thread.
+   */
+  private static final int MIN_ROWS_PER_RANGE = 4096;
+
+  /**
+   * The number of threads used to search for a single query.
+   */
+  private int threadsPerQuery = 1;
+
+  /**
+   * The executor used for threaded searches.  Lives across searches.
+   */
+  private ExecutorService executor = null;
+
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * Creates a searcher that compares the query with the reference vectors themselves, without
+   * packing or quantizing them.
+   */
   public BruteSearch(DistanceMeasure distanceMeasure) {
+    this(distanceMeasure, false);
+  }
+
+  /**
+   * @param distanceMeasure The distance measure used to compare vectors.
+   * @param packRows Whether to keep packed copies of the reference vectors for scanning.  This
+   *                 is only possible with EuclideanDistanceMeasure,
+   *                 SquaredEuclideanDistanceMeasure, ManhattanDistanceMeasure or
+   *                 CosineDistanceMeasure and needs all vectors to have the same dimension.
+   */
+  public BruteSearch(DistanceMeasure distanceMeasure, boolean packRows) {
+    this(distanceMeasure, packRows, null);
+  }
+
+  /**
+   * @param distanceMeasure The distance measure used to compare vectors.
+   * @param packRows Whether to keep packed copies of the reference vectors for scanning.
+   * @param quantization How to quantize the reference vectors for a faster approximate first
+   *                     pass, or null to compare the query with every reference exactly.  This
+   *                     is only possible with Euclidean, squared Euclidean or Manhattan distance.
+   */
+  public BruteSearch(DistanceMeasure distanceMeasure, boolean packRows,
+                     QuantizedRows.Encoding quantization) {
     super(distanceMeasure);
+    Preconditions.checkArgument(!packRows || kernel != null,
+        "Packed rows need Euclidean, squared Euclidean, Manhattan or cosine distance");
+    Preconditions.checkArgument(quantization == null || boundedDistance != null,
+        "Quantization needs Euclidean, squared Euclidean or Manhattan distance");
     referenceVectors = Lists.newArrayList();
+    this.packRows = packRows;
+    this.quantization = quantization;
   }
 
   @Override
   public void add(Vector v) {
+    if (packRows) {
+      if (packedRows == null) {
+        packedRows = new PackedRows(v.size());
+      }
+      packedRows.add(v);
+    }
+    if (quantization != null) {
+      if (quantizedRows == null) {
+        quantizedRows = new QuantizedRows(v.size(), quantization, boundedDistance);
+      }
+      quantizedRows.add(v);
+    }
+    if (usesSquaredNorms()) {
+      if (squaredNorms.length == referenceVectors.size()) {
+        squaredNorms = Arrays.copyOf(squaredNorms, 2 * squaredNorms.length);
+      }
+      squaredNorms[referenceVectors.size()] = v.getLengthSquared();
+    }
+    if (rowNumbers.containsKey(v)) {
+      duplicates = true;
+    } else {
+      rowNumbers.put(v, referenceVectors.size());
+    }
     referenceVectors.add(v);
   }
 
+  /**
+   * Returns the quantized rows to search, first calibrating them again if vectors added since the
+   * last calibration didn't fit.  This costs about as much as a search and becomes rare as the
+   * calibrated ranges settle.  The rows are calibrated into new QuantizedRows which then replace
+   * the old ones, so searches running at the same time keep scanning rows that don't change.
+   */
+  private synchronized QuantizedRows calibrate() {
+    QuantizedRows rows = quantizedRows;
+    if (rows != null && rows.needsCalibration()) {
+      QuantizedRows calibrated = new QuantizedRows(rows.dimension(), quantization, boundedDistance);
+      calibrated.rebuild(referenceVectors);
+      quantizedRows = calibrated;
+      rows = calibrated;
+    }
+    return rows;
+  }
+
   @Override
   public int size() {
     return referenceVectors.size();
@@ -60,41 +231,145 @@ public class BruteSearch extends UpdatableSearcher {
    * the query vector.
    * The weights of the WeightedVectors are not taken into account.
    *
+   * If more than one thread per query has been set and there are enough reference vectors, the
+   * references are split into ranges that are scanned in parallel and the best neighbors from
+   * each range are merged.
+   *
+   * If the reference vectors are quantized, the scan picks candidates with the approximate
+   * distances and the best of those by exact distance are returned.
+   *
    * @param query     The query vector.
    * @param limit The number of results to returned; must be at least 1.
    * @return A list of the closest @limit neighbors for the given query.
    */
   public List<WeightedThing<Vector>> search(Vector query, int limit) {
+    return search(query, limit, threadsPerQuery);
+  }
+
+  private List<WeightedThing<Vector>> search(final Vector query, final int limit,
+                                             int numRanges) {
     Preconditions.checkArgument(limit > 0);
-    limit = Math.min(limit, referenceVectors.size());
-    // A priority queue of the best @limit elements, ordered from worst to best so that the worst
-    // element is always on top and can easily be removed.
-    PriorityQueue<WeightedThing<Integer>> bestNeighbors = new
-        PriorityQueue<WeightedThing<Integer>>(limit, Ordering.natural().reverse());
-    // The reulting list of weighted WeightedVectors (the weight is the distance from the query).
-    List<WeightedThing<Vector>> results =
-        Lists.newArrayListWithCapacity(limit);
-    int rowNumber = 0;
-    for (Vector row : referenceVectors) {
-      double distance = distanceMeasure.distance(query, row);
-      // Only add a new neighbor if the result is better than the worst element
-      // in the queue or the queue isn't full.
-      if (bestNeighbors.size() < limit || bestNeighbors.peek().getWeight() > distance) {
-        bestNeighbors.add(new WeightedThing<Integer>(rowNumber, distance));
-        if (bestNeighbors.size() > limit) {
-          bestNeighbors.poll();
-        } else {
-          // Increase the size of the results list by 1 so we can add elements in the reverse
-          // order from the queue.
-          results.add(null);
+    final QuantizedRows rows = calibrate();
+    final int size = referenceVectors.size();
+    Scratch buffers = scratch.get();
+    final double[] q = packedRows == null ? null
+        : packedRows.toArray(query, buffers.query(packedRows.dimension()));
+    final double queryNorm = q != null ? PackedRows.dot(q, 0, q, 0, packedRows.dimension())
+        : usesSquaredNorms() ? query.getLengthSquared() : 0;
+    final QuantizedRows.Query prepared = rows == null ? null
+        : rows.prepare(query, buffers.prepared);
+    final int candidateLimit = rows == null ? limit : limit * QuantizedRows.RERANK_FACTOR;
+    numRanges = Math.min(numRanges, size / MIN_ROWS_PER_RANGE);
+    final TopKHeap candidates = buffers.candidates;
+    candidates.reset(candidateLimit);
+    if (numRanges <= 1) {
+      scan(query, q, queryNorm, rows, prepared, 0, size, candidates);
+    } else {
+      // Each range finds its own best candidates and the overall best are among them.
+      List<Callable<Object>> tasks = Lists.newArrayList();
+      for (int i = 0; i < numRanges; ++i) {
+        final int start = (int) ((long) size * i / numRanges);
+        final int end = (int) ((long) size * (i + 1) / numRanges);
+        tasks.add(new Callable<Object>() {
+          @Override
+          public Object call() {
+            TopKHeap rangeCandidates = scratch.get().range;
+            rangeCandidates.reset(candidateLimit);
+            scan(query, q, queryNorm, rows, prepared, start, end, rangeCandidates);
+            synchronized (candidates) {
+              candidates.addAll(rangeCandidates);
+            }
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+    }
+    if (rows == null) {
+      return results(candidates);
+    }
+
+    TopKHeap bestNeighbors = buffers.heap;
+    bestNeighbors.reset(limit);
+    for (int i = 0; i < candidates.size(); ++i) {
+      int rowNumber = candidates.id(i);
+      bestNeighbors.offer(rowNumber, exactDistance(query, q, queryNorm, rowNumber,
+          bestNeighbors.threshold()));
+    }
+    return results(bestNeighbors);
+  }
+
+  /**
+   * Computes the distance between the query and a reference vector the same way scan does,
+   * possibly stopping early once it is larger than bound.
+   */
+  private double exactDistance(Vector query, double[] q, double queryNorm, int rowNumber,
+                               double bound) {
+    if (q == null) {
+      return distance(query, queryNorm, referenceVectors.get(rowNumber),
+          usesSquaredNorms() ? squaredNorms[rowNumber] : 0, bound);
+    }
+    return kernel.score(q, 0, queryNorm, packedRows.block(rowNumber),
+        packedRows.getSquaredNorms(rowNumber / PackedRows.ROWS_PER_BLOCK),
+        rowNumber % PackedRows.ROWS_PER_BLOCK, packedRows.dimension(), bound);
+  }
+
+  /**
+   * Offers the reference vectors from start up to end to a heap of the best neighbors of the
+   * query.  The ids in the heap are row numbers.
+   *
+   * @param query The query vector.
+   * @param q     The values of the query in the packed dimension order if the rows are packed,
+   *              null otherwise.  If the rows are packed, the distances offered are kernel
+   *              scores.
+   * @param queryNorm The squared norm of the query if the rows are packed or usesSquaredNorms.
+   * @param rows  The quantized rows to scan, or null to scan the reference vectors exactly.
+   * @param prepared The query prepared for the quantized rows, if any.  The distances offered
+   *              are then approximate.
+   */
+  private void scan(Vector query, double[] q, double queryNorm, QuantizedRows rows,
+                    QuantizedRows.Query prepared, int start, int end, TopKHeap bestNeighbors) {
+    if (rows != null) {
+      rows.scan(prepared, start, end, bestNeighbors);
+    } else if (q == null) {
+      for (int rowNumber = start; rowNumber < end; ++rowNumber) {
+        bestNeighbors.offer(rowNumber,
+            exactDistance(query, null, queryNorm, rowNumber, bestNeighbors.threshold()));
+      }
+    } else {
+      // Walk the packed blocks overlapping the range directly, KERNEL_ROWS rows at a time.
+      final int dimension = packedRows.dimension();
+      double[] scores = scratch.get().scores(KERNEL_ROWS);
+      int rowNumber = start;
+      while (rowNumber < end) {
+        int blockNumber = rowNumber / PackedRows.ROWS_PER_BLOCK;
+        double[] block = packedRows.getBlock(blockNumber);
+        double[] norms = packedRows.getSquaredNorms(blockNumber);
+        int rowInBlock = rowNumber % PackedRows.ROWS_PER_BLOCK;
+        int numRows = Math.min(KERNEL_ROWS, Math.min(end - rowNumber,
+            PackedRows.ROWS_PER_BLOCK - rowInBlock));
+        kernel.scores(q, queryNorm, block, norms, rowInBlock, numRows, dimension,
+            bestNeighbors.threshold(), scores);
+        for (int r = 0; r < numRows; ++r) {
+          bestNeighbors.offer(rowNumber + r, scores[r]);
         }
+        rowNumber += numRows;
       }
-      ++rowNumber;
     }
-    for (int i = limit - 1; i >= 0; --i) {
-      WeightedThing<Integer> neighbor = bestNeighbors.poll();
-      results.set(i, new WeightedThing<Vector>(
-          referenceVectors.get(neighbor.getValue()), neighbor.getWeight()));
+  }
+
+  /**
+   * Turns a heap of the best rows into a list of the original vectors, best first.  The heap is
+   * left sorted.
+   */
+  private List<WeightedThing<Vector>> results(TopKHeap bestNeighbors) {
+    bestNeighbors.sort();
+    // The resulting list of weighted WeightedVectors (the weight is the distance from the query).
+    List<WeightedThing<Vector>> results = Lists.newArrayListWithCapacity(bestNeighbors.size());
+    for (int i = 0; i < bestNeighbors.size(); ++i) {
+      double distance = bestNeighbors.distance(i);
+      results.add(new WeightedThing<Vector>(referenceVectors.get(bestNeighbors.id(i)),
+          packedRows == null ? distance : kernel.toDistance(distance)));
     }
     return results;
   }
@@ -102,6 +377,11 @@ public class BruteSearch extends UpdatableSearcher {
   /**
    * Searches with a list full of queries in a threaded fashion.
    *
+   * If the rows are packed but not quantized and the distance is Euclidean or squared Euclidean,
+   * the queries are handled in blocks of QUERY_BLOCK_SIZE.  Each block of queries is scored
+   * against each block of packed rows at once (see searchBlock) which is much faster than
+   * searching for each query separately while giving exactly the same results.
+   *
    * @param queries The queries to search for.
    * @param limit The number of results to return.
    * @param numThreads   Number of threads to use in searching.
@@ -109,54 +389,386 @@ public class BruteSearch extends UpdatableSearcher {
    */
   public List<List<WeightedThing<Vector>>> search(Iterable<WeightedVector> queries,
                                                   final int limit, int numThreads) {
-    ExecutorService es = Executors.newFixedThreadPool(numThreads);
-    List<Callable<Object>> tasks = Lists.newArrayList();
-
+    Preconditions.checkArgument(numThreads > 0);
+    calibrate();
+    final List<WeightedVector> queryList = Lists.newArrayList(queries);
     final List<List<WeightedThing<Vector>>> results = Lists.newArrayList();
-    int i = 0;
-    for (final Vector query : queries) {
+    for (int i = 0; i < queryList.size(); ++i) {
       results.add(null);
-      final int index = i++;
+    }
+    // The unit of work is either a block of queries or a single query.  Each thread keeps taking
+    // the next unit until there are none left.
+    final boolean blocked =
+        packedRows != null && quantizedRows == null && boundedDistance != null
+        && boundedDistance.sumsSquares();
+    final int unitSize = blocked ? QUERY_BLOCK_SIZE : 1;
+    final int numUnits = (queryList.size() + unitSize - 1) / unitSize;
+    final AtomicInteger nextUnit = new AtomicInteger();
+    List<Callable<Object>> tasks = Lists.newArrayList();
+    for (int i = 0; i < Math.min(numThreads, numUnits); ++i) {
       tasks.add(new Callable<Object>() {
         @Override
-        public Object call() throws Exception {
-          results.set(index, BruteSearch.this.search(query, limit));
+        public Object call() {
+          for (int unit = nextUnit.getAndIncrement(); unit < numUnits;
+               unit = nextUnit.getAndIncrement()) {
+            int start = unit * unitSize;
+            int end = Math.min(start + unitSize, queryList.size());
+            if (blocked) {
+              List<List<WeightedThing<Vector>>> r =
+                  searchBlock(queryList.subList(start, end), limit);
+              for (int j = start; j < end; ++j) {
+                results.set(j, r.get(j - start));
+              }
+            } else {
+              // The queries are already spread over the threads, so each is scanned in one piece.
+              results.set(start, search(queryList.get(start), limit, 1));
+            }
+          }
           return null;
         }
       });
     }
+    invokeAll(tasks);
+    return results;
+  }
 
+  /**
+   * Runs tasks on the executor and waits for all of them.
+   * @return The results of the tasks, in order.
+   */
+  private <T> List<T> invokeAll(List<Callable<T>> tasks) {
     try {
-      es.invokeAll(tasks);
-      es.shutdown();
+      List<T> r = Lists.newArrayListWithCapacity(tasks.size());
+      for (Future<T> future : getExecutor().invokeAll(tasks)) {
+        r.add(future.get());
+      }
+      return r;
     } catch (InterruptedException e) {
-      throw new RuntimeException("Impossible error");
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while searching", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
     }
+  }
 
+  /**
+   * Returns the executor used for threaded searches, creating the default one if none was set.
+   */
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("brute-search-%d")
+          .build());
+    }
+    return executor;
+  }
+
+  /**
+   * Sets the executor used for threaded searches.  The executor is used across calls and is not
+   * shut down by this searcher.  It must be able to run as many tasks at once as the number of
+   * threads requested from search(queries, limit, numThreads) or set by setThreadsPerQuery and
+   * searches must not be started from inside its own tasks.
+   *
+   * If no executor is set, a cached pool of daemon threads is created the first time one is needed.
+   */
+  public synchronized void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public int getThreadsPerQuery() {
+    return threadsPerQuery;
+  }
+
+  /**
+   * Sets the number of threads used to search for a single query.  With more than one thread, the
+   * reference vectors are split into ranges of at least MIN_ROWS_PER_RANGE vectors which are
+   * scanned in parallel.  The default is 1.
+   */
+  public void setThreadsPerQuery(int threadsPerQuery) {
+    Preconditions.checkArgument(threadsPerQuery > 0, "Must use at least one thread per query");
+    this.threadsPerQuery = threadsPerQuery;
+  }
+
+  /**
+   * Searches for a block of queries at the same time by tiling the queries against the packed
+   * rows.  For each row, the dot products with all queries are computed together (a row of the
+   * product of the rows and the transposed queries) so that the block of queries and the current
+   * block of rows stay in cache.  As in OverlapTest, these give the squared distances as
+   * ||x||^2 - 2 x.q + ||q||^2.
+   *
+   * That form of the distance has different round-off than the direct one used by search, so it
+   * is only used to skip rows that certainly can't make it into a query's top results.  Rows that
+   * could are scored exactly the same way search does it, which keeps the results identical.
+   * This only works for Euclidean and squared Euclidean distance.
+   */
+  private List<List<WeightedThing<Vector>>> searchBlock(List<? extends Vector> queries,
+                                                        int limit) {
+    final int numQueries = queries.size();
+    final int dimension = packedRows.dimension();
+    // The round-off of the dot product form relative to the norms involved.  This is a generous
+    // bound so no row that belongs in the results is ever skipped.
+    final double relativeError = 4 * (dimension + 2) * Math.ulp(1.0);
+
+    Scratch buffers = scratch.get();
+    double[] q = buffers.queryBlock(numQueries * dimension);
+    double[] queryNorms = buffers.queryNorms(numQueries);
+    List<TopKHeap> bestNeighbors = buffers.heaps(numQueries);
+    for (int j = 0; j < numQueries; ++j) {
+      Vector query = queries.get(j);
+      Preconditions.checkArgument(query.size() == dimension,
+          "Invalid dimension of query. Expected " + dimension + " Got " + query.size());
+      packedRows.toArray(query, q, j * dimension);
+      queryNorms[j] = PackedRows.dot(q, j * dimension, q, j * dimension, dimension);
+      bestNeighbors.get(j).reset(limit);
+    }
+
+    double[] dots = buffers.dots(numQueries);
+    int rowNumber = 0;
+    for (int b = 0; b < packedRows.numBlocks(); ++b) {
+      double[] block = packedRows.getBlock(b);
+      double[] norms = packedRows.getSquaredNorms(b);
+      int rows = packedRows.rowsInBlock(b);
+      for (int r = 0; r < rows; ++r) {
+        int offset = r * dimension;
+        PackedRows.dots(block, offset, q, numQueries, dimension, dots);
+        for (int j = 0; j < numQueries; ++j) {
+          TopKHeap top = bestNeighbors.get(j);
+          if (top.isFull()) {
+            double threshold = top.threshold();
+            double estimate = norms[r] - 2 * dots[j] + queryNorms[j];
+            if (estimate - relativeError * (norms[r] + queryNorms[j] + threshold) >= threshold) {
+              continue;
+            }
+          }
+          top.offer(rowNumber, kernel.score(q, j * dimension, queryNorms[j], block, norms, r,
+              dimension, top.threshold()));
+        }
+        ++rowNumber;
+      }
+    }
+
+    List<List<WeightedThing<Vector>>> results = Lists.newArrayListWithCapacity(numQueries);
+    for (int j = 0; j < numQueries; ++j) {
+      results.add(results(bestNeighbors.get(j)));
+    }
     return results;
   }
 
+  /**
+   * Buffers used by searches, one set per thread, so that a search in steady state allocates
+   * nothing but its results.
+   */
+  private static class Scratch {
+    private final TopKHeap heap = new TopKHeap(0);
+    private final TopKHeap candidates = new TopKHeap(0);
+    private final TopKHeap range = new TopKHeap(0);
+    private final List<TopKHeap> heaps = Lists.newArrayList();
+    private double[] query = new double[0];
+    private final QuantizedRows.Query prepared = new QuantizedRows.Query();
+    private double[] queryBlock = new double[0];
+    private double[] scores = new double[0];
+    private double[] queryNorms = new double[0];
+    private double[] dots = new double[0];
+
+    double[] query(int dimension) {
+      if (query.length < dimension) {
+        query = new double[dimension];
+      }
+      return query;
+    }
+
+    double[] queryBlock(int length) {
+      if (queryBlock.length < length) {
+        queryBlock = new double[length];
+      }
+      return queryBlock;
+    }
+
+    double[] scores(int numRows) {
+      if (scores.length < numRows) {
+        scores = new double[numRows];
+      }
+      return scores;
+    }
+
+    double[] queryNorms(int numQueries) {
+      if (queryNorms.length < numQueries) {
+        queryNorms = new double[numQueries];
+      }
+      return queryNorms;
+    }
+
+    double[] dots(int numQueries) {
+      if (dots.length < numQueries) {
+        dots = new double[numQueries];
+      }
+      return dots;
+    }
+
+    List<TopKHeap> heaps(int numQueries) {
+      while (heaps.size() < numQueries) {
+        heaps.add(new TopKHeap(0));
+      }
+      return heaps;
+    }
+  }
+
+  /**
+   * Iterates over the reference vectors.  Removing through the iterator removes the row the same
+   * way remove does, so the last reference vector moves into its place and is returned next.
+   */
   @Override
   public Iterator<Vector> iterator() {
-    return referenceVectors.iterator();
+    return new Iterator<Vector>() {
+      // The row returned by the next call to next and the one returned by the last.
+      private int next = 0;
+      private int last = -1;
+
+      @Override
+      public boolean hasNext() {
+        return next < referenceVectors.size();
+      }
+
+      @Override
+      public Vector next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = next++;
+        return referenceVectors.get(last);
+      }
+
+      @Override
+      public void remove() {
+        Preconditions.checkState(last >= 0, "Nothing to remove");
+        removeRow(last);
+        next = last;
+        last = -1;
+      }
+    };
   }
 
+  /**
+   * Removes a reference vector within epsilon of the query.  If the query is itself one of the
+   * reference vectors, as when removing a result of a search, it is found without comparing it
+   * with the others.
+   *
+   * Removing moves the last reference vector into the place of the one removed, so the order of
+   * the reference vectors changes.
+   */
   @Override
   public boolean remove(Vector query, double epsilon) {
-    int rowNumber = 0;
-    for (Vector row : referenceVectors) {
-      double distance = distanceMeasure.distance(query, row);
-      if (distance < epsilon) {
-        referenceVectors.remove(rowNumber);
+    Integer row = rowNumbers.get(query);
+    if (row != null) {
+      removeRow(row);
+      return true;
+    }
+    if (packedRows != null) {
+      double[] q = packedRows.toArray(query, new double[packedRows.dimension()]);
+      double queryNorm = PackedRows.dot(q, 0, q, 0, packedRows.dimension());
+      double limit = kernel.toScore(epsilon);
+      for (int rowNumber = 0; rowNumber < packedRows.size(); ++rowNumber) {
+        if (exactDistance(query, q, queryNorm, rowNumber, limit) < limit) {
+          removeRow(rowNumber);
+          return true;
+        }
+      }
+      return false;
+    }
+    double queryNorm = usesSquaredNorms() ? query.getLengthSquared() : 0;
+    for (int rowNumber = 0; rowNumber < referenceVectors.size(); ++rowNumber) {
+      if (exactDistance(query, null, queryNorm, rowNumber, epsilon) < epsilon) {
+        removeRow(rowNumber);
         return true;
       }
-      rowNumber++;
     }
     return false;
   }
 
+  @Override
+  public boolean canUpdateInPlace() {
+    return true;
+  }
+
+  /**
+   * Refreshes the squared norm and the packed and quantized copies of a reference vector that was
+   * changed in place.  A reference vector that is changed in place must be passed here before the
+   * next search since those are what searches compare the query with when they are kept.  The
+   * vector is found by reference, with no search.  If it was added more than once, all its rows
+   * are refreshed, which takes a pass over the reference vectors.
+   */
+  @Override
+  public boolean updated(Vector v) {
+    Integer row = rowNumbers.get(v);
+    if (row == null) {
+      return false;
+    }
+    refresh(row, v);
+    if (duplicates) {
+      for (int rowNumber = 0; rowNumber < referenceVectors.size(); ++rowNumber) {
+        if (rowNumber != row && referenceVectors.get(rowNumber) == v) {
+          refresh(rowNumber, v);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Computes the squared norm and the packed and quantized copies of a row again.
+   */
+  private void refresh(int rowNumber, Vector v) {
+    if (usesSquaredNorms()) {
+      squaredNorms[rowNumber] = v.getLengthSquared();
+    }
+    if (packedRows != null) {
+      packedRows.set(rowNumber, v);
+    }
+    if (quantizedRows != null) {
+      quantizedRows.set(rowNumber, v);
+    }
+  }
+
+  /**
+   * Removes a row by moving the last one into its place.
+   */
+  private void removeRow(int rowNumber) {
+    int last = referenceVectors.size() - 1;
+    Vector removed = referenceVectors.get(rowNumber);
+    if (Integer.valueOf(rowNumber).equals(rowNumbers.get(removed))) {
+      // A copy of the vector in another row, if any, will be found by distance.
+      rowNumbers.remove(removed);
+    }
+    Vector moved = referenceVectors.remove(last);
+    if (rowNumber != last) {
+      referenceVectors.set(rowNumber, moved);
+      if (Integer.valueOf(last).equals(rowNumbers.get(moved))) {
+        rowNumbers.put(moved, rowNumber);
+      }
+      if (usesSquaredNorms()) {
+        squaredNorms[rowNumber] = squaredNorms[last];
+      }
+    }
+    if (packedRows != null) {
+      packedRows.swapRemove(rowNumber);
+    }
+    if (quantizedRows != null) {
+      quantizedRows.swapRemove(rowNumber);
+    }
+  }
+
   @Override
   public void clear() {
     referenceVectors.clear();
+    rowNumbers.clear();
+    duplicates = false;
+    if (packedRows != null) {
+      packedRows.clear();
+    }
+    if (quantizedRows != null) {
+      quantizedRows.clear();
+    }
   }
 }
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import java.util.Arrays;
+
+/**
+ * The set of ids of the candidates of a search, without hashing and without allocating any
+ * objects once it has grown to the number of vectors searched.
+ *
+ * Each possible id has a stamp and an id is in the set if its stamp is the current epoch, so
+ * emptying the set is just starting a new epoch and adding an id is a comparison and a store.
+ * The ids in the set are also kept in the order they were added so they can be scored without
+ * looking at the stamps of the others.
+ *
+ * For searchers that find candidates in a window around the query on each of several projections,
+ * the set also counts how many times each candidate was added (its votes) and keeps a lower bound
+ * on the Euclidean distance between the candidate and the query.  As the projections are on unit
+ * vectors, the gap between the projections of the candidate and of the query on any of them is
+ * such a bound.  If the basis is orthonormal, the projections are coordinates in a subspace so
+ * the Euclidean norm of all the gaps is a better bound.  The gap on a projection where a candidate
+ * wasn't found is at least the gap to the nearest vector just outside the window, its edge.
+ * See prune.
+ *
+ * Like TopKHeap, a set is meant to be reused: call reset before each search.  It is not
+ * thread-safe; searchers keep one per thread.
+ */
+final class CandidateSet {
+  // The epoch in which each id was last added.
+  private int[] stamps = new int[0];
+  private int epoch = 0;
+
+  // The votes of each id and what its lower bound is computed from, for the ids added in the
+  // current epoch: the largest gap or, for an orthonormal basis, the sum of the squared gaps
+  // minus the sum of the squared edges of the same projections.
+  private int[] votes = new int[0];
+  private double[] gaps = new double[0];
+
+  // Whether the projections are on an orthonormal basis and the sum of their squared edges.
+  private boolean orthonormal = false;
+  private double sumSquaredEdges = 0;
+
+  // The ids in the set in the order they were added, or as ordered by prune.
+  private int[] ids = new int[16];
+  private int size = 0;
+
+  // Scratch space for prune.
+  private double[] orderedGaps = new double[16];
+  private double[] scratchGaps = new double[16];
+  private int[] scratchIds = new int[16];
+
+  /**
+   * Empties the set, which can then hold ids from 0 to capacity - 1.
+   */
+  void reset(int capacity) {
+    reset(capacity, false);
+  }
+
+  /**
+   * Empties the set, which can then hold ids from 0 to capacity - 1.
+   *
+   * @param orthonormal Whether the candidates will come from projections on an orthonormal basis.
+   */
+  void reset(int capacity, boolean orthonormal) {
+    this.orthonormal = orthonormal;
+    sumSquaredEdges = 0;
+    if (stamps.length < capacity) {
+      int length = Math.max(capacity, stamps.length + stamps.length / 2);
+      stamps = new int[length];
+      votes = new int[length];
+      gaps = new double[length];
+      epoch = 0;
+    } else if (epoch == Integer.MAX_VALUE) {
+      Arrays.fill(stamps, 0);
+      epoch = 0;
+    }
+    ++epoch;
+    size = 0;
+  }
+
+  /**
+   * Adds an id to the set.
+   * @return Whether the id was new.
+   */
+  boolean add(int id) {
+    return add(id, 0, 0);
+  }
+
+  /**
+   * Adds an id to the set or gives it one more vote if it is already there.
+   *
+   * @param id   The id of the candidate.
+   * @param gap  The distance between the projections of the candidate and of the query.
+   * @param edge The edge of the window the candidate was found in (see addEdge).
+   * @return Whether the id was new.
+   */
+  boolean add(int id, double gap, double edge) {
+    double term = orthonormal ? gap * gap - edge * edge : gap;
+    if (stamps[id] == epoch) {
+      ++votes[id];
+      gaps[id] = orthonormal ? gaps[id] + term : Math.max(gaps[id], term);
+      return false;
+    }
+    stamps[id] = epoch;
+    votes[id] = 1;
+    gaps[id] = term;
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, 2 * size);
+    }
+    ids[size++] = id;
+    return true;
+  }
+
+  boolean contains(int id) {
+    return id < stamps.length && stamps[id] == epoch;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the i-th id added since the last reset, or the i-th id kept by prune.
+   */
+  int get(int i) {
+    return ids[i];
+  }
+
+  /**
+   * Returns how many times an id in the set was added.
+   */
+  int votes(int id) {
+    return votes[id];
+  }
+
+  /**
+   * Records the edge of the window of candidates on a projection: the smallest gap between the
+   * projection of the query and that of a vector outside the window.  Each projection's edge must
+   * be added before the bounds are used, 0 if all the vectors are in the window.
+   */
+  void addEdge(double edge) {
+    sumSquaredEdges += edge * edge;
+  }
+
+  /**
+   * Returns a lower bound on the Euclidean distance between the query and a candidate.
+   */
+  double lowerBound(int id) {
+    return orthonormal ? Math.sqrt(Math.max(0, sumSquaredEdges + gaps[id])) : gaps[id];
+  }
+
+  /**
+   * Drops the candidates with fewer than minVotes votes and orders the others by increasing lower
+   * bound, so the most promising candidates are scored first and scoring can stop at the first one
+   * whose bound shows it can't make it into the results.  If fewer than minimum candidates have enough
+   * votes, none are dropped.
+   *
+   * @return The number of candidates kept.  These are the ids get(0) to get(n - 1).
+   */
+  int prune(int minVotes, int minimum) {
+    boolean filter = false;
+    if (minVotes > 1) {
+      int n = 0;
+      for (int i = 0; i < size; ++i) {
+        if (votes[ids[i]] >= minVotes) {
+          ++n;
+        }
+      }
+      filter = n >= minimum;
+    }
+    if (orderedGaps.length < size) {
+      orderedGaps = new double[ids.length];
+      scratchGaps = new double[ids.length];
+      scratchIds = new int[ids.length];
+    }
+    int n = 0;
+    for (int i = 0; i < size; ++i) {
+      int id = ids[i];
+      if (!filter || votes[id] >= minVotes) {
+        ids[n] = id;
+        orderedGaps[n++] = gaps[id];
+      }
+    }
+    FastProjectionSearch.sort(orderedGaps, ids, n, scratchGaps, scratchIds);
+    size = n;
+    return n;
+  }
+}
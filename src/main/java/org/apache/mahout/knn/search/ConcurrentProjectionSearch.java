@@ -0,0 +1,598 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.WeightedThing;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Does approximate nearest neighbor search by projecting the data like ProjectionSearch, but with
+ * the scalar projections kept in concurrent skip lists so that any number of threads can add,
+ * remove and search at once without a lock.
+ *
+ * Each vector gets an id when it is added and its scalar projections are inserted in the skip
+ * lists one after the other.  A search that runs at the same time as an add or a remove may see
+ * the vector on some projections and not on others, which only changes the candidates it
+ * considers.  A vector that is being removed is flagged first, so it is never returned once its
+ * removal has started and only one of several threads removing the same vector succeeds.
+ *
+ * The id of a removed vector is given to a new vector only once every add, remove and search that
+ * was running when it was removed is done, since those may still hold its projections.  Each of
+ * them announces the epoch it started in and an id removed in an epoch is reused once all the
+ * announced epochs are later.  That way a search never mixes up two vectors with the same id.
+ */
+public class ConcurrentProjectionSearch extends UpdatableSearcher implements Iterable<Vector> {
+  /**
+   * A vector added to the searcher.
+   */
+  private static final class Entry {
+    final Vector vector;
+    final double squaredNorm;
+    final int id;
+
+    // The scalar projections of the vector as they were inserted, so they can be removed exactly.
+    final ScalarProjection[] projections;
+
+    // Set by the thread that removes the vector.
+    final AtomicBoolean removed = new AtomicBoolean(false);
+
+    Entry(Vector vector, double squaredNorm, int id, int numProjections) {
+      this.vector = vector;
+      this.squaredNorm = squaredNorm;
+      this.id = id;
+      this.projections = new ScalarProjection[numProjections];
+    }
+  }
+
+  /**
+   * The id of a removed vector and the epoch it was removed in.
+   */
+  private static final class RemovedId {
+    final int id;
+    final long epoch;
+
+    RemovedId(int id, long epoch) {
+      this.id = id;
+      this.epoch = epoch;
+    }
+  }
+
+  /**
+   * The scalar projection of a vector on a basis vector.  The entry is null for the projection of
+   * a query, which comes before the projections of vectors with the same value.
+   */
+  private static final class ScalarProjection {
+    final double projection;
+    final Entry entry;
+
+    ScalarProjection(double projection, Entry entry) {
+      this.projection = projection;
+      this.entry = entry;
+    }
+  }
+
+  // Orders by projection and then by id so that vectors with the same projection are all kept.
+  private static final Comparator<ScalarProjection> ORDER = new Comparator<ScalarProjection>() {
+    @Override
+    public int compare(ScalarProjection x, ScalarProjection y) {
+      int r = Double.compare(x.projection, y.projection);
+      if (r != 0) {
+        return r;
+      }
+      int xId = x.entry == null ? -1 : x.entry.id;
+      int yId = y.entry == null ? -1 : y.entry.id;
+      return xId < yId ? -1 : (xId > yId ? 1 : 0);
+    }
+  };
+
+  // The scalar projections of the vectors on each basis vector.
+  private final List<NavigableSet<ScalarProjection>> scalarProjections = Lists.newArrayList();
+
+  // The basis, generated when the first vector is added.
+  private volatile ProjectionBasis basis = null;
+
+  // The next id never used and the ids of removed vectors, in the order they were removed, which
+  // are given to the next vectors once no operation can still see them.
+  private final AtomicInteger nextId = new AtomicInteger(0);
+  private final ConcurrentLinkedQueue<RemovedId> removedIds =
+      new ConcurrentLinkedQueue<RemovedId>();
+
+  // The current epoch, which each removal ends, and the epoch announced by each thread that has
+  // used the searcher: the one its current add, remove or search started in, or Long.MAX_VALUE if
+  // it isn't in one.
+  private final AtomicLong epoch = new AtomicLong(0);
+  private final ConcurrentLinkedQueue<AtomicLong> announced = new ConcurrentLinkedQueue<AtomicLong>();
+  private final ThreadLocal<AtomicLong> threadEpoch = new ThreadLocal<AtomicLong>() {
+    @Override
+    protected AtomicLong initialValue() {
+      AtomicLong r = new AtomicLong(Long.MAX_VALUE);
+      announced.add(r);
+      return r;
+    }
+  };
+
+  private final AtomicInteger size = new AtomicInteger(0);
+
+  private final int numProjections;
+  private final ProjectionType projectionType;
+
+  // See ProjectionSearch.
+  private volatile int searchSize;
+  private volatile int minVotes = 1;
+  private volatile double boundFactor = 1;
+
+  // Buffers reused from one search to the next by each thread.  entries maps the ids of the
+  // candidates of a search to their vectors and found has the entries of the results.
+  private final ThreadLocal<TopKHeap> heap = new ThreadLocal<TopKHeap>() {
+    @Override
+    protected TopKHeap initialValue() {
+      return new TopKHeap(0);
+    }
+  };
+  private final ThreadLocal<double[]> projections = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[numProjections];
+    }
+  };
+  private final ThreadLocal<CandidateSet> candidates = new ThreadLocal<CandidateSet>() {
+    @Override
+    protected CandidateSet initialValue() {
+      return new CandidateSet();
+    }
+  };
+  private final ThreadLocal<Entry[]> entries = new ThreadLocal<Entry[]>() {
+    @Override
+    protected Entry[] initialValue() {
+      return new Entry[16];
+    }
+  };
+  private final ThreadLocal<List<Entry>> found = new ThreadLocal<List<Entry>>() {
+    @Override
+    protected List<Entry> initialValue() {
+      return Lists.newArrayList();
+    }
+  };
+  private final ThreadLocal<List<ScalarProjection>> window =
+      new ThreadLocal<List<ScalarProjection>>() {
+        @Override
+        protected List<ScalarProjection> initialValue() {
+          return Lists.newArrayList();
+        }
+      };
+
+  public ConcurrentProjectionSearch(DistanceMeasure distanceMeasure, int numProjections,
+                                    int searchSize) {
+    this(distanceMeasure, numProjections, searchSize, ProjectionType.DENSE);
+  }
+
+  /**
+   * @param projectionType How the vectors to project on are generated.
+   */
+  public ConcurrentProjectionSearch(DistanceMeasure distanceMeasure, int numProjections,
+                                    int searchSize, ProjectionType projectionType) {
+    super(distanceMeasure);
+    Preconditions.checkArgument(numProjections > 0 && numProjections < 100,
+        "Unreasonable value for number of projections");
+    this.numProjections = numProjections;
+    this.searchSize = searchSize;
+    this.projectionType = projectionType;
+    for (int i = 0; i < numProjections; ++i) {
+      scalarProjections.add(new ConcurrentSkipListSet<ScalarProjection>(ORDER));
+    }
+  }
+
+  private ProjectionBasis initialize(int numDimensions) {
+    ProjectionBasis r = basis;
+    if (r == null) {
+      synchronized (this) {
+        r = basis;
+        if (r == null) {
+          r = ProjectionBasis.generate(projectionType, numDimensions, numProjections);
+          basis = r;
+        }
+      }
+    }
+    Preconditions.checkArgument(numDimensions == r.numDimensions(),
+        "Invalid dimension of vector to add. Expected " + r.numDimensions()
+            + " Got " + numDimensions);
+    return r;
+  }
+
+  @Override
+  public void add(Vector v) {
+    double[] projections = this.projections.get();
+    initialize(v.size()).project(v, projections, 0);
+    boolean outermost = enter();
+    try {
+      add(v, projections, 0);
+    } finally {
+      exit(outermost);
+    }
+  }
+
+  /**
+   * Announces the epoch the current operation of this thread started in, unless it is part of
+   * another operation that already did.
+   *
+   * @return Whether this is the outermost operation, which has to call exit when it is done.
+   */
+  private boolean enter() {
+    AtomicLong announcement = threadEpoch.get();
+    if (announcement.get() != Long.MAX_VALUE) {
+      return false;
+    }
+    announcement.set(epoch.get());
+    return true;
+  }
+
+  private void exit(boolean outermost) {
+    if (outermost) {
+      threadEpoch.get().set(Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Returns an id for a new vector: the id of the vector removed first if no operation that was
+   * running when it was removed is still running, or else an id never used.
+   */
+  private int newId() {
+    RemovedId oldest = removedIds.peek();
+    if (oldest != null) {
+      long earliest = Long.MAX_VALUE;
+      for (AtomicLong announcement : announced) {
+        earliest = Math.min(earliest, announcement.get());
+      }
+      if (oldest.epoch < earliest && removedIds.remove(oldest)) {
+        return oldest.id;
+      }
+    }
+    return nextId.getAndIncrement();
+  }
+
+  /**
+   * Adds vectors a block at a time, projecting each block with one product by the basis.
+   */
+  @Override
+  public void addAll(Iterable<? extends Vector> data) {
+    List<Vector> block = Lists.newArrayListWithCapacity(ProjectionBasis.BLOCK_SIZE);
+    double[] projections = new double[ProjectionBasis.BLOCK_SIZE * numProjections];
+    for (Vector v : data) {
+      initialize(v.size());
+      block.add(v);
+      if (block.size() == ProjectionBasis.BLOCK_SIZE) {
+        addBlock(block, projections);
+      }
+    }
+    addBlock(block, projections);
+  }
+
+  private void addBlock(List<Vector> block, double[] projections) {
+    if (!block.isEmpty()) {
+      basis.project(block, 0, block.size(), projections, 0);
+      boolean outermost = enter();
+      try {
+        for (int k = 0; k < block.size(); ++k) {
+          add(block.get(k), projections, k * numProjections);
+        }
+      } finally {
+        exit(outermost);
+      }
+      block.clear();
+    }
+  }
+
+  /**
+   * Adds a vector whose projections are already computed.  The caller has to have called enter.
+   */
+  private void add(Vector v, double[] projections, int offset) {
+    Entry entry = new Entry(v, usesSquaredNorms() ? v.getLengthSquared() : 0, newId(),
+        numProjections);
+    for (int i = 0; i < numProjections; ++i) {
+      entry.projections[i] = new ScalarProjection(projections[offset + i], entry);
+    }
+    for (int i = 0; i < numProjections; ++i) {
+      scalarProjections.get(i).add(entry.projections[i]);
+    }
+    size.incrementAndGet();
+    if (entry.removed.get()) {
+      // Another thread found the vector and removed it before all its projections were in.
+      for (int i = 0; i < numProjections; ++i) {
+        scalarProjections.get(i).remove(entry.projections[i]);
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public List<WeightedThing<Vector>> search(Vector query, int limit) {
+    List<Entry> found = this.found.get();
+    boolean outermost = enter();
+    try {
+      TopKHeap top = searchEntries(query, limit, found);
+      List<WeightedThing<Vector>> results = Lists.newArrayListWithCapacity(found.size());
+      for (int i = 0; i < found.size(); ++i) {
+        results.add(new WeightedThing<Vector>(found.get(i).vector, top.distance(i)));
+      }
+      found.clear();
+      return results;
+    } finally {
+      exit(outermost);
+    }
+  }
+
+  /**
+   * Searches for the closest limit vectors.  The caller has to have called enter.
+   *
+   * @param found Filled with the entries of the vectors found, from the closest one.
+   * @return A heap of their ids and distances, sorted in the same order.
+   */
+  private TopKHeap searchEntries(Vector query, int limit, List<Entry> found) {
+    TopKHeap top = heap.get();
+    top.reset(limit);
+    found.clear();
+    ProjectionBasis basis = this.basis;
+    if (basis == null) {
+      return top;
+    }
+    // Vectors added after this point might have ids that don't fit in the buffers and are left
+    // out of this search.
+    int capacity = nextId.get();
+    CandidateSet candidates = this.candidates.get();
+    candidates.reset(capacity, basis.isOrthonormal());
+    Entry[] entries = this.entries.get();
+    if (entries.length < capacity) {
+      entries = new Entry[Math.max(capacity, 2 * entries.length)];
+      this.entries.set(entries);
+    }
+    List<ScalarProjection> window = this.window.get();
+    double[] projections = this.projections.get();
+    basis.project(query, projections, 0);
+
+    for (int i = 0; i < numProjections; ++i) {
+      NavigableSet<ScalarProjection> s = scalarProjections.get(i);
+      ScalarProjection projectedQuery = new ScalarProjection(projections[i], null);
+      window.clear();
+      // The gaps to the first projections on either side that are outside the window.
+      double edge = Math.min(
+          scan(s.tailSet(projectedQuery, true).iterator(), projectedQuery, capacity, window),
+          scan(s.headSet(projectedQuery, false).descendingIterator(), projectedQuery, capacity,
+              window));
+      edge = Double.isInfinite(edge) ? 0 : edge;
+      candidates.addEdge(edge);
+      for (ScalarProjection candidate : window) {
+        if (candidates.add(candidate.entry.id,
+            Math.abs(candidate.projection - projectedQuery.projection), edge)) {
+          entries[candidate.entry.id] = candidate.entry;
+        }
+      }
+    }
+    int numCandidates = candidates.prune(minVotes, limit);
+
+    double queryNorm = usesSquaredNorms() ? query.getLengthSquared() : 0;
+    double boundFactor = this.boundFactor;
+    for (int i = 0; i < numCandidates; ++i) {
+      Entry entry = entries[candidates.get(i)];
+      if (boundedDistance != null && boundFactor > 0 && top.threshold()
+          < boundedDistance.fromEuclideanBound(boundFactor * candidates.lowerBound(entry.id))) {
+        // The candidates are ordered by bound so none of the others can make it either.
+        break;
+      }
+      if (!entry.removed.get()) {
+        top.offer(entry.id, distance(query, queryNorm, entry.vector, entry.squaredNorm,
+            top.threshold()));
+      }
+    }
+    top.sort();
+    for (int i = 0; i < top.size(); ++i) {
+      found.add(entries[top.id(i)]);
+    }
+    // Don't hold on to vectors that might be removed.
+    for (int i = 0; i < numCandidates; ++i) {
+      entries[candidates.get(i)] = null;
+    }
+    return top;
+  }
+
+  /**
+   * Adds up to searchSize projections of vectors that aren't being removed to the window and
+   * returns the gap between the query and the next one, or infinity if there is none.
+   */
+  private double scan(Iterator<ScalarProjection> projections, ScalarProjection projectedQuery,
+                      int capacity, List<ScalarProjection> window) {
+    int n = 0;
+    while (projections.hasNext()) {
+      ScalarProjection x = projections.next();
+      if (x.entry.removed.get() || x.entry.id >= capacity) {
+        continue;
+      }
+      if (n == searchSize) {
+        return Math.abs(x.projection - projectedQuery.projection);
+      }
+      window.add(x);
+      ++n;
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Removes the vector closest to v if it is within epsilon of it.  If another thread removes the
+   * same vector first, the next closest one is tried.
+   */
+  @Override
+  public boolean remove(Vector v, double epsilon) {
+    List<Entry> found = this.found.get();
+    boolean outermost = enter();
+    try {
+      while (true) {
+        searchEntries(v, 1, found);
+        if (found.isEmpty() || distanceMeasure.distance(found.get(0).vector, v) > epsilon) {
+          found.clear();
+          return false;
+        }
+        Entry entry = found.get(0);
+        found.clear();
+        if (remove(entry)) {
+          return true;
+        }
+      }
+    } finally {
+      exit(outermost);
+    }
+  }
+
+  /**
+   * Moves a vector to its new value without searching for it.  Its projection on the first basis
+   * vector is the same as when it was added and leads straight to its entry, which is removed
+   * before the new value is added.  A search running at the same time may find neither.  If v
+   * isn't the vector that was added but only equal to it, it is removed with a search.
+   */
+  @Override
+  public boolean update(Vector v, Vector newValue) {
+    ProjectionBasis basis = this.basis;
+    if (basis == null) {
+      return false;
+    }
+    initialize(newValue.size());
+    double[] projections = this.projections.get();
+    basis.project(v, projections, 0);
+    boolean outermost = enter();
+    try {
+      for (ScalarProjection x : scalarProjections.get(0).tailSet(
+          new ScalarProjection(projections[0], null), true)) {
+        if (x.projection != projections[0]) {
+          break;
+        }
+        if (x.entry.vector == v && !x.entry.removed.get()) {
+          if (!remove(x.entry)) {
+            // Another thread removed it first.
+            return false;
+          }
+          basis.project(newValue, projections, 0);
+          add(newValue, projections, 0);
+          return true;
+        }
+      }
+      return super.update(v, newValue);
+    } finally {
+      exit(outermost);
+    }
+  }
+
+  /**
+   * Removes an entry unless another thread already started to.  Its id is only reused once the
+   * operations that were running meanwhile are done (see newId).
+   */
+  private boolean remove(Entry entry) {
+    if (!entry.removed.compareAndSet(false, true)) {
+      return false;
+    }
+    for (int i = 0; i < numProjections; ++i) {
+      scalarProjections.get(i).remove(entry.projections[i]);
+    }
+    size.decrementAndGet();
+    removedIds.add(new RemovedId(entry.id, epoch.getAndIncrement()));
+    return true;
+  }
+
+  /**
+   * Removes all the vectors.  Vectors added by other threads at the same time may be kept.  Every
+   * skip list is walked, since a vector still being added may not be in all of them yet.
+   */
+  @Override
+  public void clear() {
+    for (NavigableSet<ScalarProjection> projections : scalarProjections) {
+      for (ScalarProjection x : projections) {
+        remove(x.entry);
+      }
+    }
+  }
+
+  /**
+   * Iterates over the vectors, which may or may not include the ones added and removed while
+   * iterating.
+   */
+  @Override
+  public Iterator<Vector> iterator() {
+    final Iterator<ScalarProjection> projected = scalarProjections.get(0).iterator();
+    return new AbstractIterator<Vector>() {
+      @Override
+      protected Vector computeNext() {
+        while (projected.hasNext()) {
+          Entry entry = projected.next().entry;
+          if (!entry.removed.get()) {
+            return entry.vector;
+          }
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  public int getSearchSize() {
+    return searchSize;
+  }
+
+  public void setSearchSize(int searchSize) {
+    this.searchSize = searchSize;
+  }
+
+  public int getMinVotes() {
+    return minVotes;
+  }
+
+  /**
+   * See ProjectionSearch.setMinVotes.
+   */
+  public void setMinVotes(int minVotes) {
+    Preconditions.checkArgument(minVotes > 0 && minVotes <= numProjections,
+        "Minimum number of votes must be between 1 and the number of projections");
+    this.minVotes = minVotes;
+  }
+
+  public double getBoundFactor() {
+    return boundFactor;
+  }
+
+  /**
+   * See ProjectionSearch.setBoundFactor.
+   */
+  public void setBoundFactor(double boundFactor) {
+    Preconditions.checkArgument(boundFactor >= 0, "Bound factor can't be negative");
+    this.boundFactor = boundFactor;
+  }
+}
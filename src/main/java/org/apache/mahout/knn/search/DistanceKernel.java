@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+
+import java.lang.reflect.Method;
+
+/**
+ * Scores one query against many packed rows (see PackedRows) in a single call instead of going
+ * through DistanceMeasure.distance one pair of Vectors at a time.
+ *
+ * A kernel computes scores rather than distances.  A score is a monotonic function of the
+ * distance that is cheaper to compute, such as the squared distance for Euclidean distance, so
+ * the order of the scores is the order of the distances.  toDistance and toScore convert between
+ * the two.
+ *
+ * The loops here are plain Java over contiguous arrays, written so that the JIT can unroll and
+ * vectorize them.  When the classes built on JDK 17 or later include VectorKernels and the JVM
+ * was started with --add-modules jdk.incubator.vector, the kernels are instead the ones of
+ * VectorKernels, which use the Vector API.  Setting the system property knn.vectorKernels to
+ * false keeps the plain ones.
+ */
+public abstract class DistanceKernel {
+  // The class of the Vector API kernels, or null if they can't be used.  Must come before the
+  // kernels.
+  private static final Class<?> VECTOR_KERNELS = vectorKernels();
+
+  public static final DistanceKernel SQUARED_EUCLIDEAN =
+      bounded(BoundedDistance.SQUARED_EUCLIDEAN);
+  public static final DistanceKernel EUCLIDEAN = bounded(BoundedDistance.EUCLIDEAN);
+  public static final DistanceKernel MANHATTAN = bounded(BoundedDistance.MANHATTAN);
+  public static final DistanceKernel COSINE = cosine();
+
+  /**
+   * Returns the kernel that computes the same distance as a measure, or null if there is none.
+   */
+  public static DistanceKernel forMeasure(DistanceMeasure distanceMeasure) {
+    BoundedDistance bounded = BoundedDistance.forMeasure(distanceMeasure);
+    if (bounded == BoundedDistance.SQUARED_EUCLIDEAN) {
+      return SQUARED_EUCLIDEAN;
+    } else if (bounded == BoundedDistance.EUCLIDEAN) {
+      return EUCLIDEAN;
+    } else if (bounded == BoundedDistance.MANHATTAN) {
+      return MANHATTAN;
+    } else if (distanceMeasure.getClass() == CosineDistanceMeasure.class) {
+      return COSINE;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether the kernels use the Vector API (see VectorKernels).
+   */
+  public static boolean usesVectorApi() {
+    return VECTOR_KERNELS != null;
+  }
+
+  private static Class<?> vectorKernels() {
+    if (!Boolean.parseBoolean(System.getProperty("knn.vectorKernels", "true"))) {
+      return null;
+    }
+    try {
+      // Loading the class fails if it wasn't compiled or the incubator module isn't there.
+      return Class.forName("org.apache.mahout.knn.search.VectorKernels");
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+
+  private static DistanceKernel bounded(BoundedDistance distance) {
+    DistanceKernel vectorKernel = vectorKernel("bounded", distance);
+    return vectorKernel != null ? vectorKernel : new BoundedKernel(distance);
+  }
+
+  private static DistanceKernel cosine() {
+    DistanceKernel vectorKernel = vectorKernel("cosine", null);
+    return vectorKernel != null ? vectorKernel : new CosineKernel();
+  }
+
+  // Calls one of the factory methods of VectorKernels, returning null if that isn't possible.
+  private static DistanceKernel vectorKernel(String method, BoundedDistance distance) {
+    if (VECTOR_KERNELS == null) {
+      return null;
+    }
+    try {
+      if (distance == null) {
+        Method factory = VECTOR_KERNELS.getDeclaredMethod(method);
+        factory.setAccessible(true);
+        return (DistanceKernel) factory.invoke(null);
+      } else {
+        Method factory = VECTOR_KERNELS.getDeclaredMethod(method, BoundedDistance.class);
+        factory.setAccessible(true);
+        return (DistanceKernel) factory.invoke(null, distance);
+      }
+    } catch (ReflectiveOperationException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Scores a single packed row.
+   *
+   * @param query            The query with its values in the order of the packed rows.
+   * @param queryOffset      Where the query starts in query.
+   * @param querySquaredNorm The squared Euclidean norm of the query.
+   * @param block            The block holding the row.
+   * @param squaredNorms     The squared Euclidean norms of the rows of the block.
+   * @param row              The number of the row in the block.
+   * @param dimension        The dimension of the query and rows.
+   * @param bound            Only scores up to bound matter.  A row whose score is larger may be
+   *                         given any score larger than bound.
+   * @return The score of the row.
+   */
+  public abstract double score(double[] query, int queryOffset, double querySquaredNorm,
+                               double[] block, double[] squaredNorms, int row, int dimension,
+                               double bound);
+
+  /**
+   * Scores the consecutive packed rows firstRow to firstRow + numRows - 1 of a block.  The
+   * arguments are the same as for score.
+   *
+   * @param scores Where the numRows scores are stored.
+   */
+  public void scores(double[] query, double querySquaredNorm, double[] block,
+                     double[] squaredNorms, int firstRow, int numRows, int dimension,
+                     double bound, double[] scores) {
+    for (int r = 0; r < numRows; ++r) {
+      scores[r] = score(query, 0, querySquaredNorm, block, squaredNorms, firstRow + r, dimension,
+          bound);
+    }
+  }
+
+  /**
+   * Returns whether scores can be computed from the dot product of the query and a vector and
+   * their squared norms (see dotScore).
+   */
+  public boolean usesDotProducts() {
+    return false;
+  }
+
+  /**
+   * Scores a vector from its dot product with the query and the squared norms of both, so that a
+   * vector whose squared norm is kept costs a single dot product to score.
+   *
+   * @param dot              The dot product of the query and the vector.
+   * @param squaredNorm      The squared Euclidean norm of the vector.
+   * @param querySquaredNorm The squared Euclidean norm of the query.
+   * @param dimension        The dimension of the query and vector.
+   * @param bound            Only scores up to bound matter.
+   * @return The score, a value larger than bound if the score is certainly larger than bound, or
+   * NaN if the round-off of this form could matter and the score must be computed directly.
+   */
+  public double dotScore(double dot, double squaredNorm, double querySquaredNorm, int dimension,
+                         double bound) {
+    return Double.NaN;
+  }
+
+  /**
+   * Converts a score to a distance in the units of the measure.
+   */
+  public abstract double toDistance(double score);
+
+  /**
+   * Converts a distance in the units of the measure to a score.
+   */
+  public abstract double toScore(double distance);
+
+  /**
+   * Kernels for the distances that can be abandoned part way (see BoundedDistance).  The scores
+   * are the sums accumulated by the bounded distance.
+   */
+  static class BoundedKernel extends DistanceKernel {
+    private final BoundedDistance distance;
+
+    BoundedKernel(BoundedDistance distance) {
+      this.distance = distance;
+    }
+
+    @Override
+    public double score(double[] query, int queryOffset, double querySquaredNorm, double[] block,
+                        double[] squaredNorms, int row, int dimension, double bound) {
+      return distance.accumulate(query, queryOffset, block, row * dimension, dimension, bound);
+    }
+
+    @Override
+    public boolean usesDotProducts() {
+      return distance.sumsSquares();
+    }
+
+    /**
+     * The squared distance is ||x||^2 - 2 x.q + ||q||^2, but with round-off relative to the norms
+     * rather than to the distance.  That is plenty to show that a vector is too far away, but
+     * vectors that could be within bound are left to be scored directly.
+     */
+    @Override
+    public double dotScore(double dot, double squaredNorm, double querySquaredNorm, int dimension,
+                           double bound) {
+      if (!distance.sumsSquares()) {
+        return Double.NaN;
+      }
+      double estimate = squaredNorm - 2 * dot + querySquaredNorm;
+      double error = 4 * (dimension + 2) * Math.ulp(1.0) * (squaredNorm + querySquaredNorm + bound);
+      return estimate - error > bound ? estimate : Double.NaN;
+    }
+
+    @Override
+    public double toDistance(double score) {
+      return distance.fromAccumulated(score);
+    }
+
+    @Override
+    public double toScore(double distance) {
+      return this.distance.toAccumulated(distance);
+    }
+  }
+
+  /**
+   * Cosine distance, 1 - x.q / (|x| |q|), using the squared norms kept with the rows.  The score is
+   * the distance.  Rows are scored four at a time so that each value of the query is loaded once
+   * for four rows.
+   */
+  static class CosineKernel extends DistanceKernel {
+    @Override
+    public double score(double[] query, int queryOffset, double querySquaredNorm, double[] block,
+                        double[] squaredNorms, int row, int dimension, double bound) {
+      return cosineDistance(PackedRows.dot(block, row * dimension, query, queryOffset, dimension),
+          squaredNorms[row], querySquaredNorm);
+    }
+
+    @Override
+    public void scores(double[] query, double querySquaredNorm, double[] block,
+                       double[] squaredNorms, int firstRow, int numRows, int dimension,
+                       double bound, double[] scores) {
+      int r = 0;
+      for (; r + 4 <= numRows; r += 4) {
+        int x0 = (firstRow + r) * dimension;
+        int x1 = x0 + dimension;
+        int x2 = x1 + dimension;
+        int x3 = x2 + dimension;
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        for (int i = 0; i < dimension; ++i) {
+          double q = query[i];
+          s0 += block[x0 + i] * q;
+          s1 += block[x1 + i] * q;
+          s2 += block[x2 + i] * q;
+          s3 += block[x3 + i] * q;
+        }
+        scores[r] = cosineDistance(s0, squaredNorms[firstRow + r], querySquaredNorm);
+        scores[r + 1] = cosineDistance(s1, squaredNorms[firstRow + r + 1], querySquaredNorm);
+        scores[r + 2] = cosineDistance(s2, squaredNorms[firstRow + r + 2], querySquaredNorm);
+        scores[r + 3] = cosineDistance(s3, squaredNorms[firstRow + r + 3], querySquaredNorm);
+      }
+      for (; r < numRows; ++r) {
+        scores[r] = score(query, 0, querySquaredNorm, block, squaredNorms, firstRow + r,
+            dimension, bound);
+      }
+    }
+
+    // The same corrections as CosineDistanceMeasure.
+    static double cosineDistance(double dot, double squaredNorm, double querySquaredNorm) {
+      double denominator = Math.sqrt(squaredNorm) * Math.sqrt(querySquaredNorm);
+      // correct for floating-point rounding errors
+      if (denominator < dot) {
+        denominator = dot;
+      }
+      // correct for zero-vector corner case
+      if (denominator == 0 && dot == 0) {
+        return 0;
+      }
+      return 1.0 - dot / denominator;
+    }
+
+    @Override
+    public boolean usesDotProducts() {
+      return true;
+    }
+
+    // This is the same computation as CosineDistanceMeasure, without computing the norms.
+    @Override
+    public double dotScore(double dot, double squaredNorm, double querySquaredNorm, int dimension,
+                           double bound) {
+      return cosineDistance(dot, squaredNorm, querySquaredNorm);
+    }
+
+    @Override
+    public double toDistance(double score) {
+      return score;
+    }
+
+    @Override
+    public double toScore(double distance) {
+      return distance;
+    }
+  }
+}
@@ -1,80 +1,432 @@
 package org.apache.mahout.knn.search;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.WeightedVector;
 import org.apache.mahout.math.random.WeightedThing;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Does approximate nearest neighbor search by projecting the vectors similar to ProjectionSearch.
  * The main difference between this class and the ProjectionSearch is the use of sorted arrays
  * instead of binary search trees to implement the sets of scalar projections.
  *
+ * The projected vectors are kept in an immutable snapshot where each vector has an id, its
+ * position in the snapshot.  For each basis vector, the scalar projections are kept as a sorted
+ * double[] with a parallel int[] of the ids of the projected vectors, so binary searches and
+ * scanning the window of candidates around the query only touch primitive arrays.
+ *
  * Instead of taking log n time to add a vector to each of the vectors, * the pending additions are
  * kept separate and are searched using a brute search. When there are "enough" pending additions,
- * they're committed into the main pool of vectors.
+ * they're committed into the main pool of vectors.  Only the pending additions are sorted and they
+ * are merged into each sorted projection in linear time, dropping removed vectors as they go.
+ *
+ * Committing builds a new snapshot in the background.  Until it is done, searches keep using the
+ * old snapshot and the pending additions, and the new snapshot is swapped in by the first call to
+ * search, add or remove after it is finished.
+ *
+ * Unlike the other searchers, this class is thread safe.  Searches take no lock: they read
+ * optimistically (see StampedLock) and are only done again, with the read lock, if a change was
+ * made while they ran.  Add, remove and swapping in a new snapshot take the write lock only for as
+ * long as it takes to update the pending additions and removals.  The expensive part of
+ * committing, building the snapshot, reads nothing that changes and runs outside the lock.  Only
+ * reindexNow, setDirty and the searches right after setDirty build a snapshot while holding the
+ * write lock.
+ *
+ * Vectors changed in place and passed to updated are set aside like the pending additions until
+ * the next snapshot projects them again: searches skip their old projections and score them
+ * exactly.  A snapshot is never changed once built, so searches never see one half changed.
+ *
+ * Optionally, the projected vectors are also kept as int8 or float16 codes (see QuantizedRows).
+ * The candidates found through the projections are then scored with the codes first and only
+ * QuantizedRows.RERANK_FACTOR times the number of results wanted are compared exactly.
+ *
+ * Candidates can also be dropped before they are scored because they are close to the query on
+ * too few projections or because their projections alone show they are too far away.  See
+ * setMinVotes and setBoundFactor.
+ *
+ * A searcher can be saved to a file and opened again without projecting or sorting anything, and
+ * the vectors of the file are memory mapped rather than read.  See save and open.
  */
 public class FastProjectionSearch extends UpdatableSearcher {
-  // The list of vectors that have not yet been projected (that are pending).
-  private List<Vector> pendingAdditions = Lists.newArrayList();
+  /**
+   * The projected vectors and everything computed from them.  Never changed once built.
+   */
+  private static final class Snapshot {
+    // The vectors by id.  Those that are rows of a file opened by open are null here and are
+    // kept mapped instead.
+    final List<Vector> vectors;
 
-  // The list of basis vectors. Populated when the first vector's dimension is know by calling
-  // initialize once.
-  private List<Vector> basisVectors = null;
+    // The squared norms of the vectors by id if distances are computed from dot products.
+    final double[] squaredNorms;
+
+    // The sorted scalar projections of the vectors on each basis vector, and the ids of the
+    // vectors in the same order.  projections[i][j] is the projection of vector ids[i][j] on
+    // basis vector i.
+    final double[][] projections;
+    final int[][] ids;
+
+    // The quantized copies of the vectors, row i being vector i, or null if not quantized.
+    final QuantizedRows quantizedRows;
+
+    // The rows of the file some of the vectors come from and the row of each id in it, -1 for
+    // the vectors on the heap.  Both are null if none of the vectors come from a file.
+    final MappedRows mapped;
+    final int[] mappedRows;
+
+    // The vectors on the heap by reference, so that a vector can be found even once it has
+    // changed: an open addressing table of ids plus one, 0 for the empty slots, at most half full.
+    // And the id of each row of the file, -1 for the rows that were removed.
+    final int[] slots;
+    final int[] idsByRow;
+
+    Snapshot(List<Vector> vectors, double[] squaredNorms, double[][] projections, int[][] ids,
+             QuantizedRows quantizedRows) {
+      this(vectors, squaredNorms, projections, ids, quantizedRows, null, null);
+    }
+
+    Snapshot(List<Vector> vectors, double[] squaredNorms, double[][] projections, int[][] ids,
+             QuantizedRows quantizedRows, MappedRows mapped, int[] mappedRows) {
+      this.vectors = vectors;
+      this.squaredNorms = squaredNorms;
+      this.projections = projections;
+      this.ids = ids;
+      this.quantizedRows = quantizedRows;
+      this.mapped = mapped;
+      this.mappedRows = mappedRows;
+      int numVectors = 0;
+      for (Vector v : vectors) {
+        if (v != null) {
+          ++numVectors;
+        }
+      }
+      slots = new int[Integer.highestOneBit(Math.max(1, 2 * numVectors - 1)) << 1];
+      for (int id = 0; id < vectors.size(); ++id) {
+        Vector v = vectors.get(id);
+        if (v != null) {
+          int slot = slot(v);
+          while (slots[slot] != 0) {
+            slot = (slot + 1) & (slots.length - 1);
+          }
+          slots[slot] = id + 1;
+        }
+      }
+      idsByRow = mapped == null ? null : new int[mapped.size()];
+      if (mapped != null) {
+        Arrays.fill(idsByRow, -1);
+        for (int id = 0; id < vectors.size(); ++id) {
+          if (mappedRows[id] >= 0) {
+            idsByRow[mappedRows[id]] = id;
+          }
+        }
+      }
+    }
+
+    int size() {
+      return vectors.size();
+    }
+
+    /**
+     * Returns the lowest id above after of the very vector given, or -1 if it isn't one of the
+     * vectors of the snapshot or has no other id.  The copies of the rows of a file returned by
+     * MappedRows are found too.
+     */
+    int id(Vector v, int after) {
+      int id = -1;
+      for (int slot = slot(v); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+        int candidate = slots[slot] - 1;
+        if (candidate > after && (id < 0 || candidate < id) && vectors.get(candidate) == v) {
+          id = candidate;
+        }
+      }
+      if (id >= 0 || mapped == null || after >= 0) {
+        return id;
+      }
+      int row = mapped.row(v);
+      return row < 0 ? -1 : idsByRow[row];
+    }
+
+    /**
+     * Returns where the search for a vector starts in the table of vectors.
+     */
+    private int slot(Vector v) {
+      int h = System.identityHashCode(v) * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & (slots.length - 1);
+    }
+
+    /**
+     * Returns the row of the file a vector comes from, or -1 if it is on the heap.
+     */
+    int mappedRow(int id) {
+      return mappedRows == null ? -1 : mappedRows[id];
+    }
+
+    /**
+     * Returns a vector by id.  A vector that comes from a file is copied onto the heap when it is
+     * returned, unless the copy returned before is still used (see MappedRows).
+     */
+    Vector vector(int id) {
+      int row = mappedRow(id);
+      return row < 0 ? vectors.get(id) : mapped.get(row);
+    }
+
+    List<Vector> values() {
+      return values(vectors, mapped, mappedRows);
+    }
+
+    /**
+     * Returns the vectors by id, with those that come from a file read into copies that aren't
+     * kept, so that the vectors can all be projected, quantized or saved without copying the file
+     * onto the heap for good.
+     */
+    static List<Vector> values(final List<Vector> vectors, final MappedRows mapped,
+                               final int[] mappedRows) {
+      if (mapped == null) {
+        return vectors;
+      }
+      return new AbstractList<Vector>() {
+        @Override
+        public Vector get(int id) {
+          return mappedRows[id] < 0 ? vectors.get(id) : mapped.read(mappedRows[id]);
+        }
+
+        @Override
+        public int size() {
+          return vectors.size();
+        }
+      };
+    }
+  }
+
+  /**
+   * A snapshot being built in the background from the state of the searcher when it was started.
+   */
+  private final class Rebuild implements Callable<Snapshot> {
+    // What the new snapshot is built from.  The removed and changed vectors are copied because
+    // they keep changing while the snapshot is built.
+    final Snapshot old;
+    final BitSet removedAtStart;
+    final BitSet movedAtStart;
+    final Vector[] added;
+
+    // The id of each vector in the new snapshot, -1 if it was left out.  The vectors of the old
+    // snapshot come first, then the added ones.  Set by call.
+    int[] newIds;
 
-  // The list of sorted lists of scalar projections. The outer list has one entry for each basis
-  // vector that all the other vectors will be projected on.
-  // For each basis vector, the inner list has an entry for each vector that has been projected.
-  // These entries are WeightedThing<Vector> where the weight is the value of the scalar
-  // projection and the value is the vector begin referred to.
-  private List<List<WeightedThing<Vector>>> scalarProjections;
+    // The result, once the rebuild has been submitted.
+    Future<Snapshot> result;
 
-  // The number of projection used for approximating the distance.
+    Rebuild(Snapshot old, BitSet removedAtStart, BitSet movedAtStart, Vector[] added) {
+      this.old = old;
+      this.removedAtStart = removedAtStart;
+      this.movedAtStart = movedAtStart;
+      this.added = added;
+    }
+
+    @Override
+    public Snapshot call() {
+      newIds = new int[old.size() + added.length];
+      return build(old, removedAtStart, movedAtStart, added, false, newIds);
+    }
+  }
+
+  // The projected vectors.
+  private Snapshot snapshot;
+
+  // Which vectors of the snapshot have been removed since it was built.
+  private BitSet removed = new BitSet();
+  private int numRemoved = 0;
+
+  // Which vectors of the snapshot have been changed in place since it was built, and their new
+  // squared norms by id.  Their projections in the snapshot are out of date.
+  private BitSet moved = new BitSet();
+  private int numMoved = 0;
+  private double[] movedNorms = null;
+
+  // The vectors added since the snapshot was started and their squared norms.  A removed vector
+  // leaves a null.  While searching, pending vector j has the id snapshot.size() + j.
+  private List<Vector> pending = Lists.newArrayList();
+  private double[] pendingNorms = new double[16];
+  private int numPendingRemoved = 0;
+
+  // The ids of the vectors changed in place since the snapshot being built was started, if any.
+  // The snapshot may have projected them before they changed.
+  private BitSet changed = new BitSet();
+
+  // The snapshot being built in the background, if any.
+  private Rebuild rebuild = null;
+
+  // Guards all the state above.  Changes hold the write lock.  Searches read without a lock and
+  // validate what they read afterwards (see search).
+  private final StampedLock lock = new StampedLock();
+
+  // The basis vectors. Populated when the first vector's dimension is know by calling
+  // initialize once.
+  private ProjectionBasis basis = null;
+
+  // The number of projection used for approximating the distance and how the vectors projected
+  // on are generated.
   private int numProjections;
+  private final ProjectionType projectionType;
 
   // The number of elements to keep on both sides of the closest estimated distance as possible
   // candidates for the best actual distance.
-  private int searchSize;
+  private volatile int searchSize;
 
   // Initially, the dimension of the vectors searched by this searcher is unknown. After adding
   // the first vector, the basis will be initialized. This marks whether initialization has
   // happened or not so we only do it once.
   private boolean initialized = false;
+  private int numDimensions;
 
   // Whether the iterator returned from the searcher was used to modify any of the vectors. This
   // flag must be set manually by calling setDirty after said modification so the internal
   // structures can be updated.
   private boolean dirty = false;
 
-  // Removing vectors from the searcher is done lazily to avoid the linear time cost of removing
-  // elements from an array. This member keeps track of the number of removed vectors (marked as
-  // "impossible" values in the array) so they can be removed when updating the structure.
-  private int numPendingRemovals = 0;
+  // The number of projections a vector has to be a candidate for to be scored, unless that leaves
+  // too few candidates.
+  private volatile int minVotes = 1;
+
+  // How much the lower bounds on the distances of candidates found from their projections are
+  // scaled before being used.  See setBoundFactor.
+  private volatile double boundFactor = 1;
+
+  // How to quantize the projected vectors, or null to score all candidates exactly.
+  private QuantizedRows.Encoding quantization;
+
+  // Buffers reused from one search to the next by each thread.
+  private final ThreadLocal<TopKHeap> heap = new ThreadLocal<TopKHeap>() {
+    @Override
+    protected TopKHeap initialValue() {
+      return new TopKHeap(0);
+    }
+  };
+  private final ThreadLocal<double[]> queryProjections = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[numProjections];
+    }
+  };
+  private final ThreadLocal<CandidateSet> candidates = new ThreadLocal<CandidateSet>() {
+    @Override
+    protected CandidateSet initialValue() {
+      return new CandidateSet();
+    }
+  };
+  private final ThreadLocal<TopKHeap> approximateHeap = new ThreadLocal<TopKHeap>() {
+    @Override
+    protected TopKHeap initialValue() {
+      return new TopKHeap(0);
+    }
+  };
+  // The values of the query and of a row of a file, for scoring the rows of a file.
+  private final ThreadLocal<double[]> queryValues = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[numDimensions];
+    }
+  };
+  private final ThreadLocal<Vector> rowValues = new ThreadLocal<Vector>() {
+    @Override
+    protected Vector initialValue() {
+      return new DenseVector(numDimensions);
+    }
+  };
+  private final ThreadLocal<QuantizedRows.Query> preparedQuery =
+      new ThreadLocal<QuantizedRows.Query>() {
+        @Override
+        protected QuantizedRows.Query initialValue() {
+          return new QuantizedRows.Query();
+        }
+      };
+
+  // Identifies the files written by save and the version of their layout.  The header is
+  // FILE_HEADER_BYTES long, followed by the basis vectors, the squared norms, the projections,
+  // the ids, what kind of vector each vector is and the vectors.
+  private final static int FILE_MAGIC = 0x464b4e4e;
+  private final static int FILE_VERSION = 2;
+  private final static int FILE_HEADER_BYTES = 48;
 
   private final static double ADDITION_THRESHOLD = 0.05;
   private final static double REMOVAL_THRESHOLD = 0.02;
 
+  // The smallest number of vectors worth giving to each thread when reindexing in parallel.
+  private final static int MIN_VECTORS_PER_THREAD = 10000;
+
+  // The number of threads used to reindex the projections.
+  private volatile int reindexThreads = Runtime.getRuntime().availableProcessors();
+
+  // The executor used to build snapshots and to reindex in parallel.  Lives across reindexes.
+  private ExecutorService executor = null;
+
   public FastProjectionSearch(DistanceMeasure distanceMeasure, int numProjections, int searchSize) {
+    this(distanceMeasure, numProjections, searchSize, null);
+  }
+
+  /**
+   * @param quantization How to quantize the projected vectors to score candidates before the
+   *                     exact rerank, or null to score all of them exactly.  Quantization needs
+   *                     Euclidean, squared Euclidean or Manhattan distance.
+   */
+  public FastProjectionSearch(DistanceMeasure distanceMeasure, int numProjections, int searchSize,
+                              QuantizedRows.Encoding quantization) {
+    this(distanceMeasure, numProjections, searchSize, quantization, ProjectionType.DENSE);
+  }
+
+  /**
+   * @param quantization   How to quantize the projected vectors, or null.  See above.
+   * @param projectionType How the vectors to project on are generated.
+   */
+  public FastProjectionSearch(DistanceMeasure distanceMeasure, int numProjections, int searchSize,
+                              QuantizedRows.Encoding quantization,
+                              ProjectionType projectionType) {
     super(distanceMeasure);
     Preconditions.checkArgument(numProjections > 0 && numProjections < 100,
         "Unreasonable value for number of projections");
+    Preconditions.checkArgument(quantization == null || boundedDistance != null,
+        "Quantization needs Euclidean, squared Euclidean or Manhattan distance");
+    this.quantization = quantization;
+    this.projectionType = projectionType;
     this.numProjections = numProjections;
     this.searchSize = searchSize;
-    scalarProjections = Lists.newArrayListWithCapacity(numProjections);
-    for (int i = 0; i < numProjections; ++i) {
-      scalarProjections.add(Lists.<WeightedThing<Vector>>newArrayList());
-    }
+    snapshot = emptySnapshot();
+  }
+
+  private Snapshot emptySnapshot() {
+    return new Snapshot(Collections.<Vector>emptyList(), new double[0],
+        new double[numProjections][0], new int[numProjections][0], null);
   }
 
   private void initialize(int numDimensions) {
     if (initialized) {
       return;
     }
-    basisVectors = ProjectionSearch.generateBasis(numDimensions, numProjections);
+    basis = ProjectionBasis.generate(projectionType, numDimensions, numProjections);
+    this.numDimensions = numDimensions;
     initialized = true;
   }
 
@@ -87,8 +439,28 @@ public class FastProjectionSearch extends UpdatableSearcher {
    */
   @Override
   public void add(Vector v) {
-    initialize(v.size());
-    pendingAdditions.add(v);
+    double squaredNorm = usesSquaredNorms() ? v.getLengthSquared() : 0;
+    long stamp = lock.writeLock();
+    try {
+      initialize(v.size());
+      installRebuild(false);
+      addPending(v, squaredNorm);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Adds a vector to the pending additions.  The caller has to hold the write lock.
+   */
+  private void addPending(Vector v, double squaredNorm) {
+    if (usesSquaredNorms()) {
+      if (pendingNorms.length == pending.size()) {
+        pendingNorms = Arrays.copyOf(pendingNorms, 2 * pendingNorms.length);
+      }
+      pendingNorms[pending.size()] = squaredNorm;
+    }
+    pending.add(v);
   }
 
   /**
@@ -96,7 +468,17 @@ public class FastProjectionSearch extends UpdatableSearcher {
    */
   @Override
   public int size() {
-    return pendingAdditions.size() + scalarProjections.get(0).size() - numPendingRemovals;
+    long stamp = lock.tryOptimisticRead();
+    int size = snapshot.size() - numRemoved + pending.size() - numPendingRemoved;
+    if (lock.validate(stamp)) {
+      return size;
+    }
+    stamp = lock.readLock();
+    try {
+      return snapshot.size() - numRemoved + pending.size() - numPendingRemoved;
+    } finally {
+      lock.unlockRead(stamp);
+    }
   }
 
   /**
@@ -108,138 +490,1207 @@ public class FastProjectionSearch extends UpdatableSearcher {
    */
   @Override
   public List<WeightedThing<Vector>> search(Vector query, int limit) {
-    reindex();
-
-    HashSet<Vector> candidates = Sets.newHashSet();
-    for (int i = 0; i < basisVectors.size(); ++i) {
-      final double projection = basisVectors.get(i).dot(query);
-      List<WeightedThing<Vector>> currProjections = scalarProjections.get(i);
-      int middle = Collections.binarySearch(currProjections,
-          new WeightedThing<Vector>(null, projection));
+    reindexIfNeeded();
+    // The search is done without a lock and thrown away if anything changed meanwhile.  Only then
+    // is it done again with the read lock, which waits for the change to be finished.
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      List<WeightedThing<Vector>> results = null;
+      try {
+        results = results(query, limit);
+      } catch (RuntimeException e) {
+        // What was read may have changed while it was read.  If it didn't, this is a real error.
+        if (lock.validate(stamp)) {
+          throw e;
+        }
+      }
+      if (lock.validate(stamp)) {
+        return results;
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return results(query, limit);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private List<WeightedThing<Vector>> results(Vector query, int limit) {
+    TopKHeap top = searchIds(query, limit);
+    top.sort();
+    List<WeightedThing<Vector>> results = Lists.newArrayListWithCapacity(top.size());
+    for (int i = 0; i < top.size(); ++i) {
+      results.add(new WeightedThing<Vector>(vector(top.id(i)), top.distance(i)));
+    }
+    return results;
+  }
+
+  /**
+   * Searches for the closest limit vectors and returns a heap of their ids.  The ids are only
+   * meaningful as long as nothing changes, so the caller has to hold a lock or validate an
+   * optimistic read once it is done with them.
+   */
+  private TopKHeap searchIds(Vector query, int limit) {
+    Snapshot s = snapshot;
+    CandidateSet candidates = this.candidates.get();
+    candidates.reset(s.size(), basis != null && basis.isOrthonormal());
+    double[] queryProjections = this.queryProjections.get();
+    if (s.size() > 0) {
+      basis.project(query, queryProjections, 0);
+    }
+    for (int i = 0; i < numProjections && s.size() > 0; ++i) {
+      final double projection = queryProjections[i];
+      double[] currProjections = s.projections[i];
+      int[] currIds = s.ids[i];
+      int middle = Arrays.binarySearch(currProjections, projection);
       if (middle < 0) {
         middle = -(middle + 1);
       }
-      for (int j = Math.max(0, middle - searchSize);
-           j < Math.min(currProjections.size(), middle + searchSize + 1); ++j) {
-        if (currProjections.get(j).getValue() == null) {
-          continue;
+      int start = Math.max(0, middle - searchSize);
+      int end = Math.min(s.size(), middle + searchSize + 1);
+      double edge = Math.min(
+          start > 0 ? projection - currProjections[start - 1] : Double.POSITIVE_INFINITY,
+          end < s.size() ? currProjections[end] - projection : Double.POSITIVE_INFINITY);
+      edge = Double.isInfinite(edge) ? 0 : edge;
+      candidates.addEdge(edge);
+      for (int j = start; j < end; ++j) {
+        int id = currIds[j];
+        // The projections of the vectors changed since the snapshot was built are out of date.
+        if (!removed.get(id) && (numMoved == 0 || !moved.get(id))) {
+          candidates.add(id, Math.abs(currProjections[j] - projection), edge);
         }
-        candidates.add(currProjections.get(j).getValue());
       }
     }
+    int numCandidates = candidates.prune(minVotes, limit);
 
-    List<WeightedThing<Vector>> top =
-        Lists.newArrayListWithCapacity(candidates.size() + pendingAdditions.size());
-    for (Vector candidate : Iterables.concat(candidates, pendingAdditions)) {
-      top.add(new WeightedThing<Vector>(candidate, distanceMeasure.distance(candidate, query)));
+    TopKHeap top = heap.get();
+    top.reset(limit);
+    double queryNorm = usesSquaredNorms() ? query.getLengthSquared() : 0;
+    double[] q = null;
+    if (s.mapped != null) {
+      q = queryValues.get();
+      for (int i = 0; i < numDimensions; ++i) {
+        q[i] = query.getQuick(i);
+      }
+    }
+    if (s.quantizedRows == null) {
+      for (int i = 0; i < numCandidates; ++i) {
+        int id = candidates.get(i);
+        if (outOfReach(candidates.lowerBound(id), top)) {
+          // The candidates are ordered by bound so none of the others can make it either.
+          break;
+        }
+        top.offer(id, exactDistance(s, query, q, queryNorm, id, top.threshold()));
+      }
+    } else {
+      // Score the projected candidates with their codes and rerank the best of them exactly.
+      QuantizedRows.Query prepared = s.quantizedRows.prepare(query, preparedQuery.get());
+      TopKHeap approximate = approximateHeap.get();
+      approximate.reset(limit * QuantizedRows.RERANK_FACTOR);
+      for (int i = 0; i < numCandidates; ++i) {
+        int id = candidates.get(i);
+        approximate.offer(id, s.quantizedRows.distance(id, prepared));
+      }
+      for (int i = 0; i < approximate.size(); ++i) {
+        int id = approximate.id(i);
+        if (!outOfReach(candidates.lowerBound(id), top)) {
+          top.offer(id, exactDistance(s, query, q, queryNorm, id, top.threshold()));
+        }
+      }
     }
-    Collections.sort(top);
+    // The pending additions have no projections or codes yet so they are all scored exactly, and
+    // so are the vectors that changed.  Those are never rows of a file.
+    for (int j = 0; j < pending.size(); ++j) {
+      if (pending.get(j) != null) {
+        top.offer(s.size() + j,
+            exactDistance(s, query, q, queryNorm, s.size() + j, top.threshold()));
+      }
+    }
+    for (int id = moved.nextSetBit(0); id >= 0; id = moved.nextSetBit(id + 1)) {
+      top.offer(id, distance(query, queryNorm, s.vectors.get(id),
+          usesSquaredNorms() ? movedNorms[id] : 0, top.threshold()));
+    }
+    return top;
+  }
 
-    return top.subList(0, Math.min(top.size(), limit));
+  /**
+   * Returns whether the lower bound on the Euclidean distance of a candidate found from its
+   * projections shows that it is too far away to be one of the results kept so far.
+   */
+  private boolean outOfReach(double lowerBound, TopKHeap top) {
+    return boundedDistance != null && boundFactor > 0
+        && boundedDistance.fromEuclideanBound(boundFactor * lowerBound) > top.threshold();
   }
 
-  @Override
-  public boolean remove(Vector v, double epsilon) {
-    WeightedThing<Vector> closestPair = search(v, 1).get(0);
-    if (distanceMeasure.distance(closestPair.getValue(), v) > epsilon) {
-      return false;
+  /**
+   * Returns the vector with the given id, counting the pending additions after the snapshot.
+   */
+  private Vector vector(int id) {
+    int n = snapshot.size();
+    return id < n ? snapshot.vector(id) : pending.get(id - n);
+  }
+
+  /**
+   * Computes the distance between the query and a vector of a snapshot or a pending addition.
+   *
+   * @param q The values of the query if the snapshot has vectors that come from a file.
+   */
+  private double exactDistance(Snapshot s, Vector query, double[] q, double queryNorm, int id,
+                               double bound) {
+    int n = s.size();
+    double norm = 0;
+    if (usesSquaredNorms()) {
+      norm = id < n ? s.squaredNorms[id] : pendingNorms[id - n];
     }
+    if (id < n && s.mappedRow(id) >= 0) {
+      return mappedDistance(s.mapped, s.mappedRow(id), query, q, queryNorm, norm, bound);
+    }
+    return distance(query, queryNorm, id < n ? s.vectors.get(id) : pending.get(id - n), norm,
+        bound);
+  }
 
-    boolean isProjected = true;
-    for (int i = 0; i < basisVectors.size(); ++i) {
-      final double projection = basisVectors.get(i).dot(v);
-      List<WeightedThing<Vector>> currProjections = scalarProjections.get(i);
-      int middle = Collections.binarySearch(currProjections,
-          new WeightedThing<Vector>(null, projection));
-      if (middle < 0) {
-        isProjected = false;
-        break;
+  /**
+   * Computes the distance between the query and a row of a file straight from the mapped file,
+   * as distance(Vector, double, Vector, double, double) does for vectors.
+   */
+  private double mappedDistance(MappedRows rows, int row, Vector query, double[] q,
+                                double queryNorm, double squaredNorm, double bound) {
+    if (boundedDistance != null) {
+      return boundedDistance.fromAccumulated(
+          rows.accumulate(boundedDistance, q, row, boundedDistance.toAccumulated(bound)));
+    }
+    if (usesSquaredNorms()) {
+      double score = kernel.dotScore(rows.dot(q, row), squaredNorm, queryNorm, numDimensions,
+          kernel.toScore(bound));
+      if (!Double.isNaN(score)) {
+        return kernel.toDistance(score);
       }
-      double oldWeight = currProjections.get(middle).getWeight();
-      scalarProjections.get(i).set(middle, new WeightedThing<Vector>(null, oldWeight));
     }
-    if (isProjected) {
-      ++numPendingRemovals;
+    Vector values = rowValues.get();
+    rows.values(row, values);
+    return distanceMeasure.distance(query, values);
+  }
+
+  @Override
+  public boolean remove(Vector v, double epsilon) {
+    long stamp = lock.writeLock();
+    try {
+      reindex();
+      TopKHeap closest = searchIds(v, 1);
+      if (closest.size() == 0 || distanceMeasure.distance(vector(closest.id(0)), v) > epsilon) {
+        return false;
+      }
+      remove(closest.id(0));
       return true;
+    } finally {
+      lock.unlockWrite(stamp);
     }
+  }
 
-    for (int i = 0; i < pendingAdditions.size(); ++i) {
-      if (distanceMeasure.distance(v, pendingAdditions.get(i)) < epsilon) {
-        pendingAdditions.remove(i);
-        break;
+  /**
+   * Removes the vector with the given id.  The caller has to hold the write lock.
+   */
+  private void remove(int id) {
+    int n = snapshot.size();
+    if (id < n) {
+      removed.set(id);
+      ++numRemoved;
+      if (moved.get(id)) {
+        moved.clear(id);
+        --numMoved;
+      }
+    } else {
+      pending.set(id - n, null);
+      ++numPendingRemoved;
+    }
+  }
+
+  /**
+   * Gives a vector a new value.  If v is the very vector that was added, it is found by reference
+   * with no search, removed and the new value is added to the pending additions.  If v is only
+   * equal to the vector that was added, it is removed with a search.
+   */
+  @Override
+  public boolean update(Vector v, Vector newValue) {
+    double squaredNorm = usesSquaredNorms() ? newValue.getLengthSquared() : 0;
+    long stamp = lock.writeLock();
+    try {
+      int id = find(v);
+      if (id >= 0) {
+        remove(id);
+        addPending(newValue, squaredNorm);
+        return true;
       }
+    } finally {
+      lock.unlockWrite(stamp);
     }
+    // The lock isn't reentrant, so this is done once it is released.
+    return super.update(v, newValue);
+  }
+
+  @Override
+  public boolean canUpdateInPlace() {
     return true;
   }
 
-  private void reindex() {
-    int numProjected = scalarProjections.get(0).size();
-    if (dirty || pendingAdditions.size() > ADDITION_THRESHOLD * numProjected ||
-        numPendingRemovals > REMOVAL_THRESHOLD * numProjected) {
-      // Project every pending vector onto every basis vector.
-      for (Vector pending : pendingAdditions) {
+  /**
+   * Tells the searcher that a vector was changed in place.  The vector is found by reference, with
+   * no search, and nothing is projected or sorted: until the next snapshot projects it again,
+   * searches skip its old projections and score it exactly like a pending addition.  A vector
+   * still pending only needs its squared norm refreshed.  The rows of a file opened by open can't
+   * be changed, so a copy of one that was changed is removed and added to the pending additions
+   * instead.  A vector changed while a snapshot is being built is set aside in that snapshot too
+   * once it is swapped in, so nothing waits for it.  A vector that was added more than once is
+   * refreshed everywhere.
+   */
+  @Override
+  public boolean updated(Vector v) {
+    double squaredNorm = usesSquaredNorms() ? v.getLengthSquared() : 0;
+    long stamp = lock.writeLock();
+    try {
+      return changed(v, squaredNorm);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Does the work of updated.  The caller has to hold the write lock.
+   */
+  private boolean changed(Vector v, double squaredNorm) {
+    Snapshot s = snapshot;
+    int n = s.size();
+    boolean found = false;
+    for (int j = 0; j < pending.size(); ++j) {
+      if (pending.get(j) == v) {
+        found = true;
+        if (usesSquaredNorms()) {
+          pendingNorms[j] = squaredNorm;
+        }
+        if (rebuild != null) {
+          changed.set(n + j);
+        }
+      }
+    }
+    for (int id = s.id(v, -1); id >= 0; id = s.id(v, id)) {
+      if (removed.get(id)) {
+        continue;
+      }
+      found = true;
+      if (s.mappedRow(id) >= 0) {
+        remove(id);
+        addPending(v, squaredNorm);
+        continue;
+      }
+      if (!moved.get(id)) {
+        moved.set(id);
+        ++numMoved;
+      }
+      if (usesSquaredNorms()) {
+        if (movedNorms == null) {
+          movedNorms = new double[n];
+        }
+        movedNorms[id] = squaredNorm;
+      }
+      if (rebuild != null) {
+        changed.set(id);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns the id of the very vector given, or -1 if it isn't searched.  The caller has to hold
+   * the write lock.
+   */
+  private int find(Vector v) {
+    Snapshot s = snapshot;
+    for (int id = s.id(v, -1); id >= 0; id = s.id(v, id)) {
+      if (!removed.get(id)) {
+        return id;
+      }
+    }
+    for (int j = 0; j < pending.size(); ++j) {
+      if (pending.get(j) == v) {
+        return s.size() + j;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Waits for the snapshot being built, if any, and then commits all the pending additions and
+   * removals into a new snapshot before returning.  Searching never needs this but it keeps the
+   * pending additions from being scanned by the next searches.  Searches wait until it is done.
+   */
+  public void reindexNow() {
+    long stamp = lock.writeLock();
+    try {
+      commit();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Commits all the pending changes and writes the basis vectors, the sorted projections and the
+   * vectors to a file that open can map back into a searcher, along with the settings of the
+   * searcher.  The vectors are written as dense rows, with the weight and index of those that are
+   * WeightedVectors or Centroids.  Searches and changes can go on while the file is written.
+   */
+  public void save(File file) throws IOException {
+    Snapshot s;
+    long stamp = lock.writeLock();
+    try {
+      commit();
+      s = snapshot;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    write(s, file);
+  }
+
+  /**
+   * Does the work of save once the snapshot holds all the vectors.
+   */
+  private void write(Snapshot s, File file) throws IOException {
+    int n = s.size();
+    int dimension = initialized ? numDimensions : 0;
+    List<Vector> values = s.values();
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_VERSION);
+      out.writeInt(dimension);
+      out.writeInt(numProjections);
+      out.writeInt(n);
+      out.writeInt(searchSize);
+      out.writeInt(projectionType.ordinal());
+      out.writeInt(initialized && basis.isOrthonormal() ? 1 : 0);
+      out.writeInt(quantization == null ? 0 : quantization.ordinal() + 1);
+      out.writeInt(minVotes);
+      out.writeDouble(boundFactor);
+
+      for (int i = 0; i < numProjections && initialized; ++i) {
+        Vector basisVector = basis.basisVector(i);
+        for (int j = 0; j < dimension; ++j) {
+          out.writeDouble(basisVector.getQuick(j));
+        }
+      }
+      for (int id = 0; id < n; ++id) {
+        out.writeDouble(usesSquaredNorms()
+            ? s.squaredNorms[id] : values.get(id).getLengthSquared());
+      }
+      for (int i = 0; i < numProjections; ++i) {
+        for (int j = 0; j < n; ++j) {
+          out.writeDouble(s.projections[i][j]);
+        }
+      }
+      for (int i = 0; i < numProjections; ++i) {
+        for (int j = 0; j < n; ++j) {
+          out.writeInt(s.ids[i][j]);
+        }
+      }
+      // Keeps the rows aligned on doubles.
+      if ((long) numProjections * n % 2 == 1) {
+        out.writeInt(0);
+      }
+      for (int id = 0; id < n; ++id) {
+        int row = s.mappedRow(id);
+        out.writeInt(row < 0 ? MappedRows.kind(s.vectors.get(id)) : s.mapped.kind(row));
+      }
+      for (int id = 0; id < n; ++id) {
+        int row = s.mappedRow(id);
+        Vector v = row < 0 ? s.vectors.get(id) : null;
+        out.writeInt(row >= 0 ? s.mapped.index(row)
+            : v instanceof WeightedVector ? ((WeightedVector) v).getIndex() : 0);
+      }
+      for (int id = 0; id < n; ++id) {
+        int row = s.mappedRow(id);
+        Vector v = row < 0 ? s.vectors.get(id) : null;
+        out.writeDouble(row >= 0 ? s.mapped.weight(row)
+            : v instanceof WeightedVector ? ((WeightedVector) v).getWeight() : 0);
+      }
+      for (Vector v : values) {
+        for (int j = 0; j < dimension; ++j) {
+          out.writeDouble(v.getQuick(j));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Opens a searcher saved by save, with the same settings.  The basis vectors and the sorted
+   * projections are read in bulk, with no projecting or sorting, and the vectors are memory mapped
+   * so that they are only paged in as searches score them.  Searches score them straight from the
+   * file.  The vectors returned are copies of the rows, as DenseVectors, WeightedVectors or
+   * Centroids like the vectors that were saved, and the same copy of a row is returned again as
+   * long as it is still used.  The file itself is never changed: a copy that is changed in place
+   * and passed to updated or setDirty(Iterable) has its row removed and is added to the pending
+   * additions instead, like a vector passed to add.  Vectors can be added and removed as usual,
+   * and the vectors of the file stay in the file when the projections are rebuilt.
+   *
+   * If the searcher saved quantized its vectors, they are quantized again here, which reads the
+   * whole file once.  That is skipped if the distance measure can't be quantized.
+   *
+   * @param file            The file written by save.
+   * @param distanceMeasure The distance measure to search with.  It doesn't have to be the one
+   *                        the searcher that was saved used.
+   * @throws IOException If the file can't be read or wasn't written by save.
+   */
+  public static FastProjectionSearch open(File file, DistanceMeasure distanceMeasure)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < FILE_HEADER_BYTES) {
+        throw new IOException("Not a FastProjectionSearch index: " + file);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_HEADER_BYTES);
+      if (header.getInt(0) != FILE_MAGIC) {
+        throw new IOException("Not a FastProjectionSearch index: " + file);
+      }
+      if (header.getInt(4) != FILE_VERSION) {
+        throw new IOException("Unsupported FastProjectionSearch index version "
+            + header.getInt(4) + " in " + file);
+      }
+      int dimension = header.getInt(8);
+      int numProjections = header.getInt(12);
+      int n = header.getInt(16);
+      int searchSize = header.getInt(20);
+      int type = header.getInt(24);
+      int orthonormal = header.getInt(28);
+      int encoding = header.getInt(32);
+      int minVotes = header.getInt(36);
+      double boundFactor = header.getDouble(40);
+      if (dimension < 0 || numProjections <= 0 || numProjections >= 100 || n < 0
+          || searchSize < 0 || type < 0 || type >= ProjectionType.values().length
+          || (orthonormal != 0 && orthonormal != 1)
+          || encoding < 0 || encoding > QuantizedRows.Encoding.values().length
+          || minVotes < 1 || minVotes > numProjections || !(boundFactor >= 0)) {
+        throw new IOException("Corrupt FastProjectionSearch index header in " + file);
+      }
+      ProjectionType projectionType = ProjectionType.values()[type];
+      QuantizedRows.Encoding quantization = encoding == 0
+          || BoundedDistance.forMeasure(distanceMeasure) == null
+          ? null : QuantizedRows.Encoding.values()[encoding - 1];
+      FastProjectionSearch search = new FastProjectionSearch(distanceMeasure, numProjections,
+          searchSize, quantization, projectionType);
+      search.setMinVotes(minVotes);
+      search.setBoundFactor(boundFactor);
+
+      long offset = FILE_HEADER_BYTES;
+      if (dimension > 0) {
+        DoubleBuffer values = map(channel, offset, 8L * numProjections * dimension)
+            .asDoubleBuffer();
+        List<Vector> basisVectors = Lists.newArrayList();
         for (int i = 0; i < numProjections; ++i) {
-          final double projection = basisVectors.get(i).dot(pending);
-          scalarProjections.get(i).add(new WeightedThing<Vector>(pending, projection));
+          Vector basisVector = projectionType == ProjectionType.SPARSE
+              ? new RandomAccessSparseVector(dimension) : new DenseVector(dimension);
+          for (int j = 0; j < dimension; ++j) {
+            double x = values.get();
+            if (x != 0) {
+              basisVector.setQuick(j, x);
+            }
+          }
+          basisVectors.add(basisVector);
         }
+        search.basis = new ProjectionBasis(basisVectors, orthonormal != 0);
+        search.numDimensions = dimension;
+        search.initialized = true;
+        offset += 8L * numProjections * dimension;
+      }
+
+      double[] squaredNorms = new double[n];
+      map(channel, offset, 8L * n).asDoubleBuffer().get(squaredNorms);
+      offset += 8L * n;
+      double[][] projections = new double[numProjections][n];
+      for (int i = 0; i < numProjections; ++i) {
+        map(channel, offset, 8L * n).asDoubleBuffer().get(projections[i]);
+        offset += 8L * n;
       }
-      pendingAdditions.clear();
-      // For each basis vector, sort the resulting list (for binary search) and remove the number
-      // of pending removals (it's the same for every basis vector) at the end (the weights are
-      // set to Double.POSITIVE_INFINITY when removing).
+      int[][] ids = new int[numProjections][n];
       for (int i = 0; i < numProjections; ++i) {
-        List<WeightedThing<Vector>> currProjections = scalarProjections.get(i);
-        for (WeightedThing<Vector> v : currProjections) {
-          if (v.getValue() == null) {
-            v.setWeight(Double.POSITIVE_INFINITY);
+        map(channel, offset, 4L * n).asIntBuffer().get(ids[i]);
+        offset += 4L * n;
+        for (int id : ids[i]) {
+          if (id < 0 || id >= n) {
+            throw new IOException("Corrupt FastProjectionSearch index: " + file);
           }
         }
-        Collections.sort(currProjections);
-        for (int j = 0; j < numPendingRemovals; ++j) {
-          currProjections.remove(currProjections.size() - 1);
+      }
+      offset += 4L * ((long) numProjections * n % 2);
+      int[] kinds = new int[n];
+      map(channel, offset, 4L * n).asIntBuffer().get(kinds);
+      offset += 4L * n;
+      for (int kind : kinds) {
+        if (kind != MappedRows.PLAIN && kind != MappedRows.WEIGHTED
+            && kind != MappedRows.CENTROID) {
+          throw new IOException("Corrupt FastProjectionSearch index: " + file);
+        }
+      }
+      int[] indexes = new int[n];
+      map(channel, offset, 4L * n).asIntBuffer().get(indexes);
+      offset += 4L * n;
+      double[] weights = new double[n];
+      map(channel, offset, 8L * n).asDoubleBuffer().get(weights);
+      offset += 8L * n;
+      if (channel.size() < offset + 8L * n * dimension) {
+        throw new IOException("Truncated FastProjectionSearch index: " + file);
+      }
+      MappedRows mapped = new MappedRows(channel, offset, n, dimension, kinds, weights, indexes);
+      int[] mappedRows = new int[n];
+      for (int id = 0; id < n; ++id) {
+        mappedRows[id] = id;
+      }
+      List<Vector> vectors = Collections.nCopies(n, null);
+      QuantizedRows quantizedRows = null;
+      if (quantization != null && n > 0) {
+        quantizedRows = new QuantizedRows(dimension, quantization, search.boundedDistance);
+        quantizedRows.rebuild(Snapshot.values(vectors, mapped, mappedRows));
+      }
+      search.snapshot = new Snapshot(vectors, squaredNorms, projections, ids, quantizedRows,
+          mapped, mappedRows);
+      return search;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length)
+      throws IOException {
+    if (channel.size() < offset + length) {
+      throw new IOException("Truncated FastProjectionSearch index");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+  }
+
+  /**
+   * Does the work of reindexNow.  The caller has to hold the write lock.
+   */
+  private void commit() {
+    installRebuild(true);
+    if (dirty || !pending.isEmpty() || numRemoved > 0 || numMoved > 0) {
+      install(build(snapshot, removed, moved, pending.toArray(new Vector[pending.size()]), dirty,
+          null), null);
+    }
+  }
+
+  /**
+   * Calls reindex if it has anything to do.  The check takes no lock, so searches only wait for
+   * each other when a snapshot has to be swapped in or started.
+   */
+  private void reindexIfNeeded() {
+    long stamp = lock.tryOptimisticRead();
+    boolean needed;
+    try {
+      Rebuild r = rebuild;
+      needed = dirty || (r == null ? needsRebuild() : r.result.isDone());
+    } catch (RuntimeException e) {
+      // Whatever was read changed while it was read.
+      needed = true;
+    }
+    if (!lock.validate(stamp)) {
+      needed = true;
+    }
+    if (needed) {
+      stamp = lock.writeLock();
+      try {
+        reindex();
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+  }
+
+  /**
+   * Swaps in the snapshot being built if it is done, then starts building a new one if there are
+   * enough pending changes.  If the vectors were modified through the iterator, the projections
+   * all have to be computed again and that is done right away.  The caller has to hold the write
+   * lock.
+   */
+  private void reindex() {
+    if (dirty) {
+      // A snapshot started before the modification might be out of date.
+      rebuild = null;
+      commit();
+      return;
+    }
+    installRebuild(false);
+    if (rebuild == null && needsRebuild()) {
+      rebuild = new Rebuild(snapshot, (BitSet) removed.clone(), (BitSet) moved.clone(),
+          pending.toArray(new Vector[pending.size()]));
+      rebuild.result = getExecutor().submit(rebuild);
+    }
+  }
+
+  /**
+   * Returns whether there are enough pending changes to build a new snapshot.  The vectors that
+   * changed cost searches as much as the pending additions.
+   */
+  private boolean needsRebuild() {
+    int n = snapshot.size();
+    return pending.size() + numMoved > ADDITION_THRESHOLD * n || numRemoved > REMOVAL_THRESHOLD * n;
+  }
+
+  /**
+   * Swaps in the snapshot being built in the background if it is finished or if wait is true.
+   */
+  private void installRebuild(boolean wait) {
+    if (rebuild != null && (wait || rebuild.result.isDone())) {
+      Rebuild done = rebuild;
+      rebuild = null;
+      install(get(done.result), done);
+    }
+  }
+
+  /**
+   * Replaces the snapshot with a new one.  If the new snapshot was built in the background, the
+   * vectors removed, added and changed since it was started are carried over to it.
+   *
+   * @param next The new snapshot.
+   * @param from How the snapshot was built in the background, or null if it was built from the
+   *             current state of the searcher.
+   */
+  private void install(Snapshot next, Rebuild from) {
+    BitSet nextRemoved = new BitSet(next.size());
+    BitSet nextMoved = new BitSet(next.size());
+    double[] nextMovedNorms = null;
+    int numAdded = pending.size();
+    if (from != null) {
+      int n = from.old.size();
+      for (int id = removed.nextSetBit(0); id >= 0; id = removed.nextSetBit(id + 1)) {
+        if (!from.removedAtStart.get(id)) {
+          nextRemoved.set(from.newIds[id]);
+        }
+      }
+      numAdded = from.added.length;
+      for (int j = 0; j < numAdded; ++j) {
+        if (pending.get(j) == null && from.added[j] != null) {
+          nextRemoved.set(from.newIds[n + j]);
         }
       }
-      numPendingRemovals = 0;
+      // The vectors changed since the snapshot was started may have been projected before they
+      // changed, so they are set aside in it too.  Those still pending stay pending.
+      for (int id = changed.nextSetBit(0); id >= 0; id = changed.nextSetBit(id + 1)) {
+        boolean searched = id < n ? !removed.get(id)
+            : id - n < numAdded && pending.get(id - n) != null;
+        if (searched && from.newIds[id] >= 0) {
+          nextMoved.set(from.newIds[id]);
+          if (usesSquaredNorms()) {
+            if (nextMovedNorms == null) {
+              nextMovedNorms = new double[next.size()];
+            }
+            nextMovedNorms[from.newIds[id]] = id < n ? movedNorms[id] : pendingNorms[id - n];
+          }
+        }
+      }
+    }
+
+    List<Vector> stillPending = Lists.newArrayList(pending.subList(numAdded, pending.size()));
+    double[] stillPendingNorms = new double[Math.max(16, 2 * stillPending.size())];
+    if (usesSquaredNorms()) {
+      System.arraycopy(pendingNorms, numAdded, stillPendingNorms, 0, stillPending.size());
+    }
+    numPendingRemoved = 0;
+    for (Vector v : stillPending) {
+      if (v == null) {
+        ++numPendingRemoved;
+      }
+    }
+
+    snapshot = next;
+    removed = nextRemoved;
+    numRemoved = nextRemoved.cardinality();
+    moved = nextMoved;
+    numMoved = nextMoved.cardinality();
+    movedNorms = nextMovedNorms;
+    changed = new BitSet();
+    pending = stillPending;
+    pendingNorms = stillPendingNorms;
+    if (from == null) {
+      dirty = false;
     }
   }
 
+  /**
+   * Builds a new snapshot from an old one, leaving out its removed vectors, projecting those that
+   * changed again and adding others.
+   *
+   * @param old       The snapshot to start from.
+   * @param removed   Which vectors of the old snapshot to leave out.
+   * @param moved     Which vectors of the old snapshot changed since it was built.
+   * @param added     The vectors to add.  Nulls are left out.
+   * @param reproject Whether all the projections and norms have to be computed again because the
+   *                  vectors may have been changed.
+   * @param newIds    Filled with the id in the new snapshot of each vector of the old snapshot
+   *                  then each added vector, -1 if it was left out.  May be null.
+   */
+  private Snapshot build(Snapshot old, BitSet removed, BitSet moved, Vector[] added,
+                         boolean reproject, int[] newIds) {
+    int n = old.size();
+    if (newIds == null) {
+      newIds = new int[n + added.length];
+    }
+    // The vectors of the old snapshot that didn't change come first and keep their projections,
+    // unless all of them are projected again.  Those that changed and the added ones follow.
+    int[] order = new int[newIds.length];
+    int size = 0;
+    for (int id = 0; id < n; ++id) {
+      if (!removed.get(id) && !moved.get(id)) {
+        order[size++] = id;
+      }
+    }
+    final int numKept = reproject ? 0 : size;
+    for (int id = moved.nextSetBit(0); id >= 0; id = moved.nextSetBit(id + 1)) {
+      if (!removed.get(id)) {
+        order[size++] = id;
+      }
+    }
+    for (int j = 0; j < added.length; ++j) {
+      if (added[j] != null) {
+        order[size++] = n + j;
+      }
+    }
+
+    Arrays.fill(newIds, -1);
+    final List<Vector> remaining = Lists.newArrayListWithCapacity(size);
+    double[] squaredNorms = new double[usesSquaredNorms() ? size : 0];
+    // The vectors that come from a file stay in the file.
+    int[] mappedRows = old.mapped == null ? null : new int[size];
+    for (int k = 0; k < size; ++k) {
+      int id = order[k];
+      int row = id < n ? old.mappedRow(id) : -1;
+      Vector v = id >= n ? added[id - n] : row < 0 ? old.vectors.get(id) : null;
+      newIds[id] = k;
+      if (mappedRows != null) {
+        mappedRows[k] = row;
+      }
+      if (usesSquaredNorms()) {
+        // The rows of a file can't have been changed.
+        squaredNorms[k] = k >= numKept && row < 0 ? v.getLengthSquared() : old.squaredNorms[id];
+      }
+      remaining.add(v);
+    }
+    final List<Vector> values = Snapshot.values(remaining, old.mapped, mappedRows);
+
+    // The vectors that weren't projected yet are projected on all the basis vectors at once, then
+    // each projection is merged separately.
+    final int numPending = remaining.size() - numKept;
+    final double[] pendingProjections = new double[numPending * numProjections];
+    final double[][] projections = new double[numProjections][];
+    final int[][] ids = new int[numProjections][];
+    int numThreads = Math.min(reindexThreads, numProjections);
+    if (numThreads > 1 && remaining.size() >= MIN_VECTORS_PER_THREAD * numThreads) {
+      List<Callable<Object>> tasks = Lists.newArrayList();
+      int rangeSize = (numPending + numThreads - 1) / numThreads;
+      for (int start = numKept; start < remaining.size(); start += rangeSize) {
+        final int rangeStart = start;
+        final int rangeEnd = Math.min(remaining.size(), start + rangeSize);
+        tasks.add(new Callable<Object>() {
+          @Override
+          public Object call() {
+            basis.project(values, rangeStart, rangeEnd, pendingProjections,
+                (rangeStart - numKept) * numProjections);
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+
+      tasks.clear();
+      final Snapshot from = old;
+      final int[] fromIds = newIds;
+      for (int i = 0; i < numProjections; ++i) {
+        final int projection = i;
+        tasks.add(new Callable<Object>() {
+          @Override
+          public Object call() {
+            reindexProjection(projection, from, fromIds, numKept, pendingProjections,
+                remaining.size(), projections, ids);
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+    } else {
+      basis.project(values, numKept, remaining.size(), pendingProjections, 0);
+      for (int i = 0; i < numProjections; ++i) {
+        reindexProjection(i, old, newIds, numKept, pendingProjections, remaining.size(),
+            projections, ids);
+      }
+    }
+
+    QuantizedRows quantizedRows = null;
+    if (quantization != null && !remaining.isEmpty()) {
+      quantizedRows = new QuantizedRows(numDimensions, quantization, boundedDistance);
+      quantizedRows.rebuild(values);
+    }
+    return new Snapshot(remaining, squaredNorms, projections, ids, quantizedRows, old.mapped,
+        mappedRows);
+  }
+
+  /**
+   * Computes the sorted projections of the vectors of a new snapshot on one basis vector.  Only
+   * the projections of the vectors that weren't projected yet are sorted, then they are merged
+   * with the projections that are kept, dropping those of removed vectors in the same pass.
+   *
+   * @param i                  Which basis vector.
+   * @param old                The snapshot the new one is built from.
+   * @param newIds             The new id of each vector of the old snapshot, -1 if it was removed.
+   * @param numKept            How many of the vectors of the new snapshot have projections that
+   *                           are kept from the old snapshot.  These are the ones with the lowest
+   *                           ids.  The other vectors of the old snapshot are projected again.
+   * @param pendingProjections The projections of the other vectors, in rows of numProjections.
+   * @param size               The number of vectors in the new snapshot.
+   * @param projections        Where to put the projections.
+   * @param ids                Where to put the ids in the same order.
+   */
+  private void reindexProjection(int i, Snapshot old, int[] newIds, int numKept,
+                                 double[] pendingProjections, int size, double[][] projections,
+                                 int[][] ids) {
+    int numPending = size - numKept;
+    double[] pendingValues = new double[numPending];
+    int[] pendingIds = new int[numPending];
+    for (int j = 0; j < numPending; ++j) {
+      pendingValues[j] = pendingProjections[j * numProjections + i];
+      pendingIds[j] = numKept + j;
+    }
+    sort(pendingValues, pendingIds, numPending);
+
+    double[] oldValues = old.projections[i];
+    int[] oldIds = old.ids[i];
+    int oldSize = numKept == 0 ? 0 : old.size();
+    double[] newValues = new double[size];
+    int[] newProjectionIds = new int[size];
+    int j = 0;
+    int k = 0;
+    int n = 0;
+    while (true) {
+      while (j < oldSize && (newIds[oldIds[j]] < 0 || newIds[oldIds[j]] >= numKept)) {
+        ++j;
+      }
+      if (j == oldSize) {
+        break;
+      }
+      if (k < numPending && pendingValues[k] < oldValues[j]) {
+        newValues[n] = pendingValues[k];
+        newProjectionIds[n++] = pendingIds[k++];
+      } else {
+        newValues[n] = oldValues[j];
+        newProjectionIds[n++] = newIds[oldIds[j++]];
+      }
+    }
+    System.arraycopy(pendingValues, k, newValues, n, numPending - k);
+    System.arraycopy(pendingIds, k, newProjectionIds, n, numPending - k);
+
+    projections[i] = newValues;
+    ids[i] = newProjectionIds;
+  }
+
+  /**
+   * Runs tasks on the executor and waits for all of them.
+   */
+  private void invokeAll(List<Callable<Object>> tasks) {
+    try {
+      for (Future<Object> future : getExecutor().invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while reindexing", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for a snapshot built in the background.
+   */
+  private static Snapshot get(Future<Snapshot> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while reindexing", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the executor used to reindex, creating the default one if none was set.
+   */
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("fast-projection-search-%d")
+          .build());
+    }
+    return executor;
+  }
+
+  /**
+   * Sets the executor used to build snapshots in the background and to reindex in parallel.  The
+   * executor is used across calls and is not shut down by this searcher.  It must be able to run
+   * one more task at once than the number of reindex threads.
+   *
+   * If no executor is set, a cached pool of daemon threads is created the first time one is needed.
+   */
+  public synchronized void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public int getSearchSize() {
+    return searchSize;
+  }
+
+  public void setSearchSize(int searchSize) {
+    this.searchSize = searchSize;
+  }
+
+  public int getMinVotes() {
+    return minVotes;
+  }
+
+  /**
+   * Sets how many of the projections a vector has to be a candidate for to be scored.  A vector
+   * close to the query is close to it on most projections, so requiring more than one vote drops
+   * many candidates that are only close on one.  If fewer candidates than the number of results
+   * wanted have enough votes, all of them are scored.  The default is 1, which scores all of them.
+   */
+  public void setMinVotes(int minVotes) {
+    Preconditions.checkArgument(minVotes > 0 && minVotes <= numProjections,
+        "Minimum number of votes must be between 1 and the number of projections");
+    this.minVotes = minVotes;
+  }
+
+  public double getBoundFactor() {
+    return boundFactor;
+  }
+
+  /**
+   * Sets how candidates are skipped because of the gaps between their projections and the
+   * query's.  Those give a lower bound on the Euclidean distance between a candidate and the query
+   * (see CandidateSet), and so on the Euclidean, squared Euclidean and Manhattan distances.  The
+   * candidates are scored from the smallest bound up and, once there are enough results, those
+   * whose bound times this factor is larger than the worst result are skipped.
+   *
+   * With the default of 1, only candidates that couldn't be results are skipped.  Larger factors
+   * skip more of them, at some cost in recall, and 0 scores them all.  Other distances are never
+   * bounded.
+   */
+  public void setBoundFactor(double boundFactor) {
+    Preconditions.checkArgument(boundFactor >= 0, "Bound factor can't be negative");
+    this.boundFactor = boundFactor;
+  }
+
+  public int getReindexThreads() {
+    return reindexThreads;
+  }
+
+  /**
+   * Sets the number of threads used to merge pending additions into the projections.  Each
+   * projection is merged by a single thread, so at most as many threads as there are projections
+   * are used, and only when there are at least MIN_VECTORS_PER_THREAD vectors for each of them.
+   * The default is the number of available processors.
+   */
+  public void setReindexThreads(int reindexThreads) {
+    Preconditions.checkArgument(reindexThreads > 0, "Must use at least one thread to reindex");
+    this.reindexThreads = reindexThreads;
+  }
+
+  /**
+   * Sorts the first n values in increasing order, moving the ids along with them.
+   */
+  static void sort(double[] values, int[] ids, int n) {
+    sort(values, ids, n, new double[n], new int[n]);
+  }
+
+  /**
+   * Sorts the first n values in increasing order, moving the ids along with them, using scratch
+   * arrays at least n long.
+   */
+  static void sort(double[] values, int[] ids, int n, double[] scratchValues, int[] scratchIds) {
+    // A bottom-up merge sort from and to the scratch arrays.
+    double[] fromValues = values;
+    int[] fromIds = ids;
+    double[] toValues = scratchValues;
+    int[] toIds = scratchIds;
+    for (int width = 1; width < n; width *= 2) {
+      for (int start = 0; start < n; start += 2 * width) {
+        int middle = Math.min(start + width, n);
+        int end = Math.min(start + 2 * width, n);
+        merge(fromValues, fromIds, start, middle, fromValues, fromIds, middle, end,
+            toValues, toIds, start);
+      }
+      double[] swapValues = fromValues;
+      fromValues = toValues;
+      toValues = swapValues;
+      int[] swapIds = fromIds;
+      fromIds = toIds;
+      toIds = swapIds;
+    }
+    if (fromValues != values) {
+      System.arraycopy(fromValues, 0, values, 0, n);
+      System.arraycopy(fromIds, 0, ids, 0, n);
+    }
+  }
+
+  /**
+   * Merges two sorted runs of values and ids into another array, starting at position to.
+   * Equal values are taken from the first run first.
+   */
+  static void merge(double[] values1, int[] ids1, int start1, int end1,
+                    double[] values2, int[] ids2, int start2, int end2,
+                    double[] toValues, int[] toIds, int to) {
+    int i = start1;
+    int j = start2;
+    while (i < end1 && j < end2) {
+      if (values2[j] < values1[i]) {
+        toValues[to] = values2[j];
+        toIds[to++] = ids2[j++];
+      } else {
+        toValues[to] = values1[i];
+        toIds[to++] = ids1[i++];
+      }
+    }
+    System.arraycopy(values1, i, toValues, to, end1 - i);
+    System.arraycopy(ids1, i, toIds, to, end1 - i);
+    to += end1 - i;
+    System.arraycopy(values2, j, toValues, to, end2 - j);
+    System.arraycopy(ids2, j, toIds, to, end2 - j);
+  }
+
   @Override
   public void clear() {
-    pendingAdditions.clear();
-    for (int i = 0; i < numProjections; ++i) {
-      scalarProjections.get(i).clear();
+    long stamp = lock.writeLock();
+    try {
+      reset(emptySnapshot());
+    } finally {
+      lock.unlockWrite(stamp);
     }
-    numPendingRemovals = 0;
+  }
+
+  /**
+   * Replaces all the vectors with a snapshot built from the new ones in one pass: they are
+   * projected a block at a time and each projection is sorted once, with nothing to merge and
+   * nothing left pending.  Searches wait until it is done.
+   */
+  @Override
+  public void replaceAll(Iterable<? extends Vector> data) {
+    Vector[] added = Iterables.toArray(data, Vector.class);
+    long stamp = lock.writeLock();
+    try {
+      if (added.length == 0) {
+        reset(emptySnapshot());
+      } else {
+        initialize(added[0].size());
+        reset(build(emptySnapshot(), new BitSet(), new BitSet(), added, false, null));
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Drops all the pending changes and makes the given snapshot the only vectors searched.  The
+   * caller has to hold the write lock.
+   */
+  private void reset(Snapshot next) {
+    // A snapshot being built is simply never installed.
+    rebuild = null;
+    snapshot = next;
+    removed = new BitSet();
+    numRemoved = 0;
+    moved = new BitSet();
+    numMoved = 0;
+    movedNorms = null;
+    changed = new BitSet();
+    pending = Lists.newArrayList();
+    pendingNorms = new double[16];
+    numPendingRemoved = 0;
     dirty = false;
   }
 
+  /**
+   * Iterates over the vectors searched when this is called.  Later changes don't show.
+   */
   @Override
   public Iterator<Vector> iterator() {
-    return Iterators.concat(new AbstractIterator<Vector>() {
-          Iterator<WeightedThing<Vector>> data = scalarProjections.get(0).iterator();
-          @Override
-          protected Vector computeNext() {
-            WeightedThing<Vector> next = null;
-            do {
-              if (!data.hasNext()) {
-                return endOfData();
-              }
-              next = data.next();
-              if (next.getValue() != null) {
-                return next.getValue();
-              }
-            } while (true);
-          }
-        },
-        pendingAdditions.iterator());
+    final Snapshot s;
+    final BitSet r;
+    List<Vector> p;
+    long stamp = lock.readLock();
+    try {
+      s = snapshot;
+      r = (BitSet) removed.clone();
+      p = Lists.newArrayList(pending);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    Iterator<Vector> projected = new AbstractIterator<Vector>() {
+      private int id = r.nextClearBit(0);
+
+      @Override
+      protected Vector computeNext() {
+        if (id >= s.size()) {
+          return endOfData();
+        }
+        Vector v = s.vector(id);
+        id = r.nextClearBit(id + 1);
+        return v;
+      }
+    };
+    return Iterators.unmodifiableIterator(Iterators.concat(projected,
+        Iterators.filter(p.iterator(), Predicates.notNull())));
   }
 
   /**
    * When modifying an element of the searcher through the iterator,
    * the user MUST CALL setDirty() to update the internal data structures. Otherwise,
-   * the internal order of the vectors will change and future results might be wrong.
+   * the internal order of the vectors will change and future results might be wrong.  All the
+   * vectors are then projected and sorted again by the next search, so if only a few of them
+   * were modified, pass those to setDirty(Iterable) instead.
    */
   public void setDirty() {
-    dirty = true;
+    long stamp = lock.writeLock();
+    try {
+      dirty = true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Tells the searcher that only the given vectors were modified through the iterator, so that
+   * only those are projected again instead of all of them as after setDirty().  Each is found by
+   * reference and set aside until the next snapshot as updated does, so nothing is scanned, sorted
+   * or rebuilt and nothing waits for a snapshot being built.  Vectors that aren't searched are
+   * ignored.
+   */
+  public void setDirty(Iterable<? extends Vector> modified) {
+    List<Vector> vectors = Lists.newArrayList(modified);
+    double[] squaredNorms = new double[vectors.size()];
+    for (int k = 0; k < vectors.size() && usesSquaredNorms(); ++k) {
+      squaredNorms[k] = vectors.get(k).getLengthSquared();
+    }
+    long stamp = lock.writeLock();
+    try {
+      // A snapshot being built may have projected some of the vectors before they were modified.
+      // They are recorded so that they are set aside in it too once it is swapped in.
+      for (int k = 0; k < vectors.size(); ++k) {
+        changed(vectors.get(k), squaredNorms[k]);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
   }
 }
@@ -29,19 +29,25 @@ public class HashedVector extends WeightedVector {
   protected static int INVALID_INDEX = -1;
   private long hash;
 
+  // The squared norm of the vector, so that distances can be computed from dot products.
+  private final double squaredNorm;
+
   public HashedVector(Vector v, long hash, int index) {
     super(v, 1, index);
     this.hash = hash;
+    this.squaredNorm = v.getLengthSquared();
   }
 
   public HashedVector(Vector v, Matrix projection, int index, long mask) {
     super(v, 1, index);
     this.hash = mask & computeHash64(v, projection);
+    this.squaredNorm = v.getLengthSquared();
   }
 
   public HashedVector(WeightedVector v, Matrix projection, long mask) {
     super(v.getVector(), v.getWeight(), v.getIndex());
     this.hash = mask;
+    this.squaredNorm = v.getLengthSquared();
   }
 
   public static int computeHash(Vector v, Matrix projection) {
@@ -80,6 +86,10 @@ public class HashedVector extends WeightedVector {
     return hash;
   }
 
+  public double getSquaredNorm() {
+    return squaredNorm;
+  }
+
   @Override
   public String toString() {
     return String.format("index=%d, hash=%08x, v=%s", getIndex(), hash, getVector());
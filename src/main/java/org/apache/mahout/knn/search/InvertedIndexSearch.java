@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.WeightedThing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Searches sparse vectors, such as the hashed documents made by Vectorize20NewsGroups, through
+ * postings lists that hold the rows and values of the non-zero entries of each dimension.  Only
+ * the postings of the non-zero dimensions of the query are read, so a search costs time in
+ * proportion to how much the query overlaps the reference vectors rather than to their number
+ * times their dimension.  The results are exact.
+ *
+ * With cosine distance, the rows are scored a document at a time with MaxScore pruning.  Each
+ * dimension of the query has an upper bound on what it can add to the similarity of any row.
+ * Once the best rows found so far are better than what the dimensions with the smallest bounds
+ * could add up to, rows are only found through the other dimensions and the small ones are only
+ * looked up for rows that could still make it.
+ *
+ * With Euclidean or squared Euclidean distance, the dot products with the query are accumulated
+ * over its postings and each row is then scored from its dot product and squared norm (see
+ * DistanceKernel.dotScore).
+ *
+ * Removed vectors are left in the postings and skipped until there are enough of them to rebuild
+ * the index.
+ */
+public class InvertedIndexSearch extends UpdatableSearcher {
+  // The fraction of the rows that can be removed before the index is rebuilt without them.
+  private static final double REMOVAL_THRESHOLD = 0.25;
+
+  // The vectors by row.  Removed vectors leave a null.
+  private List<Vector> vectors = Lists.newArrayList();
+
+  // The squared norms of the vectors by row.
+  private double[] squaredNorms = new double[16];
+
+  // The row of each vector, by reference.  A vector added more than once maps to one of its rows.
+  private Map<Vector, Integer> rowNumbers = Maps.newIdentityHashMap();
+
+  // The postings lists by dimension.  Only dimensions that are non-zero in some vector have one.
+  private Map<Integer, Postings> postings = Maps.newHashMap();
+
+  // The rows of the vectors that are all zeros, which have no postings.  CosineDistanceMeasure
+  // makes these distance 0 from everything.
+  private List<Integer> zeroRows = Lists.newArrayList();
+
+  private int numRemoved = 0;
+
+  private final boolean cosine;
+
+  // Buffers reused from one search to the next by each thread.
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * @param distanceMeasure CosineDistanceMeasure, EuclideanDistanceMeasure or
+   *                        SquaredEuclideanDistanceMeasure.
+   */
+  public InvertedIndexSearch(DistanceMeasure distanceMeasure) {
+    super(distanceMeasure);
+    Preconditions.checkArgument(usesSquaredNorms(),
+        "An inverted index needs cosine, Euclidean or squared Euclidean distance");
+    cosine = kernel == DistanceKernel.COSINE;
+  }
+
+  @Override
+  public void add(Vector v) {
+    int row = vectors.size();
+    if (squaredNorms.length == row) {
+      squaredNorms = Arrays.copyOf(squaredNorms, 2 * row);
+    }
+    double squaredNorm = v.getLengthSquared();
+    squaredNorms[row] = squaredNorm;
+    double inverseNorm = squaredNorm > 0 ? 1 / Math.sqrt(squaredNorm) : 0;
+    if (squaredNorm == 0) {
+      zeroRows.add(row);
+    }
+    Iterator<Vector.Element> nonZeros = v.iterateNonZero();
+    while (nonZeros.hasNext()) {
+      Vector.Element element = nonZeros.next();
+      Postings p = postings.get(element.index());
+      if (p == null) {
+        p = new Postings();
+        postings.put(element.index(), p);
+      }
+      p.add(row, element.get(), element.get() * inverseNorm);
+    }
+    if (!rowNumbers.containsKey(v)) {
+      rowNumbers.put(v, row);
+    }
+    vectors.add(v);
+  }
+
+  @Override
+  public int size() {
+    return vectors.size() - numRemoved;
+  }
+
+  @Override
+  public List<WeightedThing<Vector>> search(Vector query, int limit) {
+    Preconditions.checkArgument(limit > 0);
+    Scratch buffers = scratch.get();
+    TopKHeap top = buffers.heap;
+    top.reset(limit);
+    double querySquaredNorm = query.getLengthSquared();
+    if (cosine) {
+      searchCosine(query, querySquaredNorm, top, buffers);
+      if (!top.isFull() || top.threshold() >= 1) {
+        // Rows that share no dimension with the query are at distance 1 and weren't looked at,
+        // so they could be better than what was found.
+        top.reset(limit);
+        scoreAll(query, querySquaredNorm, top, buffers);
+      }
+    } else {
+      scoreAll(query, querySquaredNorm, top, buffers);
+    }
+
+    top.sort();
+    List<WeightedThing<Vector>> results = Lists.newArrayListWithCapacity(top.size());
+    for (int i = 0; i < top.size(); ++i) {
+      results.add(new WeightedThing<Vector>(vectors.get(top.id(i)), top.distance(i)));
+    }
+    return results;
+  }
+
+  /**
+   * Finds the rows with the largest cosine similarity to the query a row at a time, in order of
+   * row number, with MaxScore pruning.  Rows that share no dimension with the query are not
+   * offered.
+   */
+  private void searchCosine(Vector query, double querySquaredNorm, TopKHeap top,
+                            Scratch buffers) {
+    for (int row : zeroRows) {
+      if (vectors.get(row) != null) {
+        top.offer(row, 0);
+      }
+    }
+    if (querySquaredNorm == 0) {
+      // CosineDistanceMeasure makes everything distance 0 from a zero query.
+      for (int row = 0; row < vectors.size() && !top.isFull(); ++row) {
+        if (vectors.get(row) != null && squaredNorms[row] > 0) {
+          top.offer(row, 0);
+        }
+      }
+      return;
+    }
+
+    // The terms of the query with the postings of their dimension, by increasing upper bound.
+    double queryNorm = Math.sqrt(querySquaredNorm);
+    List<Term> terms = buffers.terms;
+    terms.clear();
+    Iterator<Vector.Element> nonZeros = query.iterateNonZero();
+    while (nonZeros.hasNext()) {
+      Vector.Element element = nonZeros.next();
+      Postings p = postings.get(element.index());
+      if (p != null) {
+        terms.add(new Term(element.get() / queryNorm, p));
+      }
+    }
+    Collections.sort(terms, Term.BY_BOUND);
+    int numTerms = terms.size();
+    double[] bounds = buffers.bounds(numTerms);
+    int[] cursors = buffers.cursors(numTerms);
+    double total = 0;
+    for (int j = 0; j < numTerms; ++j) {
+      total += terms.get(j).bound;
+      // bounds[j] is what terms 0 to j can add up to.
+      bounds[j] = total;
+      cursors[j] = 0;
+    }
+
+    // Terms before firstEssential can't make a row good enough on their own.
+    int firstEssential = 0;
+    double threshold = Double.NEGATIVE_INFINITY;
+    while (true) {
+      int row = Integer.MAX_VALUE;
+      for (int j = firstEssential; j < numTerms; ++j) {
+        Postings p = terms.get(j).postings;
+        if (cursors[j] < p.size) {
+          row = Math.min(row, p.rows[cursors[j]]);
+        }
+      }
+      if (row == Integer.MAX_VALUE) {
+        break;
+      }
+
+      double inverseNorm = 1 / Math.sqrt(squaredNorms[row]);
+      double dot = 0;
+      for (int j = firstEssential; j < numTerms; ++j) {
+        Term term = terms.get(j);
+        if (cursors[j] < term.postings.size && term.postings.rows[cursors[j]] == row) {
+          dot += term.weight * term.postings.values[cursors[j]];
+          ++cursors[j];
+        }
+      }
+      boolean pruned = false;
+      for (int j = firstEssential - 1; j >= 0; --j) {
+        if (dot * inverseNorm + bounds[j] <= threshold) {
+          pruned = true;
+          break;
+        }
+        Term term = terms.get(j);
+        cursors[j] = term.postings.seek(cursors[j], row);
+        if (cursors[j] < term.postings.size && term.postings.rows[cursors[j]] == row) {
+          dot += term.weight * term.postings.values[cursors[j]];
+        }
+      }
+      if (!pruned && vectors.get(row) != null) {
+        double similarity = dot * inverseNorm;
+        // the same correction for round-off as CosineDistanceMeasure
+        top.offer(row, similarity > 1 ? 0 : 1 - similarity);
+        if (top.isFull()) {
+          threshold = 1 - top.threshold();
+          while (firstEssential < numTerms && bounds[firstEssential] <= threshold) {
+            ++firstEssential;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Offers every row by accumulating the dot products with the query over its postings.
+   */
+  private void scoreAll(Vector query, double querySquaredNorm, TopKHeap top, Scratch buffers) {
+    final int numRows = vectors.size();
+    double[] dots = buffers.dots(numRows);
+    Arrays.fill(dots, 0, numRows, 0);
+    Iterator<Vector.Element> nonZeros = query.iterateNonZero();
+    while (nonZeros.hasNext()) {
+      Vector.Element element = nonZeros.next();
+      Postings p = postings.get(element.index());
+      if (p != null) {
+        double weight = element.get();
+        for (int i = 0; i < p.size; ++i) {
+          dots[p.rows[i]] += weight * p.values[i];
+        }
+      }
+    }
+
+    final int dimension = query.size();
+    for (int row = 0; row < numRows; ++row) {
+      Vector v = vectors.get(row);
+      if (v == null) {
+        continue;
+      }
+      double bound = top.threshold();
+      double score = kernel.dotScore(dots[row], squaredNorms[row], querySquaredNorm, dimension,
+          kernel.toScore(bound));
+      top.offer(row, Double.isNaN(score) ? distance(query, v, bound) : kernel.toDistance(score));
+    }
+  }
+
+  /**
+   * Removes a vector within epsilon of v.  If v is itself one of the vectors, as when removing a
+   * result of a search, it is found without a search.
+   */
+  @Override
+  public boolean remove(Vector v, double epsilon) {
+    Integer row = rowNumbers.get(v);
+    if (row == null) {
+      List<WeightedThing<Vector>> closest = search(v, 1);
+      if (closest.isEmpty() || closest.get(0).getWeight() > epsilon) {
+        return false;
+      }
+      row = rowNumbers.get(closest.get(0).getValue());
+      if (row == null) {
+        // A vector that was added more than once and whose other copy was removed already.
+        row = 0;
+        while (vectors.get(row) != closest.get(0).getValue()) {
+          ++row;
+        }
+      }
+    }
+    Vector removed = vectors.set(row, null);
+    rowNumbers.remove(removed);
+    ++numRemoved;
+    if (numRemoved > REMOVAL_THRESHOLD * vectors.size()) {
+      rebuild();
+    }
+    return true;
+  }
+
+  /**
+   * Builds the index again from the vectors that haven't been removed.
+   */
+  private void rebuild() {
+    List<Vector> remaining = Lists.newArrayList(this);
+    clear();
+    addAll(remaining);
+  }
+
+  @Override
+  public void clear() {
+    vectors.clear();
+    rowNumbers.clear();
+    postings.clear();
+    zeroRows.clear();
+    numRemoved = 0;
+  }
+
+  @Override
+  public Iterator<Vector> iterator() {
+    return Iterators.unmodifiableIterator(
+        Iterators.filter(vectors.iterator(), Predicates.notNull()));
+  }
+
+  /**
+   * The rows and values of the non-zero entries of one dimension, in order of row.
+   */
+  private static class Postings {
+    private int[] rows = new int[4];
+    private double[] values = new double[4];
+    private int size = 0;
+
+    // The largest and smallest values divided by the norms of their rows.  These bound what the
+    // dimension adds to a cosine similarity.
+    private double maxNormalized = 0;
+    private double minNormalized = 0;
+
+    void add(int row, double value, double normalized) {
+      if (size == rows.length) {
+        rows = Arrays.copyOf(rows, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      rows[size] = row;
+      values[size] = value;
+      ++size;
+      maxNormalized = Math.max(maxNormalized, normalized);
+      minNormalized = Math.min(minNormalized, normalized);
+    }
+
+    /**
+     * Returns the first position from start on whose row is at least row.
+     */
+    int seek(int start, int row) {
+      // Gallop to bracket the position, then search in the bracket.
+      int step = 1;
+      int end = start;
+      while (end < size && rows[end] < row) {
+        start = end + 1;
+        end += step;
+        step *= 2;
+      }
+      end = Math.min(end, size);
+      int i = Arrays.binarySearch(rows, start, end, row);
+      return i < 0 ? -(i + 1) : i;
+    }
+  }
+
+  /**
+   * A dimension of the query with its weight and the postings of the dimension.
+   */
+  private static class Term {
+    static final Comparator<Term> BY_BOUND = new Comparator<Term>() {
+      @Override
+      public int compare(Term t1, Term t2) {
+        return Double.compare(t1.bound, t2.bound);
+      }
+    };
+
+    // The value of the query divided by its norm.
+    final double weight;
+    final Postings postings;
+    // The most this term can add to the cosine similarity of any row.
+    final double bound;
+
+    Term(double weight, Postings postings) {
+      this.weight = weight;
+      this.postings = postings;
+      this.bound = Math.max(0,
+          Math.max(weight * postings.maxNormalized, weight * postings.minNormalized));
+    }
+  }
+
+  private static class Scratch {
+    private final TopKHeap heap = new TopKHeap(0);
+    private final List<Term> terms = Lists.newArrayList();
+    private double[] bounds = new double[0];
+    private int[] cursors = new int[0];
+    private double[] dots = new double[0];
+
+    double[] bounds(int numTerms) {
+      if (bounds.length < numTerms) {
+        bounds = new double[numTerms];
+      }
+      return bounds;
+    }
+
+    int[] cursors(int numTerms) {
+      if (cursors.length < numTerms) {
+        cursors = new int[numTerms];
+      }
+      return cursors;
+    }
+
+    double[] dots(int numRows) {
+      if (dots.length < numRows) {
+        dots = new double[numRows];
+      }
+      return dots;
+    }
+  }
+}
@@ -1,8 +1,7 @@
 package org.apache.mahout.knn.search;
 
-import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
-import com.sun.istack.internal.Nullable;
 import org.apache.mahout.common.RandomUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.*;
@@ -10,10 +9,8 @@ import org.apache.mahout.math.jet.random.Normal;
 import org.apache.mahout.math.random.WeightedThing;
 import org.apache.mahout.math.stats.OnlineSummarizer;
 
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
@@ -21,6 +18,11 @@ import java.util.Set;
  * to estimate distance without floating point math.  The clever bit about this implementation
  * is that it does an adaptive cutoff for the cutoff on the bitwise distance.  Making this
  * cutoff adaptive means that we only needs to make a single pass through the data.
+ *
+ * That pass is over all the vectors unless hash tables are set (see setHashTables).  Each table
+ * then keys buckets of vectors on a different slice of the bits of their hashes, and a search
+ * only makes its pass over the vectors in the buckets whose keys are the same as the query's or
+ * differ from it by one bit, which takes time sublinear in the number of vectors.
  */
 public class LocalitySensitiveHashSearch extends UpdatableSearcher implements Iterable<Vector> {
   private static final int BITS = 64;
@@ -30,10 +32,11 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
   private Set<HashedVector> trainingVectors = Sets.newHashSet();
 
 
-  // this matrix of 32 random vectors is used to compute the Locality Sensitive Hash
+  // these 64 random vectors are used to compute the Locality Sensitive Hash
   // we compute the dot product with these vectors using a matrix multiplication and then use just
-  // sign of each result as one bit in the hash
-  private Matrix projection;
+  // sign of each result as one bit in the hash.  How they are generated is set by projectionType.
+  private ProjectionBasis projection;
+  private final ProjectionType projectionType;
 
   // the search size determines how many top results we retain.  We do this because the hash distance
   // isn't guaranteed to be entirely monotonic with respect to the real distance.  To the extent that
@@ -47,11 +50,53 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
 
   private int distanceEvaluations = 0;
 
+  // The hash tables, if any.  Table i keys its buckets on keyBits bits of the hashes, starting at
+  // bit i * keyBits and wrapping around if there are more tables than fit in the hash.
+  private List<ListMultimap<Long, HashedVector>> tables = Lists.newArrayList();
+  private int keyBits = 0;
+
   private boolean initialized = false;
 
+  // Buffers reused from one search to the next by each thread.
+  private final ThreadLocal<TopKHeap> heap = new ThreadLocal<TopKHeap>() {
+    @Override
+    protected TopKHeap initialValue() {
+      return new TopKHeap(0);
+    }
+  };
+  private final ThreadLocal<double[]> projections = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[BITS];
+    }
+  };
+  private final ThreadLocal<Set<HashedVector>> bucketed = new ThreadLocal<Set<HashedVector>>() {
+    @Override
+    protected Set<HashedVector> initialValue() {
+      return Sets.newIdentityHashSet();
+    }
+  };
+  private final ThreadLocal<List<HashedVector>> candidateList =
+      new ThreadLocal<List<HashedVector>>() {
+        @Override
+        protected List<HashedVector> initialValue() {
+          return Lists.newArrayList();
+        }
+      };
+
   public LocalitySensitiveHashSearch(DistanceMeasure distanceMeasure,  int searchSize) {
+    this(distanceMeasure, searchSize, ProjectionType.DENSE);
+  }
+
+  /**
+   * @param projectionType How the vectors hashed on are generated.  Sparse ones make hashing a
+   *                       vector much cheaper in many dimensions.
+   */
+  public LocalitySensitiveHashSearch(DistanceMeasure distanceMeasure, int searchSize,
+                                     ProjectionType projectionType) {
     super(distanceMeasure);
     this.searchSize = searchSize;
+    this.projectionType = projectionType;
 
     this.projection = null;
   }
@@ -60,18 +105,84 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
     if (initialized)
       return;
     initialized = true;
-    projection = new DenseMatrix(BITS, numDimensions);
-    projection.assign(new Normal(0, 1, RandomUtils.getRandom()));
+    if (projectionType == ProjectionType.SPARSE) {
+      projection = ProjectionBasis.generate(ProjectionType.SPARSE, numDimensions, BITS);
+    } else {
+      // Only the signs of the projections matter, so the Gaussian vectors aren't normalized.
+      Normal normal = new Normal(0, 1, RandomUtils.getRandom());
+      List<Vector> basisVectors = Lists.newArrayList();
+      for (int i = 0; i < BITS; i++) {
+        basisVectors.add(new DenseVector(numDimensions).assign(normal));
+      }
+      projection = new ProjectionBasis(basisVectors, false);
+    }
+  }
+
+  /**
+   * Computes the hash of a vector, one bit for the sign of its projection on each random vector.
+   */
+  private long hash(Vector v) {
+    double[] values = projections.get();
+    projection.project(v, values, 0);
+    return hash(values, 0);
+  }
+
+  /**
+   * Computes a hash from the projections of a vector starting at the given offset.
+   */
+  private static long hash(double[] values, int offset) {
+    long hash = 0;
+    for (int i = 0; i < BITS; i++) {
+      if (values[offset + i] > 0) {
+        hash += 1L << i;
+      }
+    }
+    return hash & BITMASK;
+  }
+
+  /**
+   * Returns the key of a hash in one of the tables.
+   */
+  private long key(long hash, int table) {
+    long key = Long.rotateRight(hash, table * keyBits % BITS);
+    return keyBits == BITS ? key : key & ((1L << keyBits) - 1);
+  }
+
+  /**
+   * Returns the vectors in the buckets of the tables whose keys are the same as those of the
+   * query or differ from them by one bit.
+   */
+  private Set<HashedVector> bucketCandidates(long queryHash) {
+    Set<HashedVector> found = bucketed.get();
+    found.clear();
+    for (int i = 0; i < tables.size(); i++) {
+      ListMultimap<Long, HashedVector> table = tables.get(i);
+      long key = key(queryHash, i);
+      found.addAll(table.get(key));
+      for (int bit = 0; bit < keyBits; bit++) {
+        found.addAll(table.get(key ^ (1L << bit)));
+      }
+    }
+    return found;
+  }
+
+  private void addToTables(HashedVector v) {
+    for (int i = 0; i < tables.size(); i++) {
+      tables.get(i).put(key(v.getHash(), i), v);
+    }
   }
 
   @Override
   public List<WeightedThing<Vector>> search(Vector q, int numberOfNeighbors) {
-    long queryHash = HashedVector.computeHash64(q, projection);
+    long queryHash = hash(q);
+    double queryNorm = q.getLengthSquared();
 
-    // we keep an approximation of the closest vectors here
-    PriorityQueue<WeightedThing<Vector>> top = new
-        PriorityQueue<WeightedThing<Vector>>(getSearchSize(),
-        Ordering.natural().reverse());
+    // we keep an approximation of the closest vectors here.  The ids in the heap are positions in
+    // the list of candidates, both of which are reused from one search to the next.
+    List<HashedVector> candidates = candidateList.get();
+    candidates.clear();
+    TopKHeap top = heap.get();
+    top.reset(searchSize);
 
     // we keep the counts of the hash distances here.  This lets us accurately
     // judge what hash distance cutoff we should use.
@@ -95,20 +206,21 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
     int hashLimit = BITS;
     int limitCount = 0;
     double distanceLimit = Double.POSITIVE_INFINITY;
-    for (HashedVector v : trainingVectors) {
+    Set<HashedVector> scanned = tables.isEmpty() ? trainingVectors : bucketCandidates(queryHash);
+    for (HashedVector v : scanned) {
       int bitDot = Long.bitCount(v.getHash() ^ queryHash);
       if (bitDot <= hashLimit) {
         distanceEvaluations++;
-        double d = distanceMeasure.distance(q, v);
-        distribution[bitDot].add(d);
+        // Distances beyond distanceLimit need not be exact but stay beyond it.  Only exact ones
+        // go into the distribution since partial sums would bias its quartiles downwards.
+        double d = distance(q, queryNorm, v, v.getSquaredNorm(), distanceLimit);
         if (d < distanceLimit) {
-          top.add(new WeightedThing<Vector>(v, d));
-          while (top.size() > searchSize) {
-            top.poll();
-          }
+          distribution[bitDot].add(d);
+          top.offer(candidates.size(), d);
+          candidates.add(v);
 
-          if (top.size() == searchSize) {
-            distanceLimit = top.peek().getWeight();
+          if (top.isFull()) {
+            distanceLimit = top.threshold();
           }
 
           hashCounts[bitDot]++;
@@ -129,24 +241,49 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
       }
     }
 
-    List<WeightedThing<Vector>> r = Lists.newArrayList(Iterables.transform(top, new Function<WeightedThing<Vector>, WeightedThing<Vector>>() {
-      @Override
-      public WeightedThing<Vector> apply(@Nullable WeightedThing<Vector> input) {
-        return new WeightedThing<Vector>(((HashedVector)(input.getValue())).getVector(),
-            input.getWeight());
-      }
-    }));
-    Collections.sort(r);
-    return r.subList(0, numberOfNeighbors);
+    top.sort();
+    int numResults = Math.min(numberOfNeighbors, top.size());
+    List<WeightedThing<Vector>> r = Lists.newArrayListWithCapacity(numResults);
+    for (int i = 0; i < numResults; i++) {
+      r.add(new WeightedThing<Vector>(candidates.get(top.id(i)).getVector(), top.distance(i)));
+    }
+    candidates.clear();
+    if (scanned != trainingVectors) {
+      scanned.clear();
+    }
+    return r;
   }
 
 
   @Override
   public void add(Vector v) {
     initialize(v.size());
-    trainingVectors.add(new HashedVector(v, projection, HashedVector.INVALID_INDEX, BITMASK));
+    HashedVector hashed = new HashedVector(v, hash(v), HashedVector.INVALID_INDEX);
+    if (trainingVectors.add(hashed)) {
+      addToTables(hashed);
+    }
   }
 
+  /**
+   * Replaces all the vectors with new ones, hashing all of them with a single product by the
+   * random vectors instead of one vector at a time.
+   */
+  @Override
+  public void replaceAll(Iterable<? extends Vector> data) {
+    List<Vector> added = Lists.newArrayList(data);
+    Set<HashedVector> hashed = Sets.newHashSetWithExpectedSize(added.size());
+    if (!added.isEmpty()) {
+      initialize(added.get(0).size());
+      double[] values = new double[added.size() * BITS];
+      projection.project(added, 0, added.size(), values, 0);
+      for (int k = 0; k < added.size(); k++) {
+        hashed.add(new HashedVector(added.get(k), hash(values, k * BITS),
+            HashedVector.INVALID_INDEX));
+      }
+    }
+    trainingVectors = hashed;
+    setHashTables(tables.size(), keyBits);
+  }
 
   public int size() {
     return trainingVectors.size();
@@ -164,6 +301,37 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
     hashLimitStrategy = strategy;
   }
 
+  public int getNumHashTables() {
+    return tables.size();
+  }
+
+  public int getKeyBits() {
+    return keyBits;
+  }
+
+  /**
+   * Sets the hash tables used to find the candidates of a search.  More tables find more of the
+   * true neighbors and cost more per search, while wider keys make smaller buckets, so that
+   * searches are faster but miss more.  The tables are filled again from the hashes of the
+   * vectors, without hashing them again.
+   *
+   * @param numTables The number of tables, 0 to scan all the vectors, which is the default.
+   * @param keyBits   The number of bits of the hash each table keys its buckets on.
+   */
+  public void setHashTables(int numTables, int keyBits) {
+    Preconditions.checkArgument(numTables >= 0, "Number of hash tables can't be negative");
+    Preconditions.checkArgument(numTables == 0 || keyBits > 0 && keyBits <= BITS,
+        "Key bits must be between 1 and " + BITS);
+    this.keyBits = numTables == 0 ? 0 : keyBits;
+    tables = Lists.newArrayList();
+    for (int i = 0; i < numTables; i++) {
+      tables.add(ArrayListMultimap.<Long, HashedVector>create());
+    }
+    for (HashedVector v : trainingVectors) {
+      addToTables(v);
+    }
+  }
+
   public int resetEvaluationCount() {
     int r = distanceEvaluations;
     distanceEvaluations = 0;
@@ -189,12 +357,21 @@ public class LocalitySensitiveHashSearch extends UpdatableSearcher implements It
 
   @Override
   public boolean remove(Vector v, double epsilon) {
-    return trainingVectors.remove(
-        new HashedVector(v, projection, HashedVector.INVALID_INDEX, BITMASK));
+    HashedVector hashed = new HashedVector(v, hash(v), HashedVector.INVALID_INDEX);
+    if (!trainingVectors.remove(hashed)) {
+      return false;
+    }
+    for (int i = 0; i < tables.size(); i++) {
+      tables.get(i).remove(key(hashed.getHash(), i), hashed);
+    }
+    return true;
   }
 
   @Override
   public void clear() {
     trainingVectors.clear();
+    for (ListMultimap<Long, HashedVector> table : tables) {
+      table.clear();
+    }
   }
 }
@@ -0,0 +1,337 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import org.apache.mahout.math.Centroid;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.WeightedVector;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only list of dense vectors stored one after another in a memory mapped file.  Nothing is
+ * read when the list is created: the operating system pages the rows in as they are used and can
+ * drop them again under memory pressure.
+ *
+ * Rows are scored straight from the mapped buffers (see accumulate and dot) so searching doesn't
+ * copy them.  A row is only copied onto the heap when get returns it.  The copies are only weakly
+ * referenced from here, so get returns the same copy of a row as long as it is used elsewhere and
+ * a copy that is no longer used can be collected.  Rows that were WeightedVectors or Centroids
+ * when they were saved come back as such, with their weight and index.
+ *
+ * A single mapping can't be larger than 2GB, so the rows are mapped in chunks of whole rows.
+ */
+final class MappedRows extends AbstractList<Vector> implements RandomAccess {
+  // What each row was when it was saved.
+  static final int PLAIN = 0;
+  static final int WEIGHTED = 1;
+  static final int CENTROID = 2;
+
+  private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+  private final int size;
+  private final int dimension;
+  private final int rowsPerChunk;
+  private final DoubleBuffer[] chunks;
+
+  // The kind, weight and index of each row.
+  private final int[] kinds;
+  private final double[] weights;
+  private final int[] indexes;
+
+  // The copies returned by get that may still be used, by row, and the references to those that
+  // were collected, to clear them from returned.
+  private final AtomicReferenceArray<RowReference> returned;
+  private final ReferenceQueue<Vector> collected = new ReferenceQueue<Vector>();
+
+  /**
+   * @param channel   The file.  It can be closed once the rows are mapped.
+   * @param offset    Where the first row starts in the file.
+   * @param size      The number of rows.
+   * @param dimension The number of values in each row.
+   * @param kinds     What each row was when it was saved: PLAIN, WEIGHTED or CENTROID.
+   * @param weights   The weight of each row that isn't PLAIN.
+   * @param indexes   The index of each row that isn't PLAIN.
+   */
+  MappedRows(FileChannel channel, long offset, int size, int dimension, int[] kinds,
+             double[] weights, int[] indexes) throws IOException {
+    this.size = size;
+    this.dimension = dimension;
+    this.kinds = kinds;
+    this.weights = weights;
+    this.indexes = indexes;
+    returned = new AtomicReferenceArray<RowReference>(size);
+    rowsPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / (8L * Math.max(1, dimension)));
+    chunks = new DoubleBuffer[(size + rowsPerChunk - 1) / rowsPerChunk];
+    for (int i = 0; i < chunks.length; ++i) {
+      int rows = Math.min(rowsPerChunk, size - i * rowsPerChunk);
+      chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+          offset + 8L * dimension * i * rowsPerChunk, 8L * dimension * rows).asDoubleBuffer();
+    }
+  }
+
+  /**
+   * Returns what a vector is, to be saved with it: PLAIN, WEIGHTED or CENTROID.
+   */
+  static int kind(Vector v) {
+    if (v instanceof Centroid) {
+      return CENTROID;
+    } else if (v instanceof WeightedVector) {
+      return WEIGHTED;
+    } else {
+      return PLAIN;
+    }
+  }
+
+  /**
+   * Returns a copy of a row.  The copy returned last time is returned again if it is still used
+   * elsewhere.  The copies can be changed but the file isn't.
+   */
+  @Override
+  public Vector get(int row) {
+    checkRow(row);
+    expunge();
+    while (true) {
+      RowReference ref = returned.get(row);
+      Vector v = ref == null ? null : ref.get();
+      if (v != null) {
+        return v;
+      }
+      switch (kinds[row]) {
+        case WEIGHTED:
+          v = new WeightedRow(this, row, read(row), weights[row], indexes[row]);
+          break;
+        case CENTROID:
+          v = new CentroidRow(this, row, read(row), weights[row], indexes[row]);
+          break;
+        default:
+          v = new DenseRow(this, row, dimension);
+          values(row, v);
+      }
+      // If another thread got there first, its copy is the one returned.
+      if (returned.compareAndSet(row, ref, new RowReference(v, row, collected))) {
+        return v;
+      }
+    }
+  }
+
+  /**
+   * Clears the references to the copies that were collected.
+   */
+  private void expunge() {
+    Reference<? extends Vector> ref;
+    while ((ref = collected.poll()) != null) {
+      RowReference rowReference = (RowReference) ref;
+      returned.compareAndSet(rowReference.row, rowReference, null);
+    }
+  }
+
+  /**
+   * Returns the row of a copy returned by get, or -1 if v isn't one.  The copy carries its row,
+   * so nothing has to be kept to find it.  Clones of a copy aren't the copy.
+   */
+  int row(Vector v) {
+    if (!(v instanceof Row) || ((Row) v).source() != this) {
+      return -1;
+    }
+    int row = ((Row) v).row();
+    RowReference ref = returned.get(row);
+    return ref != null && ref.get() == v ? row : -1;
+  }
+
+  /**
+   * Copies the values of a row into a new DenseVector that isn't kept.
+   */
+  Vector read(int row) {
+    checkRow(row);
+    Vector values = new DenseVector(dimension);
+    values(row, values);
+    return values;
+  }
+
+  /**
+   * Copies the values of a row into a dense vector of the same dimension.
+   */
+  void values(int row, Vector to) {
+    DoubleBuffer chunk = chunks[row / rowsPerChunk];
+    int start = (row % rowsPerChunk) * dimension;
+    for (int i = 0; i < dimension; ++i) {
+      to.setQuick(i, chunk.get(start + i));
+    }
+  }
+
+  /**
+   * Accumulates the terms of a bounded distance between a query and a row, as
+   * BoundedDistance.accumulate does for packed rows.
+   *
+   * @param distance The distance.
+   * @param query    The values of the query.
+   * @param row      The row.
+   * @param limit    The bound in accumulated units.
+   * @return The accumulated sum, which is larger than limit if the summing was stopped early.
+   */
+  double accumulate(BoundedDistance distance, double[] query, int row, double limit) {
+    // Absolute gets don't move the position of the buffer, so threads can share it.
+    DoubleBuffer chunk = chunks[row / rowsPerChunk];
+    int start = (row % rowsPerChunk) * dimension;
+    boolean squared = distance.sumsSquares();
+    double sum = 0;
+    int i = 0;
+    while (i < dimension) {
+      int end = Math.min(dimension, i + BoundedDistance.CHECK_INTERVAL);
+      for (; i < end; ++i) {
+        double delta = chunk.get(start + i) - query[i];
+        sum += squared ? delta * delta : Math.abs(delta);
+      }
+      if (sum > limit) {
+        break;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the dot product of a query and a row.
+   */
+  double dot(double[] query, int row) {
+    DoubleBuffer chunk = chunks[row / rowsPerChunk];
+    int start = (row % rowsPerChunk) * dimension;
+    double sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      sum += chunk.get(start + i) * query[i];
+    }
+    return sum;
+  }
+
+  // The kind, weight and index of a row, to save it again.
+  int kind(int row) {
+    return kinds[row];
+  }
+
+  double weight(int row) {
+    return weights[row];
+  }
+
+  int index(int row) {
+    return indexes[row];
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= size) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * A weak reference to the copy of a row.
+   */
+  private static final class RowReference extends WeakReference<Vector> {
+    private final int row;
+
+    RowReference(Vector v, int row, ReferenceQueue<Vector> queue) {
+      super(v, queue);
+      this.row = row;
+    }
+  }
+
+  /**
+   * What the copies of the rows know about where they come from.
+   */
+  private interface Row {
+    MappedRows source();
+
+    int row();
+  }
+
+  private static final class DenseRow extends DenseVector implements Row {
+    private final MappedRows source;
+    private final int row;
+
+    DenseRow(MappedRows source, int row, int dimension) {
+      super(dimension);
+      this.source = source;
+      this.row = row;
+    }
+
+    @Override
+    public MappedRows source() {
+      return source;
+    }
+
+    @Override
+    public int row() {
+      return row;
+    }
+  }
+
+  private static final class WeightedRow extends WeightedVector implements Row {
+    private final MappedRows source;
+    private final int row;
+
+    WeightedRow(MappedRows source, int row, Vector values, double weight, int index) {
+      super(values, weight, index);
+      this.source = source;
+      this.row = row;
+    }
+
+    @Override
+    public MappedRows source() {
+      return source;
+    }
+
+    @Override
+    public int row() {
+      return row;
+    }
+  }
+
+  private static final class CentroidRow extends Centroid implements Row {
+    private final MappedRows source;
+    private final int row;
+
+    CentroidRow(MappedRows source, int row, Vector values, double weight, int index) {
+      super(index, values, weight);
+      this.source = source;
+      this.row = row;
+    }
+
+    @Override
+    public MappedRows source() {
+      return source;
+    }
+
+    @Override
+    public int row() {
+      return row;
+    }
+  }
+}
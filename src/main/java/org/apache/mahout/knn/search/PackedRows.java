@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stores the values of dense vectors of the same dimension packed one after another in row-major
+ * double[] blocks.  Each block holds a fixed number of rows so that adding never has to copy the
+ * rows that are already stored and a block is a reasonable unit of work for a cache-sized scan.
+ *
+ * Scanning rows stored this way avoids both the pointer chasing of walking a list of vectors and
+ * the virtual calls of going through the Vector interface for every element.
+ *
+ * The values of each row are not stored in the order of the dimensions but from the dimension
+ * with the highest variance over the rows to the lowest (see dimensionOrder).  Distances between
+ * a query and a row don't depend on the order in which the dimensions are summed, but a distance
+ * that is abandoned once it gets too large (see BoundedDistance) is abandoned sooner this way.
+ * Queries have to be put in the same order with toArray before they are compared with the rows.
+ */
+public class PackedRows {
+  // The number of rows in each block.  The blocks are 1024 rows long so a block of 20 dimensional
+  // vectors is 160kB.
+  static final int ROWS_PER_BLOCK = 1024;
+
+  private final int dimension;
+
+  // The row-major blocks of values.  Row i lives in blocks.get(i / ROWS_PER_BLOCK) starting at
+  // offset (i % ROWS_PER_BLOCK) * dimension.
+  private final List<double[]> blocks = Lists.newArrayList();
+
+  // The squared Euclidean norm of each row, laid out in blocks the same way as the rows.
+  private final List<double[]> squaredNorms = Lists.newArrayList();
+
+  private int size = 0;
+
+  // The sums of the values and of the squared values in each column, used to order the dimensions
+  // by variance.
+  private final double[] columnSums;
+  private final double[] columnSquares;
+
+  // The dimensions from the highest variance to the lowest as of the last time they were sorted.
+  // Position i of each row holds the value of dimension dimensionOrder[i].
+  private int[] dimensionOrder;
+
+  // The inverse of dimensionOrder: the position in the rows of each dimension.
+  private final int[] positions;
+
+  // The number of rows when the dimensions were last ordered.  They are ordered again, which moves
+  // all the stored values, each time the number of rows doubles.
+  private int orderedSize = 0;
+
+  public PackedRows(int dimension) {
+    Preconditions.checkArgument(dimension > 0, "Dimension must be positive");
+    this.dimension = dimension;
+    columnSums = new double[dimension];
+    columnSquares = new double[dimension];
+    dimensionOrder = new int[dimension];
+    positions = new int[dimension];
+    for (int i = 0; i < dimension; ++i) {
+      dimensionOrder[i] = i;
+      positions[i] = i;
+    }
+  }
+
+  /**
+   * Copies the values of a vector into a new row.
+   * @param v  The vector to add.
+   * @return The number of the new row.
+   */
+  public int add(Vector v) {
+    Preconditions.checkArgument(v.size() == dimension,
+        "Invalid dimension of vector to add. Expected " + dimension + " Got " + v.size());
+    int row = size;
+    if (row / ROWS_PER_BLOCK == blocks.size()) {
+      blocks.add(new double[ROWS_PER_BLOCK * dimension]);
+      squaredNorms.add(new double[ROWS_PER_BLOCK]);
+    }
+    ++size;
+    write(row, v);
+    if (size >= 2 * orderedSize) {
+      orderDimensions();
+    }
+    return row;
+  }
+
+  /**
+   * Overwrites the values stored for a row with the values of a vector.
+   */
+  public void set(int row, Vector v) {
+    Preconditions.checkElementIndex(row, size);
+    Preconditions.checkArgument(v.size() == dimension,
+        "Invalid dimension of vector to add. Expected " + dimension + " Got " + v.size());
+    updateColumnStatistics(row, -1);
+    write(row, v);
+  }
+
+  private void write(int row, Vector v) {
+    double[] block = block(row);
+    int offset = offset(row);
+    if (v.isDense()) {
+      toArray(v, block, offset);
+    } else {
+      for (int i = 0; i < dimension; ++i) {
+        block[offset + i] = 0;
+      }
+      Iterator<Vector.Element> nonZeros = v.iterateNonZero();
+      while (nonZeros.hasNext()) {
+        Vector.Element element = nonZeros.next();
+        block[offset + positions[element.index()]] = element.get();
+      }
+    }
+    squaredNorms.get(row / ROWS_PER_BLOCK)[row % ROWS_PER_BLOCK] =
+        dot(block, offset, block, offset, dimension);
+    updateColumnStatistics(row, 1);
+  }
+
+  /**
+   * Adds (sign = 1) or subtracts (sign = -1) the values of a row to the column statistics.
+   */
+  private void updateColumnStatistics(int row, int sign) {
+    double[] block = block(row);
+    int offset = offset(row);
+    for (int i = 0; i < dimension; ++i) {
+      double x = block[offset + i];
+      columnSums[dimensionOrder[i]] += sign * x;
+      columnSquares[dimensionOrder[i]] += sign * x * x;
+    }
+  }
+
+  /**
+   * Sorts the dimensions by decreasing variance of the rows and moves the stored values to the
+   * new order.
+   */
+  private void orderDimensions() {
+    final double[] variances = new double[dimension];
+    List<Integer> order = Lists.newArrayListWithCapacity(dimension);
+    for (int i = 0; i < dimension; ++i) {
+      double mean = columnSums[i] / size;
+      variances[i] = columnSquares[i] / size - mean * mean;
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        return Double.compare(variances[j], variances[i]);
+      }
+    });
+    int[] newOrder = new int[dimension];
+    for (int i = 0; i < dimension; ++i) {
+      newOrder[i] = order.get(i);
+    }
+
+    double[] values = new double[dimension];
+    for (int row = 0; row < size; ++row) {
+      double[] block = block(row);
+      int offset = offset(row);
+      for (int i = 0; i < dimension; ++i) {
+        values[i] = block[offset + positions[newOrder[i]]];
+      }
+      System.arraycopy(values, 0, block, offset, dimension);
+    }
+    dimensionOrder = newOrder;
+    for (int i = 0; i < dimension; ++i) {
+      positions[newOrder[i]] = i;
+    }
+    orderedSize = size;
+  }
+
+  /**
+   * Removes a row by moving the last row into its place, which takes the same time however many
+   * rows there are.  The last row becomes row.
+   */
+  public void swapRemove(int row) {
+    Preconditions.checkElementIndex(row, size);
+    updateColumnStatistics(row, -1);
+    int last = size - 1;
+    if (row != last) {
+      System.arraycopy(block(last), offset(last), block(row), offset(row), dimension);
+      squaredNorms.get(row / ROWS_PER_BLOCK)[row % ROWS_PER_BLOCK] = squaredNorm(last);
+    }
+    --size;
+    if (size % ROWS_PER_BLOCK == 0 && blocks.size() > size / ROWS_PER_BLOCK) {
+      blocks.remove(blocks.size() - 1);
+      squaredNorms.remove(squaredNorms.size() - 1);
+    }
+  }
+
+  public void clear() {
+    blocks.clear();
+    squaredNorms.clear();
+    size = 0;
+    Arrays.fill(columnSums, 0);
+    Arrays.fill(columnSquares, 0);
+    orderedSize = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int dimension() {
+    return dimension;
+  }
+
+  /**
+   * Returns the number of blocks in use.  Only the first rowsInBlock(i) rows of block i are valid.
+   */
+  public int numBlocks() {
+    return blocks.size();
+  }
+
+  public double[] getBlock(int blockNumber) {
+    return blocks.get(blockNumber);
+  }
+
+  /**
+   * Returns the squared norms of the rows in a block.
+   */
+  public double[] getSquaredNorms(int blockNumber) {
+    return squaredNorms.get(blockNumber);
+  }
+
+  public double squaredNorm(int row) {
+    return squaredNorms.get(row / ROWS_PER_BLOCK)[row % ROWS_PER_BLOCK];
+  }
+
+  public int rowsInBlock(int blockNumber) {
+    return Math.min(ROWS_PER_BLOCK, size - blockNumber * ROWS_PER_BLOCK);
+  }
+
+  double[] block(int row) {
+    return blocks.get(row / ROWS_PER_BLOCK);
+  }
+
+  int offset(int row) {
+    return (row % ROWS_PER_BLOCK) * dimension;
+  }
+
+  /**
+   * Returns the dimensions in the order their values are stored in the rows.  The order changes
+   * as rows are added so it must not be kept across adds.
+   */
+  public int[] dimensionOrder() {
+    return dimensionOrder;
+  }
+
+  /**
+   * Copies the values of a vector into an array in the order the values of the rows are stored
+   * so that it can be used with the scanning methods.
+   */
+  public double[] toArray(Vector v, double[] r) {
+    return toArray(v, r, 0);
+  }
+
+  /**
+   * Copies the values of a vector into an array starting at offset, in the order the values of
+   * the rows are stored.
+   */
+  public double[] toArray(Vector v, double[] r, int offset) {
+    Preconditions.checkArgument(v.size() == dimension,
+        "Invalid dimension of query. Expected " + dimension + " Got " + v.size());
+    int[] order = dimensionOrder;
+    for (int i = 0; i < dimension; ++i) {
+      r[offset + i] = v.getQuick(order[i]);
+    }
+    return r;
+  }
+
+  /**
+   * Computes the squared Euclidean distance between a query and a row.
+   */
+  public double squaredDistance(int row, double[] query) {
+    return squaredDistance(query, block(row), offset(row), dimension);
+  }
+
+  /**
+   * Computes the squared Euclidean distance between query and the row starting at offset in a
+   * block in a single fused pass over both arrays.
+   */
+  static double squaredDistance(double[] query, double[] block, int offset, int dimension) {
+    return squaredDistance(query, 0, block, offset, dimension);
+  }
+
+  static double squaredDistance(double[] query, int queryOffset, double[] block, int offset,
+                                int dimension) {
+    double sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      double delta = block[offset + i] - query[queryOffset + i];
+      sum += delta * delta;
+    }
+    return sum;
+  }
+
+  static double dot(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+    double sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      sum += x[xOffset + i] * y[yOffset + i];
+    }
+    return sum;
+  }
+
+  /**
+   * Computes the dot products of one row with a block of numQueries packed queries.  This is one
+   * row of a small matrix product; the row is loaded once for four queries at a time.
+   *
+   * @param block      The block holding the row.
+   * @param offset     Where the row starts in the block.
+   * @param queries    The queries, packed row-major like the rows.
+   * @param numQueries The number of queries in queries.
+   * @param dimension  The dimension of the rows and queries.
+   * @param dots       Where the numQueries dot products are stored.
+   */
+  static void dots(double[] block, int offset, double[] queries, int numQueries, int dimension,
+                   double[] dots) {
+    int j = 0;
+    for (; j + 4 <= numQueries; j += 4) {
+      int q0 = j * dimension;
+      int q1 = q0 + dimension;
+      int q2 = q1 + dimension;
+      int q3 = q2 + dimension;
+      double s0 = 0;
+      double s1 = 0;
+      double s2 = 0;
+      double s3 = 0;
+      for (int i = 0; i < dimension; ++i) {
+        double x = block[offset + i];
+        s0 += x * queries[q0 + i];
+        s1 += x * queries[q1 + i];
+        s2 += x * queries[q2 + i];
+        s3 += x * queries[q3 + i];
+      }
+      dots[j] = s0;
+      dots[j + 1] = s1;
+      dots[j + 2] = s2;
+      dots[j + 3] = s3;
+    }
+    for (; j < numQueries; ++j) {
+      dots[j] = dot(block, offset, queries, j * dimension, dimension);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The basis vectors of a projection searcher held as one dense matrix, so that a vector is
+ * projected on all of them in a single pass over its values instead of one dot product for each.
+ *
+ * The matrix is stored by dimension: the weights of all the basis vectors for a dimension are
+ * next to each other.  Projecting a vector then adds, for each of its values, that value times a
+ * short contiguous row of weights to the projections, which only touches the non-zero values of a
+ * sparse vector.  Blocks of dense vectors are copied into an array and multiplied by the matrix a
+ * tile of dimensions at a time so that the tile of weights stays in cache for the whole block.
+ *
+ * If the basis vectors are sparse (see ProjectionType.SPARSE), each row only keeps the non-zero
+ * weights and the projections they go to, so each value of a vector only costs as many
+ * multiplications as there are basis vectors that are non-zero in its dimension.
+ */
+final class ProjectionBasis {
+  // How many dense vectors are projected together and how many dimensions are in each tile.
+  static final int BLOCK_SIZE = 32;
+  private static final int TILE_SIZE = 128;
+
+  private final int numDimensions;
+  private final int numProjections;
+
+  // Whether the basis vectors are orthonormal.  See ProjectionSearch.isOrthonormal.
+  private final boolean orthonormal;
+
+  // weights[j * numProjections + i] is value j of basis vector i.  Null if the basis is sparse.
+  private final double[] weights;
+
+  // For a sparse basis, the non-zero weights of dimension j are at rowStarts[j] up to
+  // rowStarts[j + 1] in rowWeights, and rowProjections has the basis vectors they belong to.
+  private final int[] rowStarts;
+  private final int[] rowProjections;
+  private final double[] rowWeights;
+
+  // A block of dense vectors for each thread.  Only allocated once a thread projects dense
+  // vectors together, and only as large as the number of them it has seen in one block.
+  private final ThreadLocal<double[]> block = new ThreadLocal<double[]>();
+
+  /**
+   * @param basisVectors The vectors to project on.  If they are all sparse, only their non-zero
+   *                     values are kept.
+   * @param orthonormal  Whether they are orthonormal.
+   */
+  ProjectionBasis(List<Vector> basisVectors, boolean orthonormal) {
+    Preconditions.checkArgument(!basisVectors.isEmpty(), "Must have at least one basis vector");
+    numProjections = basisVectors.size();
+    numDimensions = basisVectors.get(0).size();
+    this.orthonormal = orthonormal;
+    boolean sparse = true;
+    for (Vector basisVector : basisVectors) {
+      sparse &= !basisVector.isDense();
+    }
+    if (!sparse) {
+      weights = new double[numDimensions * numProjections];
+      for (int i = 0; i < numProjections; ++i) {
+        Vector basisVector = basisVectors.get(i);
+        for (int j = 0; j < numDimensions; ++j) {
+          weights[j * numProjections + i] = basisVector.getQuick(j);
+        }
+      }
+      rowStarts = null;
+      rowProjections = null;
+      rowWeights = null;
+    } else {
+      weights = null;
+      // Count the non-zero weights of each dimension, then fill the rows in order of projection.
+      rowStarts = new int[numDimensions + 1];
+      for (Vector basisVector : basisVectors) {
+        Iterator<Vector.Element> nonZeros = basisVector.iterateNonZero();
+        while (nonZeros.hasNext()) {
+          ++rowStarts[nonZeros.next().index() + 1];
+        }
+      }
+      for (int j = 0; j < numDimensions; ++j) {
+        rowStarts[j + 1] += rowStarts[j];
+      }
+      rowProjections = new int[rowStarts[numDimensions]];
+      rowWeights = new double[rowStarts[numDimensions]];
+      int[] next = Arrays.copyOf(rowStarts, numDimensions);
+      for (int i = 0; i < numProjections; ++i) {
+        Iterator<Vector.Element> nonZeros = basisVectors.get(i).iterateNonZero();
+        while (nonZeros.hasNext()) {
+          Vector.Element e = nonZeros.next();
+          rowProjections[next[e.index()]] = i;
+          rowWeights[next[e.index()]++] = e.get();
+        }
+      }
+    }
+  }
+
+  /**
+   * Generates a random basis of the given type.  A dense basis is orthonormal if there are no
+   * more basis vectors than dimensions.
+   */
+  static ProjectionBasis generate(ProjectionType type, int numDimensions, int numProjections) {
+    if (type == ProjectionType.SPARSE) {
+      return new ProjectionBasis(
+          ProjectionSearch.generateSparseBasis(numDimensions, numProjections), false);
+    }
+    return new ProjectionBasis(ProjectionSearch.generateBasis(numDimensions, numProjections),
+        ProjectionSearch.isOrthonormal(numDimensions, numProjections));
+  }
+
+  int numProjections() {
+    return numProjections;
+  }
+
+  int numDimensions() {
+    return numDimensions;
+  }
+
+  boolean isOrthonormal() {
+    return orthonormal;
+  }
+
+  /**
+   * Returns a copy of basis vector i, sparse if the basis is.
+   */
+  Vector basisVector(int i) {
+    if (weights != null) {
+      Vector r = new DenseVector(numDimensions);
+      for (int j = 0; j < numDimensions; ++j) {
+        r.setQuick(j, weights[j * numProjections + i]);
+      }
+      return r;
+    }
+    Vector r = new RandomAccessSparseVector(numDimensions);
+    for (int j = 0; j < numDimensions; ++j) {
+      for (int k = rowStarts[j]; k < rowStarts[j + 1]; ++k) {
+        if (rowProjections[k] == i) {
+          r.setQuick(j, rowWeights[k]);
+        }
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Projects a vector on all the basis vectors.
+   *
+   * @param v      The vector.
+   * @param out    Where to put the projections.
+   * @param offset Where the numProjections projections start in out.
+   */
+  void project(Vector v, double[] out, int offset) {
+    Preconditions.checkArgument(v.size() == numDimensions,
+        "Invalid dimension of vector to project. Expected " + numDimensions + " Got " + v.size());
+    for (int i = 0; i < numProjections; ++i) {
+      out[offset + i] = 0;
+    }
+    if (v.isDense()) {
+      for (int j = 0; j < numDimensions; ++j) {
+        addScaledRow(v.getQuick(j), j, out, offset);
+      }
+    } else {
+      Iterator<Vector.Element> nonZeros = v.iterateNonZero();
+      while (nonZeros.hasNext()) {
+        Vector.Element e = nonZeros.next();
+        addScaledRow(e.get(), e.index(), out, offset);
+      }
+    }
+  }
+
+  /**
+   * Projects some vectors on all the basis vectors.
+   *
+   * @param vectors The vectors.
+   * @param start   The first vector to project.
+   * @param end     One past the last vector to project.
+   * @param out     Where to put the projections, those of each vector in a row of
+   *                numProjections values.
+   * @param offset  Where the row of vectors.get(start) starts in out.
+   */
+  void project(List<? extends Vector> vectors, int start, int end, double[] out, int offset) {
+    // The rows of the dense vectors in the current block and where their projections go.
+    double[] rows = null;
+    int[] outOffsets = null;
+    int numRows = 0;
+    for (int k = start; k < end; ++k) {
+      Vector v = vectors.get(k);
+      int outOffset = offset + (k - start) * numProjections;
+      if (!v.isDense()) {
+        project(v, out, outOffset);
+        continue;
+      }
+      Preconditions.checkArgument(v.size() == numDimensions,
+          "Invalid dimension of vector to project. Expected " + numDimensions + " Got " + v.size());
+      if (rows == null) {
+        rows = block(denseRows(vectors, k, end));
+        outOffsets = new int[BLOCK_SIZE];
+      }
+      int rowOffset = numRows * numDimensions;
+      for (int j = 0; j < numDimensions; ++j) {
+        rows[rowOffset + j] = v.getQuick(j);
+      }
+      outOffsets[numRows++] = outOffset;
+      if (numRows == BLOCK_SIZE) {
+        multiply(rows, numRows, out, outOffsets);
+        numRows = 0;
+      }
+    }
+    if (numRows > 0) {
+      multiply(rows, numRows, out, outOffsets);
+    }
+  }
+
+  /**
+   * Returns how many of vectors.get(start) up to vectors.get(end - 1) are dense, or BLOCK_SIZE if
+   * there are more of them than that.
+   */
+  private static int denseRows(List<? extends Vector> vectors, int start, int end) {
+    int n = 0;
+    for (int k = start; k < end && n < BLOCK_SIZE; ++k) {
+      if (vectors.get(k).isDense()) {
+        ++n;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Returns this thread's block with room for at least numRows dense vectors.
+   */
+  private double[] block(int numRows) {
+    double[] rows = block.get();
+    if (rows == null || rows.length < numRows * numDimensions) {
+      rows = new double[numRows * numDimensions];
+      block.set(rows);
+    }
+    return rows;
+  }
+
+  /**
+   * Multiplies a block of rows by the weights.  The values are summed in the same order as by
+   * project(Vector, ...), so a dense vector gets exactly the same projections either way.
+   */
+  private void multiply(double[] rows, int numRows, double[] out, int[] outOffsets) {
+    for (int r = 0; r < numRows; ++r) {
+      for (int i = 0; i < numProjections; ++i) {
+        out[outOffsets[r] + i] = 0;
+      }
+    }
+    for (int tile = 0; tile < numDimensions; tile += TILE_SIZE) {
+      int tileEnd = Math.min(numDimensions, tile + TILE_SIZE);
+      for (int r = 0; r < numRows; ++r) {
+        int rowOffset = r * numDimensions;
+        for (int j = tile; j < tileEnd; ++j) {
+          addScaledRow(rows[rowOffset + j], j, out, outOffsets[r]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds x times the weights for dimension j to the projections starting at offset in out.
+   */
+  private void addScaledRow(double x, int j, double[] out, int offset) {
+    if (x == 0) {
+      return;
+    }
+    if (weights == null) {
+      for (int k = rowStarts[j]; k < rowStarts[j + 1]; ++k) {
+        out[offset + rowProjections[k]] += x * rowWeights[k];
+      }
+      return;
+    }
+    int row = j * numProjections;
+    for (int i = 0; i < numProjections; ++i) {
+      out[offset + i] += x * weights[row + i];
+    }
+  }
+}
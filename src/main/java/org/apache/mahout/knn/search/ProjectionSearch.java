@@ -19,8 +19,10 @@ package org.apache.mahout.knn.search;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
+import org.apache.mahout.common.RandomUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.WeightedVector;
 import org.apache.mahout.math.function.DoubleFunction;
@@ -30,24 +32,37 @@ import org.apache.mahout.math.random.WeightedThing;
 import java.util.*;
 
 /**
- * Does approximate nearest neighbor dudes search by projecting the data.
+ * Does approximate nearest neighbor dudes search by projecting the data.  Like the other
+ * searchers, this class isn't thread safe.  See ConcurrentProjectionSearch for one that is.
  */
 public class ProjectionSearch extends UpdatableSearcher implements Iterable<Vector> {
+  /**
+   * The scalar projection of a vector on a basis vector, which also knows the id of the vector so
+   * candidates can be told apart without hashing them.
+   */
+  private static final class ScalarProjection extends WeightedThing<Vector> {
+    private final int id;
+
+    ScalarProjection(Vector v, double projection, int id) {
+      super(v, projection);
+      this.id = id;
+    }
+  }
 
   /**
    * A lists of tree sets containing the scalar projections of each vector.
-   * The elements in a TreeSet are WeightedThing<Integer>, where the weight is the scalar
-   * projection of the vector at the index pointed to by the Integer from the referenceVectors list
-   * on the basis vector whose index is the same as the index of the TreeSet in the List.
+   * The elements in a TreeSet are ScalarProjections, where the weight is the scalar
+   * projection of the vector on the basis vector whose index is the same as the index of the
+   * TreeSet in the List.
    */
-  private List<TreeSet<WeightedThing<Vector>>> scalarProjections;
+  private List<TreeSet<ScalarProjection>> scalarProjections;
 
   /**
-   * The list of random normalized projection vectors forming a basis.
-   * The TreeSet of scalar projections at index i in scalarProjections corresponds to the vector
-   * at index i from basisVectors.
+   * The random normalized projection vectors forming a basis.
+   * The TreeSet of scalar projections at index i in scalarProjections corresponds to basis
+   * vector i.
    */
-  private List<Vector> basisVectors;
+  private ProjectionBasis basis;
 
   /**
    * The number of elements to consider on both sides in the ball around the vector found by the
@@ -55,40 +70,132 @@ public class ProjectionSearch extends UpdatableSearcher implements Iterable<Vect
    */
   private int searchSize;
 
-  private int numDimensions;
+  // The vectors by id and the ids of removed vectors, which are given to the next vectors added.
+  private List<Vector> vectors = Lists.newArrayList();
+  private List<Integer> freeIds = Lists.newArrayList();
+
+  // The squared norms of the vectors by id if distances are computed from dot products.
+  private double[] squaredNorms = new double[16];
+
+  // The id of each vector, by reference, and the projections each id was added with, in rows of
+  // numProjections, so that the entries of a vector can be found in the trees even once the vector
+  // has changed.
+  private Map<Vector, Integer> idsByVector = Maps.newIdentityHashMap();
+  private double[] vectorProjections;
+
+  // The number of projections a vector has to be a candidate for to be scored and how much the
+  // lower bounds on the distances of candidates found from their projections are scaled before
+  // being used.  See setMinVotes and setBoundFactor.
+  private int minVotes = 1;
+  private double boundFactor = 1;
+
   private int numProjections;
+  private final ProjectionType projectionType;
   private boolean initialized = false;
 
+  // Buffers reused from one search to the next by each thread.
+  private final ThreadLocal<TopKHeap> heap = new ThreadLocal<TopKHeap>() {
+    @Override
+    protected TopKHeap initialValue() {
+      return new TopKHeap(0);
+    }
+  };
+  private final ThreadLocal<double[]> projections = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[numProjections];
+    }
+  };
+  private final ThreadLocal<CandidateSet> candidates = new ThreadLocal<CandidateSet>() {
+    @Override
+    protected CandidateSet initialValue() {
+      return new CandidateSet();
+    }
+  };
+
+  /**
+   * Generates random unit vectors to project on.  If there are no more of them than dimensions,
+   * they are also made orthogonal to each other (see isOrthonormal).
+   */
   static List<Vector> generateBasis(int numDimensions, int numProjections) {
     final DoubleFunction random = Functions.random();
     List<Vector> basisVectors = Lists.newArrayList();
     for (int i = 0; i < numProjections; ++i) {
       Vector basisVector = new DenseVector(numDimensions);
       basisVector.assign(random);
-      basisVector.normalize();
+      if (isOrthonormal(numDimensions, numProjections)) {
+        // Gram-Schmidt against the previous basis vectors.
+        for (Vector previous : basisVectors) {
+          basisVector.assign(previous, Functions.minusMult(basisVector.dot(previous)));
+        }
+      }
+      basisVector.assign(Functions.div(basisVector.norm(2)));
       basisVectors.add(basisVector);
     }
     return  basisVectors;
   }
 
+  /**
+   * Generates very sparse random unit vectors to project on (see ProjectionType.SPARSE).  Each has
+   * at least one non-zero value.
+   */
+  static List<Vector> generateSparseBasis(int numDimensions, int numProjections) {
+    Random random = RandomUtils.getRandom();
+    double density = 1 / Math.sqrt(numDimensions);
+    List<Vector> basisVectors = Lists.newArrayList();
+    for (int i = 0; i < numProjections; ++i) {
+      Vector basisVector = new RandomAccessSparseVector(numDimensions);
+      while (basisVector.getNumNondefaultElements() == 0) {
+        for (int j = 0; j < numDimensions; ++j) {
+          if (random.nextDouble() < density) {
+            basisVector.setQuick(j, random.nextBoolean() ? 1 : -1);
+          }
+        }
+      }
+      basisVector.assign(Functions.div(Math.sqrt(basisVector.getNumNondefaultElements())));
+      basisVectors.add(basisVector);
+    }
+    return basisVectors;
+  }
+
+  /**
+   * Returns whether the basis generated for the given number of dimensions and projections is
+   * orthonormal.  The projections of a vector on an orthonormal basis are its coordinates in a
+   * subspace, so the Euclidean distance between the projections of two vectors is a lower bound on
+   * the distance between the vectors.
+   */
+  static boolean isOrthonormal(int numDimensions, int numProjections) {
+    return numProjections <= numDimensions;
+  }
+
   private void initialize(int numDimensions) {
     if (initialized)
       return;
     initialized = true;
-    basisVectors = generateBasis(numDimensions, numProjections);
+    basis = ProjectionBasis.generate(projectionType, numDimensions, numProjections);
     scalarProjections = Lists.newArrayList();
     for (int i = 0; i < numProjections; ++i) {
-      scalarProjections.add(Sets.<WeightedThing<Vector>>newTreeSet());
+      scalarProjections.add(Sets.<ScalarProjection>newTreeSet());
     }
   }
 
   public ProjectionSearch(DistanceMeasure distanceMeasure, int numProjections,  int searchSize) {
+    this(distanceMeasure, numProjections, searchSize, ProjectionType.DENSE);
+  }
+
+  /**
+   * @param projectionType How the vectors to project on are generated.
+   */
+  public ProjectionSearch(DistanceMeasure distanceMeasure, int numProjections, int searchSize,
+                          ProjectionType projectionType) {
     super(distanceMeasure);
     Preconditions.checkArgument(numProjections > 0 && numProjections < 100,
         "Unreasonable value for number of projections");
 
     this.searchSize = searchSize;
     this.numProjections = numProjections;
+    this.projectionType = projectionType;
+    vectorProjections = new double[16 * numProjections];
   }
 
   /**
@@ -98,23 +205,128 @@ public class ProjectionSearch extends UpdatableSearcher implements Iterable<Vect
   @Override
   public void add(Vector v) {
     initialize(v.size());
-    Preconditions.checkArgument(v.size() == basisVectors.get(0).size(),
+    checkDimension(v);
+    double[] projections = this.projections.get();
+    basis.project(v, projections, 0);
+    add(v, projections, 0);
+  }
+
+  /**
+   * Adds vectors a block at a time, projecting each block with one product by the basis.
+   */
+  @Override
+  public void addAll(Iterable<? extends Vector> data) {
+    List<Vector> block = Lists.newArrayListWithCapacity(ProjectionBasis.BLOCK_SIZE);
+    double[] projections = new double[ProjectionBasis.BLOCK_SIZE * numProjections];
+    for (Vector v : data) {
+      initialize(v.size());
+      checkDimension(v);
+      block.add(v);
+      if (block.size() == ProjectionBasis.BLOCK_SIZE) {
+        addBlock(block, projections);
+      }
+    }
+    addBlock(block, projections);
+  }
+
+  /**
+   * Replaces all the vectors with new ones.  They are all projected at once and the scalar
+   * projections on each basis vector are sorted once and then put in a new tree in linear time,
+   * rather than inserting the vectors one by one.
+   */
+  @Override
+  public void replaceAll(Iterable<? extends Vector> data) {
+    List<Vector> added = Lists.newArrayList(data);
+    if (added.isEmpty()) {
+      if (initialized) {
+        clear();
+      }
+      return;
+    }
+    initialize(added.get(0).size());
+    for (Vector v : added) {
+      checkDimension(v);
+    }
+    int n = added.size();
+    double[] projections = new double[n * numProjections];
+    basis.project(added, 0, n, projections, 0);
+
+    vectors = added;
+    freeIds.clear();
+    vectorProjections = projections;
+    idsByVector.clear();
+    for (int id = n - 1; id >= 0; --id) {
+      idsByVector.put(added.get(id), id);
+    }
+    if (usesSquaredNorms()) {
+      squaredNorms = new double[Math.max(16, n)];
+      for (int id = 0; id < n; ++id) {
+        squaredNorms[id] = added.get(id).getLengthSquared();
+      }
+    }
+    ScalarProjection[] values = new ScalarProjection[n];
+    for (int i = 0; i < numProjections; ++i) {
+      for (int id = 0; id < n; ++id) {
+        values[id] = new ScalarProjection(added.get(id), projections[id * numProjections + i], id);
+      }
+      // Copying a sorted set into a tree with the same order builds it without comparisons.
+      scalarProjections.set(i, new TreeSet<ScalarProjection>(ImmutableSortedSet.copyOf(values)));
+    }
+  }
+
+  private void addBlock(List<Vector> block, double[] projections) {
+    basis.project(block, 0, block.size(), projections, 0);
+    for (int k = 0; k < block.size(); ++k) {
+      add(block.get(k), projections, k * numProjections);
+    }
+    block.clear();
+  }
+
+  private void checkDimension(Vector v) {
+    Preconditions.checkArgument(v.size() == basis.numDimensions(),
         "Invalid dimension of vector to add. " +
-            "Expected " + Integer.toString(basisVectors.get(0).size()) +
+            "Expected " + Integer.toString(basis.numDimensions()) +
             " Got " + Integer.toString(v.size()));
-    // Add the the new vector and the projected distance to each set separately.
-    Iterator<Vector> basisVector = basisVectors.iterator();
-    for (TreeSet<WeightedThing<Vector>> s : scalarProjections) {
-      assert s.add(new WeightedThing<Vector>(v, v.dot(basisVector.next())));
-    }
-    int numVectors = scalarProjections.get(0).size();
-    for (TreeSet<WeightedThing<Vector>> s : scalarProjections) {
-      assert s.size() == numVectors;
-      double firstWeight = s.first().getWeight();
-      for (WeightedThing<Vector> w : s) {
-        assert firstWeight <= w.getWeight();
-        firstWeight = w.getWeight();
+  }
+
+  /**
+   * Adds a vector given its projections on the basis vectors.
+   */
+  private void add(Vector v, double[] projections, int offset) {
+    int id;
+    if (freeIds.isEmpty()) {
+      id = vectors.size();
+      vectors.add(v);
+    } else {
+      id = freeIds.remove(freeIds.size() - 1);
+      vectors.set(id, v);
+    }
+    if (usesSquaredNorms()) {
+      if (squaredNorms.length <= id) {
+        squaredNorms = Arrays.copyOf(squaredNorms, 2 * squaredNorms.length);
       }
+      squaredNorms[id] = v.getLengthSquared();
+    }
+    if (!idsByVector.containsKey(v)) {
+      idsByVector.put(v, id);
+    }
+    addProjections(v, id, projections, offset);
+  }
+
+  /**
+   * Adds the entries of a vector to the trees and remembers its projections.
+   */
+  private void addProjections(Vector v, int id, double[] projections, int offset) {
+    if (vectorProjections.length < (id + 1) * numProjections) {
+      vectorProjections = Arrays.copyOf(vectorProjections,
+          Math.max(2 * vectorProjections.length, (id + 1) * numProjections));
+    }
+    System.arraycopy(projections, offset, vectorProjections, id * numProjections, numProjections);
+    // Add the the new vector and the projected distance to each set separately.
+    for (int i = 0; i < numProjections; ++i) {
+      boolean added = scalarProjections.get(i).add(
+          new ScalarProjection(v, projections[offset + i], id));
+      assert added;
     }
   }
 
@@ -136,28 +348,63 @@ public class ProjectionSearch extends UpdatableSearcher implements Iterable<Vect
    * @return
    */
   public List<WeightedThing<Vector>> search(final Vector query, int limit) {
-    HashSet<Vector> candidates = Sets.newHashSet();
-
-    Iterator<Vector> projections = basisVectors.iterator();
-    for (TreeSet<WeightedThing<Vector>> v : scalarProjections) {
-      Vector basisVector = projections.next();
-      WeightedThing<Vector> projectedQuery = new WeightedThing<Vector>(query,
-          query.dot(basisVector));
-      for (WeightedThing<Vector> candidate : Iterables.concat(
-          Iterables.limit(v.tailSet(projectedQuery, true), searchSize),
-          Iterables.limit(v.headSet(projectedQuery, false).descendingSet(), searchSize))) {
-        candidates.add(candidate.getValue());
+    TopKHeap top = searchIds(query, limit);
+    top.sort();
+    List<WeightedThing<Vector>> results = Lists.newArrayListWithCapacity(top.size());
+    for (int i = 0; i < top.size(); ++i) {
+      results.add(new WeightedThing<Vector>(vectors.get(top.id(i)), top.distance(i)));
+    }
+    return results;
+  }
+
+  /**
+   * Searches for the closest limit vectors and returns a heap of their ids.
+   */
+  private TopKHeap searchIds(Vector query, int limit) {
+    // The candidates are told apart by their ids and scored into a reusable heap, so only the
+    // results are allocated by a search.
+    CandidateSet candidates = this.candidates.get();
+    candidates.reset(vectors.size(), basis.isOrthonormal());
+    double[] projections = this.projections.get();
+    basis.project(query, projections, 0);
+    for (int i = 0; i < numProjections; ++i) {
+      TreeSet<ScalarProjection> v = scalarProjections.get(i);
+      ScalarProjection projectedQuery = new ScalarProjection(query, projections[i], -1);
+      NavigableSet<ScalarProjection> above = v.tailSet(projectedQuery, true);
+      NavigableSet<ScalarProjection> below = v.headSet(projectedQuery, false).descendingSet();
+      // The first projections on either side that are outside the window.
+      ScalarProjection aboveEdge = Iterables.get(above, searchSize, null);
+      ScalarProjection belowEdge = Iterables.get(below, searchSize, null);
+      double edge = Math.min(
+          aboveEdge == null ? Double.POSITIVE_INFINITY : gap(aboveEdge, projectedQuery),
+          belowEdge == null ? Double.POSITIVE_INFINITY : gap(belowEdge, projectedQuery));
+      edge = Double.isInfinite(edge) ? 0 : edge;
+      candidates.addEdge(edge);
+      for (ScalarProjection candidate : Iterables.concat(Iterables.limit(above, searchSize),
+          Iterables.limit(below, searchSize))) {
+        candidates.add(candidate.id, gap(candidate, projectedQuery), edge);
       }
     }
+    int numCandidates = candidates.prune(minVotes, limit);
 
-    // If searchSize * scalarProjections.size() is small enough not to cause much memory pressure,
-    // this is probably just as fast as a priority queue here.
-    List<WeightedThing<Vector>> top = Lists.newArrayList();
-    for (Vector candidate : candidates) {
-      top.add(new WeightedThing<Vector>(candidate, distanceMeasure.distance(query, candidate)));
+    TopKHeap top = heap.get();
+    top.reset(limit);
+    double queryNorm = usesSquaredNorms() ? query.getLengthSquared() : 0;
+    for (int i = 0; i < numCandidates; ++i) {
+      int id = candidates.get(i);
+      if (boundedDistance != null && boundFactor > 0 && top.threshold()
+          < boundedDistance.fromEuclideanBound(boundFactor * candidates.lowerBound(id))) {
+        // The candidates are ordered by bound so none of the others can make it either.
+        break;
+      }
+      top.offer(id, distance(query, queryNorm, vectors.get(id),
+          usesSquaredNorms() ? squaredNorms[id] : 0, top.threshold()));
     }
-    Collections.sort(top);
-    return top.subList(0, Math.min(limit, top.size()));
+    return top;
+  }
+
+  private static double gap(ScalarProjection x, ScalarProjection y) {
+    return Math.abs(x.getWeight() - y.getWeight());
   }
 
   public int getSearchSize() {
@@ -168,10 +415,40 @@ public class ProjectionSearch extends UpdatableSearcher implements Iterable<Vect
     this.searchSize = searchSize;
   }
 
+  public int getMinVotes() {
+    return minVotes;
+  }
+
+  /**
+   * Sets how many of the projections a vector has to be a candidate for to be scored.  If fewer
+   * candidates than the number of results wanted have enough votes, all of them are scored.  The
+   * default is 1, which scores all of them.  See FastProjectionSearch.setMinVotes.
+   */
+  public void setMinVotes(int minVotes) {
+    Preconditions.checkArgument(minVotes > 0 && minVotes <= numProjections,
+        "Minimum number of votes must be between 1 and the number of projections");
+    this.minVotes = minVotes;
+  }
+
+  public double getBoundFactor() {
+    return boundFactor;
+  }
+
+  /**
+   * Sets how candidates are skipped because of the gaps between their projections and the
+   * query's.
+   * With the default of 1, only candidates that couldn't be results are skipped, larger factors
+   * skip more and 0 skips none.  See FastProjectionSearch.setBoundFactor.
+   */
+  public void setBoundFactor(double boundFactor) {
+    Preconditions.checkArgument(boundFactor >= 0, "Bound factor can't be negative");
+    this.boundFactor = boundFactor;
+  }
+
   @Override
   public Iterator<Vector> iterator() {
     return new AbstractIterator<Vector>() {
-      private Iterator<WeightedThing<Vector>> projected = scalarProjections.get(0).iterator();
+      private Iterator<ScalarProjection> projected = scalarProjections.get(0).iterator();
       @Override
       protected Vector computeNext() {
         if (!projected.hasNext()) {
@@ -183,24 +460,96 @@ public class ProjectionSearch extends UpdatableSearcher implements Iterable<Vect
   }
 
   public boolean remove(Vector vector, double epsilon) {
-    List<WeightedThing<Vector>> x = search(vector, 1);
-    if (x.get(0).getWeight() < 1e-7) {
-      Iterator<Vector> basisVectors = this.basisVectors.iterator();
-      for (TreeSet<WeightedThing<Vector>> projection : scalarProjections) {
-        if (!projection.remove(new WeightedThing<Integer>(-1, vector.dot(basisVectors.next())))) {
-          throw new RuntimeException("Internal inconsistency in ProjectionSearch");
-        }
-      }
+    TopKHeap x = searchIds(vector, 1);
+    if (x.size() > 0 && x.distance(0) < 1e-7) {
+      remove(x.id(0));
       return true;
     } else {
       return false;
     }
   }
 
+  /**
+   * Moves a vector to its new value without searching for it.  Its id is found by reference and
+   * its entries are taken out of each tree with the projections it was added with, then those of
+   * the new value are put in with the same id.  If v isn't the vector that was added but only
+   * equal to it, it is removed with a search as usual.
+   */
+  @Override
+  public boolean update(Vector v, Vector newValue) {
+    if (!initialized) {
+      return false;
+    }
+    checkDimension(newValue);
+    Integer id = idsByVector.get(v);
+    if (id == null) {
+      return super.update(v, newValue);
+    }
+    remove(id);
+    // The id just freed is the one the new value gets.
+    double[] projections = this.projections.get();
+    basis.project(newValue, projections, 0);
+    add(newValue, projections, 0);
+    return true;
+  }
+
+  @Override
+  public boolean canUpdateInPlace() {
+    return true;
+  }
+
+  /**
+   * Moves the entries of a vector that was changed in place.  The vector is found by reference and
+   * its old entries by the projections it was added with, so nothing is searched.
+   */
+  @Override
+  public boolean updated(Vector v) {
+    Integer id = idsByVector.get(v);
+    if (id == null) {
+      return false;
+    }
+    removeProjections(id);
+    if (usesSquaredNorms()) {
+      squaredNorms[id] = v.getLengthSquared();
+    }
+    double[] projections = this.projections.get();
+    basis.project(v, projections, 0);
+    addProjections(v, id, projections, 0);
+    return true;
+  }
+
+  /**
+   * Removes the vector with the given id.
+   */
+  private void remove(int id) {
+    removeProjections(id);
+    Vector v = vectors.get(id);
+    if (Integer.valueOf(id).equals(idsByVector.get(v))) {
+      idsByVector.remove(v);
+    }
+    vectors.set(id, null);
+    freeIds.add(id);
+  }
+
+  /**
+   * Takes the entries of a vector out of the trees, given the projections it was added with.
+   */
+  private void removeProjections(int id) {
+    for (int i = 0; i < numProjections; ++i) {
+      if (!scalarProjections.get(i).remove(
+          new ScalarProjection(null, vectorProjections[id * numProjections + i], -1))) {
+        throw new RuntimeException("Internal inconsistency in ProjectionSearch");
+      }
+    }
+  }
+
   @Override
   public void clear() {
-    for (TreeSet<WeightedThing<Vector>> set : scalarProjections) {
+    for (TreeSet<ScalarProjection> set : scalarProjections) {
       set.clear();
     }
+    vectors.clear();
+    freeIds.clear();
+    idsByVector.clear();
   }
 }
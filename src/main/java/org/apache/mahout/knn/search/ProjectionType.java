@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.knn.search;
+
+/**
+ * How the random vectors that ProjectionSearch, FastProjectionSearch and
+ * LocalitySensitiveHashSearch project on are generated.
+ */
+public enum ProjectionType {
+  /**
+   * Gaussian random vectors.  Projecting a vector costs one multiplication for each projection
+   * and each value of the vector.
+   */
+  DENSE,
+
+  /**
+   * Very sparse random vectors (Li, Hastie and Church, 2006): each value is +1 or -1 with
+   * probability 1 / (2 sqrt(d)) and 0 otherwise, scaled to unit length.  Projecting a vector costs
+   * about numProjections / sqrt(d) multiplications for each of its non-zero values, so a dense
+   * vector takes O(d) and a sparse one O(nnz) instead of numProjections times that.  The vectors
+   * aren't orthogonal, so the projection searches bound distances less tightly when pruning.
+   */
+  SPARSE
+}
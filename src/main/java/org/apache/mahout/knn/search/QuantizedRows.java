@@ -0,0 +1,466 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores scalar quantized copies of vectors of the same dimension, either as one byte or as one
+ * half precision float per value instead of the eight bytes of a double.  Scanning these moves
+ * a fraction of the memory that scanning the full vectors does.  The distances computed from
+ * them are approximate, so a searcher uses them to pick a few times more candidates than it needs
+ * (see RERANK_FACTOR) and then computes the exact distances of those candidates with the
+ * original vectors.
+ *
+ * Each dimension is calibrated separately.  The values of dimension i are mapped to a code
+ * (x - min[i]) / step[i] where [min, max] is slightly wider than the range of the values seen and
+ * step[i] is that range divided by the number of levels of the encoding.  Values added later that
+ * fall outside the calibrated range are clamped and the rows are marked as needing calibration.
+ * Since only the owner of the rows has the original vectors, it is up to it to call rebuild.
+ *
+ * Only distances that are sums over dimensions (see BoundedDistance) can be computed this way.
+ */
+public class QuantizedRows {
+  public enum Encoding {
+    // One byte per value: 256 levels.
+    INT8,
+    // One IEEE 754 half precision float per value: 11 bits of precision over the calibrated range.
+    FLOAT16
+  }
+
+  /**
+   * The number of candidates picked with the quantized distances for each result wanted.
+   */
+  public static final int RERANK_FACTOR = 4;
+
+  // The calibrated range is widened by this fraction of the range seen on each side so that a
+  // few more vectors from the same distribution don't immediately force another calibration.
+  private static final double CALIBRATION_MARGIN = 0.05;
+
+  private static final int ROWS_PER_BLOCK = PackedRows.ROWS_PER_BLOCK;
+
+  private static final int INT8_LEVELS = 255;
+
+  // The values of all half precision floats, indexed by their bits.
+  private static final float[] HALF_VALUES = new float[1 << 16];
+
+  static {
+    for (int i = 0; i < HALF_VALUES.length; ++i) {
+      HALF_VALUES[i] = fromHalf((short) i);
+    }
+  }
+
+  private final int dimension;
+  private final Encoding encoding;
+  private final BoundedDistance distance;
+
+  // The blocks of codes, laid out like the rows of PackedRows.  Only the list for the encoding is
+  // used.
+  private final List<byte[]> byteBlocks = Lists.newArrayList();
+  private final List<short[]> shortBlocks = Lists.newArrayList();
+
+  private int size = 0;
+
+  // The calibration of each dimension.
+  private final double[] min;
+  private final double[] step;
+
+  // The weight of the difference of codes in each dimension: step for Manhattan distance and
+  // step^2 for the Euclidean ones.
+  private final double[] weights;
+
+  // The weights rounded to integers from 1 to INT8_LEVELS in units of intWeightUnit, used to sum
+  // int8 distances as integers.
+  private final int[] intWeights;
+  private double intWeightUnit;
+
+  // The range of the values seen in each dimension.
+  private final double[] seenMin;
+  private final double[] seenMax;
+
+  // Whether the rows were never calibrated or some values were clamped since the last calibration.
+  private boolean needsCalibration = true;
+
+  /**
+   * @param dimension The dimension of the vectors.
+   * @param encoding  How to encode the values.
+   * @param distance  The distance to approximate.
+   */
+  public QuantizedRows(int dimension, Encoding encoding, BoundedDistance distance) {
+    Preconditions.checkArgument(dimension > 0, "Dimension must be positive");
+    Preconditions.checkNotNull(encoding);
+    Preconditions.checkNotNull(distance,
+        "Quantized rows need Euclidean, squared Euclidean or Manhattan distance");
+    this.dimension = dimension;
+    this.encoding = encoding;
+    this.distance = distance;
+    min = new double[dimension];
+    step = new double[dimension];
+    weights = new double[dimension];
+    intWeights = new int[dimension];
+    seenMin = new double[dimension];
+    seenMax = new double[dimension];
+    Arrays.fill(step, 1);
+    resetSeenRange();
+    updateWeights();
+  }
+
+  /**
+   * Encodes a vector into a new row.
+   * @return The number of the new row.
+   */
+  public int add(Vector v) {
+    int row = size;
+    if (row / ROWS_PER_BLOCK == numBlocks()) {
+      if (encoding == Encoding.INT8) {
+        byteBlocks.add(new byte[ROWS_PER_BLOCK * dimension]);
+      } else {
+        shortBlocks.add(new short[ROWS_PER_BLOCK * dimension]);
+      }
+    }
+    ++size;
+    set(row, v);
+    return row;
+  }
+
+  /**
+   * Overwrites the codes of a row with the encoded values of a vector.
+   */
+  public void set(int row, Vector v) {
+    Preconditions.checkArgument(v.size() == dimension,
+        "Invalid dimension of vector to add. Expected " + dimension + " Got " + v.size());
+    Preconditions.checkElementIndex(row, size);
+    int offset = (row % ROWS_PER_BLOCK) * dimension;
+    for (int i = 0; i < dimension; ++i) {
+      double x = v.getQuick(i);
+      seenMin[i] = Math.min(seenMin[i], x);
+      seenMax[i] = Math.max(seenMax[i], x);
+      double code = (x - min[i]) / step[i];
+      if (encoding == Encoding.INT8) {
+        long level = Math.round(code);
+        if (level < 0 || level > INT8_LEVELS) {
+          needsCalibration = true;
+          level = Math.max(0, Math.min(INT8_LEVELS, level));
+        }
+        byteBlocks.get(row / ROWS_PER_BLOCK)[offset + i] = (byte) (level - 128);
+      } else {
+        if (code < 0 || code > 1) {
+          needsCalibration = true;
+          code = Math.max(0, Math.min(1, code));
+        }
+        shortBlocks.get(row / ROWS_PER_BLOCK)[offset + i] = toHalf((float) code);
+      }
+    }
+  }
+
+  /**
+   * Removes a row by moving the last row into its place, which takes the same time however many
+   * rows there are.  The last row becomes row.
+   */
+  public void swapRemove(int row) {
+    Preconditions.checkElementIndex(row, size);
+    int last = size - 1;
+    if (row != last) {
+      int from = (last % ROWS_PER_BLOCK) * dimension;
+      int to = (row % ROWS_PER_BLOCK) * dimension;
+      if (encoding == Encoding.INT8) {
+        System.arraycopy(byteBlocks.get(last / ROWS_PER_BLOCK), from,
+            byteBlocks.get(row / ROWS_PER_BLOCK), to, dimension);
+      } else {
+        System.arraycopy(shortBlocks.get(last / ROWS_PER_BLOCK), from,
+            shortBlocks.get(row / ROWS_PER_BLOCK), to, dimension);
+      }
+    }
+    --size;
+    removeEmptyBlock();
+  }
+
+  private void removeEmptyBlock() {
+    if (size % ROWS_PER_BLOCK == 0 && numBlocks() > size / ROWS_PER_BLOCK) {
+      if (encoding == Encoding.INT8) {
+        byteBlocks.remove(byteBlocks.size() - 1);
+      } else {
+        shortBlocks.remove(shortBlocks.size() - 1);
+      }
+    }
+  }
+
+  public void clear() {
+    byteBlocks.clear();
+    shortBlocks.clear();
+    size = 0;
+    resetSeenRange();
+    needsCalibration = true;
+  }
+
+  /**
+   * Calibrates the dimensions to the range of the given vectors and encodes them, in order, as
+   * the new rows.
+   */
+  public void rebuild(Iterable<? extends Vector> vectors) {
+    resetSeenRange();
+    for (Vector v : vectors) {
+      Preconditions.checkArgument(v.size() == dimension,
+          "Invalid dimension of vector to add. Expected " + dimension + " Got " + v.size());
+      for (int i = 0; i < dimension; ++i) {
+        double x = v.getQuick(i);
+        seenMin[i] = Math.min(seenMin[i], x);
+        seenMax[i] = Math.max(seenMax[i], x);
+      }
+    }
+    int levels = encoding == Encoding.INT8 ? INT8_LEVELS : 1;
+    for (int i = 0; i < dimension; ++i) {
+      double range = seenMax[i] - seenMin[i];
+      if (range > 0) {
+        min[i] = seenMin[i] - CALIBRATION_MARGIN * range;
+        step[i] = (1 + 2 * CALIBRATION_MARGIN) * range / levels;
+      } else {
+        // Nothing was seen or all the values are the same.
+        min[i] = range == 0 ? seenMin[i] : 0;
+        step[i] = 1;
+      }
+    }
+    updateWeights();
+
+    byteBlocks.clear();
+    shortBlocks.clear();
+    size = 0;
+    needsCalibration = false;
+    for (Vector v : vectors) {
+      add(v);
+    }
+  }
+
+  private void resetSeenRange() {
+    Arrays.fill(seenMin, Double.POSITIVE_INFINITY);
+    Arrays.fill(seenMax, Double.NEGATIVE_INFINITY);
+  }
+
+  private void updateWeights() {
+    double maxWeight = 0;
+    for (int i = 0; i < dimension; ++i) {
+      weights[i] = distance.sumsSquares() ? step[i] * step[i] : step[i];
+      maxWeight = Math.max(maxWeight, weights[i]);
+    }
+    intWeightUnit = maxWeight / INT8_LEVELS;
+    for (int i = 0; i < dimension; ++i) {
+      intWeights[i] = (int) Math.max(1, Math.round(weights[i] / intWeightUnit));
+    }
+  }
+
+  /**
+   * Returns whether rebuild was never called or values outside of the calibrated range were
+   * clamped since it was last called, in which case the distances computed are less accurate
+   * than they should be.
+   */
+  public boolean needsCalibration() {
+    return needsCalibration;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int dimension() {
+    return dimension;
+  }
+
+  private int numBlocks() {
+    return encoding == Encoding.INT8 ? byteBlocks.size() : shortBlocks.size();
+  }
+
+  /**
+   * Maps a query to the units of the codes so that it can be compared to the rows.
+   *
+   * @param query The query.
+   * @param r     Where to put the mapped query.  Can be reused from one query to the next.
+   * @return r
+   */
+  public Query prepare(Vector query, Query r) {
+    Preconditions.checkArgument(query.size() == dimension,
+        "Invalid dimension of query. Expected " + dimension + " Got " + query.size());
+    r.reserve(dimension);
+    for (int i = 0; i < dimension; ++i) {
+      double code = (query.getQuick(i) - min[i]) / step[i];
+      if (encoding == Encoding.INT8) {
+        // Stored codes are shifted down by 128 to fit a signed byte.  The query is clamped to
+        // within a range of codes of the stored ones so the integer sums can't overflow.
+        r.codes[i] = (int) Math.max(-128 - INT8_LEVELS,
+            Math.min(127 + INT8_LEVELS, Math.round(code) - 128));
+      } else {
+        r.values[i] = code;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Computes the approximate distance between a prepared query and a row in the accumulated units
+   * of the distance (see BoundedDistance.toAccumulated).
+   */
+  public double distance(int row, Query query) {
+    int offset = (row % ROWS_PER_BLOCK) * dimension;
+    if (encoding == Encoding.INT8) {
+      byte[] block = byteBlocks.get(row / ROWS_PER_BLOCK);
+      return intWeightUnit * (distance.sumsSquares()
+          ? int8SquaredDistance(block, offset, query.codes)
+          : int8AbsoluteDistance(block, offset, query.codes));
+    } else {
+      short[] block = shortBlocks.get(row / ROWS_PER_BLOCK);
+      return distance.sumsSquares()
+          ? halfSquaredDistance(block, offset, query.values)
+          : halfAbsoluteDistance(block, offset, query.values);
+    }
+  }
+
+  // The int8 distances are summed as integers, which is much faster than converting every code to
+  // a double.  Each term is at most 255 * 510^2 < 2^31.
+  private long int8SquaredDistance(byte[] block, int offset, int[] query) {
+    long sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      int delta = block[offset + i] - query[i];
+      sum += intWeights[i] * delta * delta;
+    }
+    return sum;
+  }
+
+  private long int8AbsoluteDistance(byte[] block, int offset, int[] query) {
+    long sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      sum += intWeights[i] * Math.abs(block[offset + i] - query[i]);
+    }
+    return sum;
+  }
+
+  private double halfSquaredDistance(short[] block, int offset, double[] query) {
+    double sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      double delta = HALF_VALUES[block[offset + i] & 0xffff] - query[i];
+      sum += weights[i] * delta * delta;
+    }
+    return sum;
+  }
+
+  private double halfAbsoluteDistance(short[] block, int offset, double[] query) {
+    double sum = 0;
+    for (int i = 0; i < dimension; ++i) {
+      sum += weights[i] * Math.abs(HALF_VALUES[block[offset + i] & 0xffff] - query[i]);
+    }
+    return sum;
+  }
+
+  /**
+   * Offers the approximate distances of the rows from start up to end to a heap.  The ids in the
+   * heap are row numbers.
+   */
+  public void scan(Query query, int start, int end, TopKHeap candidates) {
+    // Walk the blocks overlapping the range directly.
+    int row = start;
+    while (row < end) {
+      int blockNumber = row / ROWS_PER_BLOCK;
+      int blockEnd = Math.min(end, (blockNumber + 1) * ROWS_PER_BLOCK);
+      int offset = (row % ROWS_PER_BLOCK) * dimension;
+      if (encoding == Encoding.INT8) {
+        byte[] block = byteBlocks.get(blockNumber);
+        boolean squared = distance.sumsSquares();
+        for (; row < blockEnd; ++row, offset += dimension) {
+          long sum = squared ? int8SquaredDistance(block, offset, query.codes)
+              : int8AbsoluteDistance(block, offset, query.codes);
+          candidates.offer(row, intWeightUnit * sum);
+        }
+      } else {
+        short[] block = shortBlocks.get(blockNumber);
+        boolean squared = distance.sumsSquares();
+        for (; row < blockEnd; ++row, offset += dimension) {
+          candidates.offer(row, squared ? halfSquaredDistance(block, offset, query.values)
+              : halfAbsoluteDistance(block, offset, query.values));
+        }
+      }
+    }
+  }
+
+  /**
+   * A query mapped to the units of the codes by prepare.
+   */
+  public static class Query {
+    private double[] values = new double[0];
+    private int[] codes = new int[0];
+
+    private void reserve(int dimension) {
+      if (values.length < dimension) {
+        values = new double[dimension];
+        codes = new int[dimension];
+      }
+    }
+  }
+
+  /**
+   * Converts a float to the bits of the nearest half precision float.
+   */
+  static short toHalf(float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int magnitude = bits & 0x7fffffff;
+    // Adding half of the dropped mantissa bits rounds to nearest.
+    int rounded = magnitude + 0x1000;
+    if (magnitude >= 0x7f800000) {
+      // Infinity or NaN, keeping NaN a NaN.
+      return (short) (sign | 0x7c00 | (magnitude > 0x7f800000 ? 0x200 : 0));
+    }
+    if (rounded >= 0x47800000) {
+      // Too large, so infinity.
+      return (short) (sign | 0x7c00);
+    }
+    if (rounded >= 0x38800000) {
+      // Normal, rebias the exponent from 127 to 15.
+      return (short) (sign | ((rounded - 0x38000000) >>> 13));
+    }
+    if (magnitude < 0x33000000) {
+      // Too small, so zero.
+      return (short) sign;
+    }
+    // Subnormal.
+    int exponent = magnitude >>> 23;
+    int mantissa = (magnitude & 0x7fffff) | 0x800000;
+    return (short) (sign | ((mantissa + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+  }
+
+  /**
+   * Converts the bits of a half precision float to a float.
+   */
+  static float fromHalf(short half) {
+    int bits = half & 0xffff;
+    int sign = (bits & 0x8000) << 16;
+    int exponent = (bits >>> 10) & 0x1f;
+    int mantissa = bits & 0x3ff;
+    if (exponent == 0) {
+      // Zero or subnormal.
+      float value = mantissa * 0x1p-24f;
+      return sign == 0 ? value : -value;
+    } else if (exponent == 31) {
+      return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+    } else {
+      return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+  }
+}
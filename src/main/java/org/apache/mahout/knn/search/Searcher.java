@@ -36,14 +36,71 @@ import java.util.List;
 public abstract class Searcher implements Iterable<Vector> {
   protected DistanceMeasure distanceMeasure;
 
+  // The version of the distance measure that can stop early, or null if there is none.
+  protected final BoundedDistance boundedDistance;
+
+  // The kernel for the distance measure, or null if there is none.
+  protected final DistanceKernel kernel;
+
   public Searcher(DistanceMeasure distanceMeasure) {
     this.distanceMeasure = distanceMeasure;
+    this.boundedDistance = BoundedDistance.forMeasure(distanceMeasure);
+    this.kernel = DistanceKernel.forMeasure(distanceMeasure);
   }
 
   public DistanceMeasure getDistanceMeasure(){
     return distanceMeasure;
   }
 
+  /**
+   * Computes the distance between two vectors for a search that only cares about distances
+   * smaller than bound.  For dense vectors and a measure that has a BoundedDistance, the sum is
+   * abandoned as soon as it is larger than bound.
+   *
+   * @return The distance, or some value larger than bound if the distance is larger than bound.
+   */
+  protected double distance(Vector v1, Vector v2, double bound) {
+    if (boundedDistance != null && v1.isDense() && v2.isDense()) {
+      return boundedDistance.distance(v1, v2, bound);
+    }
+    return distanceMeasure.distance(v1, v2);
+  }
+
+  /**
+   * Returns whether distances can be computed from dot products and squared norms, in which case
+   * the squared norm of each reference vector should be kept when it is added and passed to
+   * distance(Vector, double, Vector, double, double).
+   */
+  protected boolean usesSquaredNorms() {
+    return kernel != null && kernel.usesDotProducts();
+  }
+
+  /**
+   * Computes the distance between a query and a reference vector for a search that only cares
+   * about distances smaller than bound.  If usesSquaredNorms, this costs a single dot product,
+   * which is also cheap for sparse vectors, unless round-off could make a difference and the
+   * distance is computed directly.  Dense vectors are still compared with the BoundedDistance if
+   * there is one since that usually stops long before a dot product would be done.
+   *
+   * @param query            The query.
+   * @param querySquaredNorm The squared norm of the query, computed once per search.
+   * @param v                The reference vector.
+   * @param squaredNorm      The squared norm of the reference vector, kept since it was added.
+   * @param bound            Only distances up to bound matter.
+   * @return The distance, or some value larger than bound if the distance is larger than bound.
+   */
+  protected double distance(Vector query, double querySquaredNorm, Vector v, double squaredNorm,
+                            double bound) {
+    if (usesSquaredNorms() && (boundedDistance == null || !query.isDense() || !v.isDense())) {
+      double score = kernel.dotScore(v.dot(query), squaredNorm, querySquaredNorm, query.size(),
+          kernel.toScore(bound));
+      if (!Double.isNaN(score)) {
+        return kernel.toDistance(score);
+      }
+    }
+    return distance(query, v, bound);
+  }
+
   /**
    * Add a new Vector to the Searcher that will be checked when getting
    * the nearest neighbors.
@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.WeightedThing;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the cheapest configuration of an approximate searcher that reaches a target recall.
+ *
+ * The true nearest neighbors of a sample of queries in a sample of the data are found once with a
+ * BruteSearch.  Then, for each of a few settings that need a searcher of their own, like the
+ * number of projections, a searcher is filled with the data and its search size is tuned without
+ * rebuilding it: the search size is doubled until the target recall is reached, and then the
+ * smallest search size that still reaches it is found by bisection.  The cost of each
+ * configuration tried is the mean time taken by a query.
+ *
+ * Recall@k is the fraction of the k results of a query that are at most as far from it as its
+ * k-th true nearest neighbor, so ties among the true neighbors don't count as misses.
+ */
+public class SearcherTuner {
+  /**
+   * The kind of searcher being tuned and the settings to try for it besides the search size.
+   */
+  public abstract static class Family {
+    /**
+     * Returns the number of settings to try.
+     */
+    public abstract int numSettings();
+
+    /**
+     * Describes one of the settings, like "numProjections=4".
+     */
+    public abstract String describe(int setting);
+
+    /**
+     * Creates an empty searcher with one of the settings.
+     */
+    public abstract Searcher create(DistanceMeasure measure, int setting, int searchSize);
+
+    public abstract void setSearchSize(Searcher searcher, int searchSize);
+
+    /**
+     * Fills a searcher with the data before it is searched.
+     */
+    public void fill(Searcher searcher, List<Vector> data) {
+      searcher.addAll(data);
+    }
+  }
+
+  /**
+   * One configuration that was tried.
+   */
+  public static final class Point {
+    private final String configuration;
+    private final int searchSize;
+    private final double recall;
+    private final double cost;
+
+    Point(String configuration, int searchSize, double recall, double cost) {
+      this.configuration = configuration;
+      this.searchSize = searchSize;
+      this.recall = recall;
+      this.cost = cost;
+    }
+
+    public String getConfiguration() {
+      return configuration;
+    }
+
+    public int getSearchSize() {
+      return searchSize;
+    }
+
+    /**
+     * Returns the mean recall@k over the queries.
+     */
+    public double getRecall() {
+      return recall;
+    }
+
+    /**
+     * Returns the mean time taken by a query, in microseconds.
+     */
+    public double getCost() {
+      return cost;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s recall=%.3f cost=%.1fus", configuration, recall, cost);
+    }
+  }
+
+  /**
+   * The searcher that was picked and all the configurations that were tried.
+   */
+  public static final class Result {
+    private final Searcher searcher;
+    private final Point best;
+    private final boolean targetReached;
+    private final List<Point> curve;
+
+    Result(Searcher searcher, Point best, boolean targetReached, List<Point> curve) {
+      this.searcher = searcher;
+      this.best = best;
+      this.targetReached = targetReached;
+      this.curve = curve;
+    }
+
+    /**
+     * Returns the searcher with the configuration picked, filled with the data it was tuned on.
+     */
+    public Searcher getSearcher() {
+      return searcher;
+    }
+
+    /**
+     * Returns the cheapest configuration that reached the target recall or, if none did, the one
+     * with the best recall.
+     */
+    public Point getBest() {
+      return best;
+    }
+
+    public boolean isTargetReached() {
+      return targetReached;
+    }
+
+    /**
+     * Returns all the configurations tried, from the cheapest to the most expensive.
+     */
+    public List<Point> getCurve() {
+      return curve;
+    }
+  }
+
+  private final DistanceMeasure measure;
+  private final List<Vector> data;
+  private final List<Vector> queries;
+  private final int k;
+
+  // The distance from each query to its k-th true nearest neighbor.
+  private final double[] kthDistances;
+
+  // The largest search size tried.
+  private int maxSearchSize;
+
+  /**
+   * @param measure The distance measure the searchers will use.
+   * @param data    A sample of the vectors that will be searched.
+   * @param queries A sample of the queries.
+   * @param k       The number of results the queries will ask for.
+   */
+  public SearcherTuner(DistanceMeasure measure, List<Vector> data, List<Vector> queries, int k) {
+    Preconditions.checkArgument(k > 0 && k <= data.size(),
+        "Number of results must be between 1 and the number of vectors");
+    Preconditions.checkArgument(!queries.isEmpty(), "Need at least one query");
+    this.measure = measure;
+    this.data = data;
+    this.queries = queries;
+    this.k = k;
+    this.maxSearchSize = data.size();
+
+    BruteSearch brute = new BruteSearch(measure);
+    brute.addAll(data);
+    kthDistances = new double[queries.size()];
+    List<List<WeightedThing<Vector>>> truth = brute.search(queries, k);
+    for (int q = 0; q < queries.size(); ++q) {
+      kthDistances[q] = measure.distance(queries.get(q), truth.get(q).get(k - 1).getValue());
+    }
+  }
+
+  public int getMaxSearchSize() {
+    return maxSearchSize;
+  }
+
+  /**
+   * Sets the largest search size tried.  The default is the number of vectors.
+   */
+  public void setMaxSearchSize(int maxSearchSize) {
+    Preconditions.checkArgument(maxSearchSize > 0, "Search size must be positive");
+    this.maxSearchSize = maxSearchSize;
+  }
+
+  /**
+   * Tunes a kind of searcher for a target recall@k.
+   */
+  public Result tune(Family family, double targetRecall) {
+    Preconditions.checkArgument(targetRecall > 0 && targetRecall <= 1,
+        "Target recall must be between 0 and 1");
+    List<Point> curve = Lists.newArrayList();
+    Searcher bestSearcher = null;
+    Point best = null;
+    boolean targetReached = false;
+    for (int setting = 0; setting < family.numSettings(); ++setting) {
+      Searcher searcher = family.create(measure, setting, k);
+      family.fill(searcher, data);
+
+      // Double the search size until the target is reached, then bisect between the last search
+      // size that didn't reach it and the first one that did.
+      int low = 0;
+      int high = -1;
+      Point reached = null;
+      Point mostRecall = null;
+      for (int searchSize = Math.min(k, maxSearchSize); high < 0;
+           searchSize = Math.min(2 * searchSize, maxSearchSize)) {
+        Point point = measure(family, setting, searcher, searchSize);
+        curve.add(point);
+        if (mostRecall == null || point.recall > mostRecall.recall) {
+          mostRecall = point;
+        }
+        if (point.recall >= targetRecall) {
+          high = searchSize;
+          reached = point;
+        } else if (searchSize == maxSearchSize) {
+          break;
+        } else {
+          low = searchSize;
+        }
+      }
+      while (high >= 0 && high - low > 1) {
+        int searchSize = (low + high) / 2;
+        Point point = measure(family, setting, searcher, searchSize);
+        curve.add(point);
+        if (point.recall >= targetRecall) {
+          high = searchSize;
+          if (point.cost < reached.cost) {
+            reached = point;
+          }
+        } else {
+          low = searchSize;
+        }
+      }
+
+      // Keep this searcher if it is the cheapest to reach the target so far or, while none has
+      // reached it, if it has the best recall.
+      if (reached != null && (!targetReached || reached.cost < best.cost)) {
+        targetReached = true;
+        best = reached;
+        bestSearcher = searcher;
+      } else if (!targetReached && (best == null || mostRecall.recall > best.recall)) {
+        best = mostRecall;
+        bestSearcher = searcher;
+      }
+    }
+    Preconditions.checkArgument(bestSearcher != null, "No setting to try");
+
+    family.setSearchSize(bestSearcher, best.searchSize);
+    Collections.sort(curve, new Comparator<Point>() {
+      @Override
+      public int compare(Point p1, Point p2) {
+        return Double.compare(p1.cost, p2.cost);
+      }
+    });
+    return new Result(bestSearcher, best, targetReached, Collections.unmodifiableList(curve));
+  }
+
+  /**
+   * Measures the recall and the cost of a searcher with a search size.  The queries are run once
+   * to measure the recall, which also warms the searcher up, and then once more to time them.
+   */
+  private Point measure(Family family, int setting, Searcher searcher, int searchSize) {
+    family.setSearchSize(searcher, searchSize);
+    int hits = 0;
+    for (int q = 0; q < queries.size(); ++q) {
+      Vector query = queries.get(q);
+      // Distances are recomputed the same way as the true ones so round-off can't make a miss.
+      double kthDistance = kthDistances[q];
+      for (WeightedThing<Vector> result : searcher.search(query, k)) {
+        if (measure.distance(query, result.getValue()) <= kthDistance) {
+          ++hits;
+        }
+      }
+    }
+    long start = System.nanoTime();
+    for (Vector query : queries) {
+      searcher.search(query, k);
+    }
+    double cost = (System.nanoTime() - start) / 1e3 / queries.size();
+    return new Point(family.describe(setting) + " searchSize=" + searchSize, searchSize,
+        (double) hits / (k * queries.size()), cost);
+  }
+
+  /**
+   * Tunes ProjectionSearch with each of some numbers of projections.
+   */
+  public static Family projectionSearch(final int... numProjections) {
+    return new Family() {
+      @Override
+      public int numSettings() {
+        return numProjections.length;
+      }
+
+      @Override
+      public String describe(int setting) {
+        return "ProjectionSearch numProjections=" + numProjections[setting];
+      }
+
+      @Override
+      public Searcher create(DistanceMeasure measure, int setting, int searchSize) {
+        return new ProjectionSearch(measure, numProjections[setting], searchSize);
+      }
+
+      @Override
+      public void setSearchSize(Searcher searcher, int searchSize) {
+        ((ProjectionSearch) searcher).setSearchSize(searchSize);
+      }
+    };
+  }
+
+  /**
+   * Tunes FastProjectionSearch with each of some numbers of projections.
+   */
+  public static Family fastProjectionSearch(final int... numProjections) {
+    return new Family() {
+      @Override
+      public int numSettings() {
+        return numProjections.length;
+      }
+
+      @Override
+      public String describe(int setting) {
+        return "FastProjectionSearch numProjections=" + numProjections[setting];
+      }
+
+      @Override
+      public Searcher create(DistanceMeasure measure, int setting, int searchSize) {
+        return new FastProjectionSearch(measure, numProjections[setting], searchSize);
+      }
+
+      @Override
+      public void setSearchSize(Searcher searcher, int searchSize) {
+        ((FastProjectionSearch) searcher).setSearchSize(searchSize);
+      }
+
+      @Override
+      public void fill(Searcher searcher, List<Vector> data) {
+        // Otherwise the first queries would scan all the data as pending additions.
+        searcher.addAll(data);
+        ((FastProjectionSearch) searcher).reindexNow();
+      }
+    };
+  }
+
+  /**
+   * Tunes LocalitySensitiveHashSearch with each of some strategies to raise the hash limit (see
+   * LocalitySensitiveHashSearch.setRaiseHashLimitStrategy).
+   */
+  public static Family localitySensitiveHashSearch(final double... hashLimitStrategies) {
+    return new Family() {
+      @Override
+      public int numSettings() {
+        return hashLimitStrategies.length;
+      }
+
+      @Override
+      public String describe(int setting) {
+        return "LocalitySensitiveHashSearch hashLimitStrategy=" + hashLimitStrategies[setting];
+      }
+
+      @Override
+      public Searcher create(DistanceMeasure measure, int setting, int searchSize) {
+        LocalitySensitiveHashSearch searcher = new LocalitySensitiveHashSearch(measure, searchSize);
+        searcher.setRaiseHashLimitStrategy(hashLimitStrategies[setting]);
+        return searcher;
+      }
+
+      @Override
+      public void setSearchSize(Searcher searcher, int searchSize) {
+        ((LocalitySensitiveHashSearch) searcher).setSearchSize(searchSize);
+      }
+    };
+  }
+}
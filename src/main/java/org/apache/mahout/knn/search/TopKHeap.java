@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Collects the limit closest of a stream of (id, distance) pairs without allocating any objects.
+ *
+ * This is a bounded max-heap kept in two parallel arrays so the worst of the best distances seen
+ * so far is always at the root and can be replaced when something better comes along.  The ids
+ * are whatever the searcher uses to find its vectors again (a row number, an index into a
+ * candidate list, ...).
+ *
+ * A heap is meant to be reused: call reset before each search, offer all candidates, then sort
+ * and read the results with id(i) and distance(i).  It is not thread-safe; searchers keep one per
+ * thread.
+ */
+public final class TopKHeap {
+  private int[] ids;
+  private double[] distances;
+  private int size = 0;
+  private int limit;
+
+  // Set by sort, after which the arrays are in ascending order rather than in heap order.
+  private boolean sorted = false;
+
+  public TopKHeap(int limit) {
+    Preconditions.checkArgument(limit >= 0, "Limit must not be negative");
+    this.limit = limit;
+    ids = new int[Math.max(limit, 1)];
+    distances = new double[Math.max(limit, 1)];
+  }
+
+  /**
+   * Empties the heap and sets how many of the best pairs it keeps.  The arrays only grow when the
+   * limit is larger than any used before.
+   */
+  public void reset(int limit) {
+    Preconditions.checkArgument(limit >= 0, "Limit must not be negative");
+    if (limit > ids.length) {
+      ids = new int[limit];
+      distances = new double[limit];
+    }
+    this.limit = limit;
+    size = 0;
+    sorted = false;
+  }
+
+  /**
+   * Offers a candidate.  It is kept if the heap isn't full yet or if it is closer than the worst
+   * candidate kept so far, which is then dropped.
+   *
+   * @return Whether the candidate was kept.
+   */
+  public boolean offer(int id, double distance) {
+    Preconditions.checkState(!sorted, "Can't offer to a sorted heap before reset");
+    if (size < limit) {
+      int i = size++;
+      // Sift up.
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (distances[parent] >= distance) {
+          break;
+        }
+        ids[i] = ids[parent];
+        distances[i] = distances[parent];
+        i = parent;
+      }
+      ids[i] = id;
+      distances[i] = distance;
+      return true;
+    } else if (size > 0 && distance < distances[0]) {
+      siftDown(0, id, distance, size);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Places (id, distance) at position i and moves it down until the heap of the given size is
+   * valid again.
+   */
+  private void siftDown(int i, int id, double distance, int size) {
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      int right = child + 1;
+      if (right < size && distances[right] > distances[child]) {
+        child = right;
+      }
+      if (distance >= distances[child]) {
+        break;
+      }
+      ids[i] = ids[child];
+      distances[i] = distances[child];
+      i = child;
+    }
+    ids[i] = id;
+    distances[i] = distance;
+  }
+
+  /**
+   * Offers everything kept by another heap.
+   */
+  public void addAll(TopKHeap other) {
+    for (int i = 0; i < other.size; ++i) {
+      offer(other.ids[i], other.distances[i]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public boolean isFull() {
+    return size >= limit;
+  }
+
+  /**
+   * Returns the distance a candidate has to beat to be kept: the worst distance kept so far if the
+   * heap is full and infinity otherwise.
+   */
+  public double threshold() {
+    return size < limit || size == 0 ? Double.POSITIVE_INFINITY : distances[0];
+  }
+
+  /**
+   * Sorts the kept candidates from closest to furthest.  After this, id(i) and distance(i) are
+   * the i-th best candidate, but nothing more can be offered until the next reset.
+   */
+  public void sort() {
+    for (int end = size - 1; end > 0; --end) {
+      int id = ids[end];
+      double distance = distances[end];
+      ids[end] = ids[0];
+      distances[end] = distances[0];
+      siftDown(0, id, distance, end);
+    }
+    sorted = true;
+  }
+
+  public int id(int i) {
+    Preconditions.checkElementIndex(i, size);
+    return ids[i];
+  }
+
+  public double distance(int i) {
+    Preconditions.checkElementIndex(i, size);
+    return distances[i];
+  }
+
+  @Override
+  public String toString() {
+    return "TopKHeap{size=" + size + ", limit=" + limit + ", ids="
+        + Arrays.toString(Arrays.copyOf(ids, size)) + "}";
+  }
+}
@@ -24,6 +24,8 @@ import org.apache.mahout.math.Vector;
  * Describes how we search vectors.  A class should extend UpdatableSearch only if it can handle a remove function.
  */
 public abstract class UpdatableSearcher extends Searcher {
+  // How close the vector closest to the one to update has to be to be replaced by default.
+  private static final double UPDATE_EPSILON = 1e-7;
 
   public UpdatableSearcher(DistanceMeasure distanceMeasure) {
    super(distanceMeasure);
@@ -34,4 +36,58 @@ public abstract class UpdatableSearcher extends Searcher {
 
   @Override
   public abstract void clear();
+
+  /**
+   * Replaces all the vectors searched with the given ones.  This is the same as calling clear and
+   * then addAll, but searchers that can build their index in one pass over all the vectors, rather
+   * than one vector at a time, override it to do so.  Loops that rebuild a searcher from scratch
+   * on every iteration, like those of the clustering algorithms, should use this.
+   *
+   * @param data The vectors to search from now on.
+   */
+  public void replaceAll(Iterable<? extends Vector> data) {
+    clear();
+    addAll(data);
+  }
+
+  /**
+   * Replaces one of the vectors searched with a new value.  The vector has to be the very one that
+   * was added, or that a search returned, and must not have been changed since: searchers that can
+   * find their entry for it from the vector itself override this to move only that entry, with no
+   * search.  The default calls remove(v, 1e-7), which removes a vector within 1e-7 of v but not
+   * necessarily the closest one (v itself, with searchers that find it by reference), and then
+   * adds the new value.
+   *
+   * @param v        The vector to replace, unchanged since it was added.
+   * @param newValue The value to search from now on instead.  A new vector, not v changed in place.
+   * @return Whether v was found.  If it wasn't, nothing is changed.
+   */
+  public boolean update(Vector v, Vector newValue) {
+    if (!remove(v, UPDATE_EPSILON)) {
+      return false;
+    }
+    add(newValue);
+    return true;
+  }
+
+  /**
+   * Returns whether the vectors searched can be changed in place and then passed to updated.
+   * Searchers that don't override this have no cheaper way to move a vector than to remove it and
+   * add it again.
+   */
+  public boolean canUpdateInPlace() {
+    return false;
+  }
+
+  /**
+   * Tells the searcher that one of the vectors searched was changed in place, so that it can move
+   * that vector's entry to the new value.  The vector has to be the very one that was added, or
+   * that a search returned.  Only call this if canUpdateInPlace returns true.
+   *
+   * @param v The vector that was changed.
+   * @return Whether v was found.
+   */
+  public boolean updated(Vector v) {
+    throw new UnsupportedOperationException("Can't update vectors in place");
+  }
 }
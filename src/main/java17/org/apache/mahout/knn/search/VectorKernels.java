@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Distance kernels written with the jdk.incubator.vector API so that the sums over the
+ * dimensions use the widest SIMD registers of the machine instead of relying on the JIT to
+ * vectorize the plain loops.
+ *
+ * This class is only compiled on JDK 17 or later (see the vector-api profile of the pom) and only
+ * loaded by DistanceKernel if the jdk.incubator.vector module was added to the JVM with
+ * --add-modules jdk.incubator.vector.  Otherwise the plain kernels of DistanceKernel are used.
+ */
+final class VectorKernels {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  // The number of values summed between comparisons with the bound.  As for
+  // BoundedDistance.CHECK_INTERVAL, but at least a few full vectors.
+  private static final int CHECK_INTERVAL =
+      Math.max(BoundedDistance.CHECK_INTERVAL, 4 * SPECIES.length());
+
+  private VectorKernels() {
+  }
+
+  // Called by DistanceKernel through reflection.
+  static DistanceKernel bounded(BoundedDistance distance) {
+    return new Bounded(distance);
+  }
+
+  // Called by DistanceKernel through reflection.
+  static DistanceKernel cosine() {
+    return new Cosine();
+  }
+
+  /**
+   * The bounded kernels.  The sum is kept in a vector of partial sums and reduced to a single
+   * value every CHECK_INTERVAL dimensions to compare it with the bound.
+   */
+  private static class Bounded extends DistanceKernel.BoundedKernel {
+    private final boolean squared;
+
+    Bounded(BoundedDistance distance) {
+      super(distance);
+      squared = distance.sumsSquares();
+    }
+
+    @Override
+    public double score(double[] query, int queryOffset, double querySquaredNorm, double[] block,
+                        double[] squaredNorms, int row, int dimension, double bound) {
+      final int offset = row * dimension;
+      final int lanes = SPECIES.length();
+      double sum = 0;
+      int i = 0;
+      while (i + lanes <= dimension) {
+        int end = Math.min(dimension - lanes, i + CHECK_INTERVAL - lanes);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        for (; i <= end; i += lanes) {
+          DoubleVector delta = DoubleVector.fromArray(SPECIES, block, offset + i)
+              .sub(DoubleVector.fromArray(SPECIES, query, queryOffset + i));
+          sums = squared ? delta.fma(delta, sums) : sums.add(delta.abs());
+        }
+        sum += sums.reduceLanes(VectorOperators.ADD);
+        if (sum > bound) {
+          return sum;
+        }
+      }
+      for (; i < dimension; ++i) {
+        double delta = block[offset + i] - query[queryOffset + i];
+        sum += squared ? delta * delta : Math.abs(delta);
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * Cosine distance with the dot products summed a vector at a time, four rows at a time as in
+   * DistanceKernel.
+   */
+  private static class Cosine extends DistanceKernel.CosineKernel {
+    @Override
+    public double score(double[] query, int queryOffset, double querySquaredNorm, double[] block,
+                        double[] squaredNorms, int row, int dimension, double bound) {
+      final int offset = row * dimension;
+      final int lanes = SPECIES.length();
+      DoubleVector sums = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (; i + lanes <= dimension; i += lanes) {
+        sums = DoubleVector.fromArray(SPECIES, block, offset + i)
+            .fma(DoubleVector.fromArray(SPECIES, query, queryOffset + i), sums);
+      }
+      double dot = sums.reduceLanes(VectorOperators.ADD);
+      for (; i < dimension; ++i) {
+        dot += block[offset + i] * query[queryOffset + i];
+      }
+      return cosineDistance(dot, squaredNorms[row], querySquaredNorm);
+    }
+
+    @Override
+    public void scores(double[] query, double querySquaredNorm, double[] block,
+                       double[] squaredNorms, int firstRow, int numRows, int dimension,
+                       double bound, double[] scores) {
+      final int lanes = SPECIES.length();
+      int r = 0;
+      for (; r + 4 <= numRows; r += 4) {
+        int x0 = (firstRow + r) * dimension;
+        int x1 = x0 + dimension;
+        int x2 = x1 + dimension;
+        int x3 = x2 + dimension;
+        DoubleVector s0 = DoubleVector.zero(SPECIES);
+        DoubleVector s1 = DoubleVector.zero(SPECIES);
+        DoubleVector s2 = DoubleVector.zero(SPECIES);
+        DoubleVector s3 = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i + lanes <= dimension; i += lanes) {
+          DoubleVector q = DoubleVector.fromArray(SPECIES, query, i);
+          s0 = DoubleVector.fromArray(SPECIES, block, x0 + i).fma(q, s0);
+          s1 = DoubleVector.fromArray(SPECIES, block, x1 + i).fma(q, s1);
+          s2 = DoubleVector.fromArray(SPECIES, block, x2 + i).fma(q, s2);
+          s3 = DoubleVector.fromArray(SPECIES, block, x3 + i).fma(q, s3);
+        }
+        double d0 = s0.reduceLanes(VectorOperators.ADD);
+        double d1 = s1.reduceLanes(VectorOperators.ADD);
+        double d2 = s2.reduceLanes(VectorOperators.ADD);
+        double d3 = s3.reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; ++i) {
+          double q = query[i];
+          d0 += block[x0 + i] * q;
+          d1 += block[x1 + i] * q;
+          d2 += block[x2 + i] * q;
+          d3 += block[x3 + i] * q;
+        }
+        scores[r] = cosineDistance(d0, squaredNorms[firstRow + r], querySquaredNorm);
+        scores[r + 1] = cosineDistance(d1, squaredNorms[firstRow + r + 1], querySquaredNorm);
+        scores[r + 2] = cosineDistance(d2, squaredNorms[firstRow + r + 2], querySquaredNorm);
+        scores[r + 3] = cosineDistance(d3, squaredNorms[firstRow + r + 3], querySquaredNorm);
+      }
+      for (; r < numRows; ++r) {
+        scores[r] = score(query, 0, querySquaredNorm, block, squaredNorms, firstRow + r,
+            dimension, bound);
+      }
+    }
+  }
+}
@@ -30,6 +30,8 @@ import java.util.List;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -89,6 +91,101 @@ public abstract class AbstractSearchTest {
     }
   }
 
+  @Test
+  public void testReplaceAll() {
+    List<Vector> data = Lists.newArrayList();
+    for (MatrixSlice slice : testData()) {
+      data.add(slice.vector());
+    }
+    Searcher searcher = getSearch(20);
+    if (!(searcher instanceof UpdatableSearcher)) {
+      return;
+    }
+    UpdatableSearcher s = (UpdatableSearcher) searcher;
+    s.addAll(data.subList(0, 300));
+    s.remove(data.get(0), 1e-7);
+
+    List<Vector> replacements = data.subList(300, data.size());
+    s.replaceAll(replacements);
+    assertEquals(replacements.size(), s.size());
+    for (Vector q : Iterables.limit(replacements, 50)) {
+      assertEquals(0, s.search(q, 1).get(0).getWeight(), 1e-8);
+    }
+    // none of the old vectors are left
+    for (Vector q : Iterables.limit(data, 50)) {
+      assertTrue(s.search(q, 1).get(0).getWeight() > 1e-8);
+    }
+
+    // the searcher can still be changed as usual afterwards
+    s.add(data.get(1));
+    assertEquals(0, s.search(data.get(1), 1).get(0).getWeight(), 1e-8);
+    assertTrue(s.remove(replacements.get(0), 1e-7));
+    assertEquals(replacements.size(), s.size());
+
+    s.replaceAll(Lists.<Vector>newArrayList());
+    assertEquals(0, s.size());
+  }
+
+  @Test
+  public void testUpdate() {
+    Searcher searcher = getSearch(20);
+    if (!(searcher instanceof UpdatableSearcher)) {
+      return;
+    }
+    UpdatableSearcher s = (UpdatableSearcher) searcher;
+    s.addAllMatrixSlices(testData());
+    int size0 = s.size();
+
+    MultiNormal noise = new MultiNormal(0.01, new DenseVector(20));
+    for (MatrixSlice slice : Iterables.limit(testData(), 100)) {
+      // the vector to update is the one the searcher returns
+      Vector v = s.search(slice.vector(), 1).get(0).getValue();
+      Vector moved = v.plus(noise.sample());
+      assertTrue(s.update(v, moved));
+      assertEquals(size0, s.size());
+      assertEquals(0, s.search(moved, 1).get(0).getWeight(), 1e-8);
+      assertTrue(s.search(v, 1).get(0).getWeight() > 0);
+    }
+
+    // the old value of a vector that was updated isn't searched anymore
+    Vector v = s.search(Iterables.get(testData(), 0).vector(), 1).get(0).getValue();
+    assertTrue(s.update(v, v.plus(noise.sample())));
+    assertFalse(s.update(v, v.plus(noise.sample())));
+    assertEquals(size0, s.size());
+  }
+
+  @Test
+  public void testUpdatedInPlace() {
+    Searcher searcher = getSearch(20);
+    if (!(searcher instanceof UpdatableSearcher)
+        || !((UpdatableSearcher) searcher).canUpdateInPlace()) {
+      return;
+    }
+    UpdatableSearcher s = (UpdatableSearcher) searcher;
+    // copies, since they are changed
+    List<Vector> data = Lists.newArrayList();
+    for (MatrixSlice slice : testData()) {
+      data.add(slice.vector().clone());
+    }
+    s.addAll(data);
+    int size0 = s.size();
+
+    MultiNormal noise = new MultiNormal(0.01, new DenseVector(20));
+    for (Vector original : Iterables.limit(data, 100)) {
+      // the vector changed is the one the searcher returns
+      Vector v = s.search(original, 1).get(0).getValue();
+      Vector old = v.clone();
+      v.assign(old.plus(noise.sample()));
+      assertTrue(s.updated(v));
+      assertEquals(size0, s.size());
+      WeightedThing<Vector> found = s.search(v, 1).get(0);
+      assertSame(v, found.getValue());
+      assertEquals(0, found.getWeight(), 1e-8);
+      assertTrue(s.search(old, 1).get(0).getWeight() > 0);
+    }
+    assertFalse(s.updated(new DenseVector(20)));
+  }
+
   @Test
   public void testNearMatch() {
     List<MatrixSlice> queries = Lists.newArrayList(Iterables.limit(testData(), 100));
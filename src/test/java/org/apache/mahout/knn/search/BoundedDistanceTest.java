@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.Normal;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedDistanceTest {
+  @Test
+  public void testAgreesWithMeasure() {
+    for (DistanceMeasure measure : new DistanceMeasure[]{new EuclideanDistanceMeasure(),
+        new SquaredEuclideanDistanceMeasure(), new ManhattanDistanceMeasure()}) {
+      BoundedDistance bounded = BoundedDistance.forMeasure(measure);
+      for (int i = 0; i < 20; i++) {
+        Vector v1 = new DenseVector(37).assign(new Normal());
+        Vector v2 = new DenseVector(37).assign(new Normal());
+        double distance = measure.distance(v1, v2);
+
+        // a loose bound gives the exact distance
+        assertEquals(distance, bounded.distance(v1, v2, Double.POSITIVE_INFINITY), 1e-10);
+        assertEquals(distance, bounded.distance(v1, v2, distance * 1.01), 1e-10);
+        // a tight bound only says that the distance is too large
+        assertTrue(bounded.distance(v1, v2, distance / 2) > distance / 2);
+        assertTrue(bounded.distance(v1, v2, distance / 2) <= distance * (1 + 1e-10));
+      }
+    }
+    assertNull(BoundedDistance.forMeasure(new CosineDistanceMeasure()));
+  }
+
+  @Test
+  public void testAccumulate() {
+    double[] row = {1, -2, 3, 0.5};
+    double[] query = {0, 0, 2, -1, 1, 0};
+    // query[2 + i] goes with row[i]: differences -1, -1, 2, 0.5
+    assertEquals(6.25, BoundedDistance.EUCLIDEAN.accumulate(query, 2, row, 0, 4,
+        Double.POSITIVE_INFINITY), 0);
+    assertEquals(4.5, BoundedDistance.MANHATTAN.accumulate(query, 2, row, 0, 4,
+        Double.POSITIVE_INFINITY), 0);
+  }
+}
@@ -18,8 +18,11 @@
 package org.apache.mahout.knn.search;
 
 import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
 import org.apache.mahout.math.*;
+import org.apache.mahout.math.random.Normal;
 import org.apache.mahout.math.random.WeightedThing;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,9 +30,14 @@ import org.apache.mahout.knn.search.BruteSearch;
 import org.apache.mahout.knn.search.UpdatableSearcher;
 import org.apache.mahout.knn.search.AbstractSearchTest;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class BruteSearchTest extends AbstractSearchTest {
   private static Iterable<MatrixSlice> data;
@@ -67,4 +75,129 @@ public class BruteSearchTest extends AbstractSearchTest {
       assertEquals(1, r.get(2).getWeight(), 1e-8);
     }
   }
+
+  @Test
+  public void testThreadsPerQuery() {
+    Matrix reference = new DenseMatrix(20000, 5);
+    reference.assign(new Normal());
+    BruteSearch single = (BruteSearch) getSearch(0);
+    single.addAllMatrixSlices(reference);
+    BruteSearch threaded = (BruteSearch) getSearch(0);
+    threaded.addAllMatrixSlices(reference);
+    threaded.setThreadsPerQuery(3);
+
+    for (MatrixSlice query : randomData().viewPart(0, 20, 0, 5)) {
+      List<WeightedThing<Vector>> r0 = single.search(query.vector(), 10);
+      List<WeightedThing<Vector>> r1 = threaded.search(query.vector(), 10);
+      assertEquals(r0.size(), r1.size());
+      for (int i = 0; i < r0.size(); i++) {
+        assertEquals(r0.get(i).getWeight(), r1.get(i).getWeight(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveMany() {
+    // Vectors are removed by reference and by distance, with the last rows moving into the holes.
+    BruteSearch searcher = (BruteSearch) getSearch(0);
+    List<Vector> remaining = Lists.newArrayList();
+    for (MatrixSlice row : testData()) {
+      searcher.add(row.vector());
+      remaining.add(row.vector());
+    }
+    List<Vector> removed = Lists.newArrayList();
+    Random random = new Random(2);
+    for (int i = 0; i < 300; i++) {
+      Vector v = remaining.remove(random.nextInt(remaining.size()));
+      assertTrue(searcher.remove(i % 3 == 0 ? v.clone() : v, 1e-7));
+      removed.add(v);
+    }
+    assertEquals(remaining.size(), searcher.size());
+
+    for (Vector v : remaining.subList(0, 50)) {
+      assertSame(v, searcher.search(v, 1).get(0).getValue());
+    }
+    for (Vector v : removed.subList(0, 50)) {
+      assertTrue(searcher.search(v, 1).get(0).getWeight() > 0);
+    }
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    // Removing through the iterator still visits every vector once.
+    BruteSearch searcher = (BruteSearch) getSearch(0);
+    searcher.addAllMatrixSlices(testData());
+    int size0 = searcher.size();
+    int seen = 0;
+    List<Vector> removed = Lists.newArrayList();
+    Iterator<Vector> i = searcher.iterator();
+    while (i.hasNext()) {
+      Vector v = i.next();
+      if (seen++ % 2 == 0) {
+        i.remove();
+        removed.add(v);
+      }
+    }
+    assertEquals(size0, seen);
+    assertEquals(size0 - removed.size(), searcher.size());
+    for (Vector v : removed.subList(0, 50)) {
+      assertTrue(searcher.search(v, 1).get(0).getWeight() > 0);
+    }
+    for (Vector v : searcher) {
+      assertSame(v, searcher.search(v, 1).get(0).getValue());
+    }
+  }
+
+  @Test
+  public void testUpdatedTwice() {
+    // a vector added twice has both its rows refreshed when it changes
+    BruteSearch searcher = (BruteSearch) getSearch(0);
+    List<Vector> vectors = Lists.newArrayList();
+    for (MatrixSlice row : testData()) {
+      vectors.add(row.vector().clone());
+    }
+    searcher.addAll(vectors);
+    Vector twice = vectors.get(10);
+    searcher.add(twice);
+    searcher.remove(vectors.get(0), 1e-7);
+    twice.assign(vectors.get(20).plus(1));
+    assertTrue(searcher.updated(twice));
+    List<WeightedThing<Vector>> r = searcher.search(twice, 3);
+    assertSame(twice, r.get(0).getValue());
+    assertSame(twice, r.get(1).getValue());
+    assertEquals(0, r.get(1).getWeight(), 1e-8);
+    assertTrue(r.get(2).getWeight() > 0);
+  }
+
+  @Test
+  public void testSparseVectors() {
+    // Sparse vectors are compared through dot products and the squared norms kept by the searcher.
+    Random random = new Random(1);
+    for (DistanceMeasure measure : new DistanceMeasure[]{new EuclideanDistanceMeasure(),
+        new CosineDistanceMeasure()}) {
+      BruteSearch searcher = new BruteSearch(measure);
+      List<Vector> reference = Lists.newArrayList();
+      for (int i = 0; i < 200; i++) {
+        Vector v = new RandomAccessSparseVector(1000);
+        for (int j = 0; j < 10; j++) {
+          v.set(random.nextInt(1000), random.nextGaussian());
+        }
+        reference.add(v);
+        searcher.add(v);
+      }
+      for (Vector query : reference.subList(0, 20)) {
+        double[] distances = new double[reference.size()];
+        for (int i = 0; i < reference.size(); i++) {
+          distances[i] = measure.distance(query, reference.get(i));
+        }
+        Arrays.sort(distances);
+        List<WeightedThing<Vector>> r = searcher.search(query, 5);
+        assertEquals(5, r.size());
+        for (int i = 0; i < r.size(); i++) {
+          assertEquals(distances[i], r.get(i).getWeight(), 1e-10);
+          assertEquals(measure.distance(query, r.get(i).getValue()), r.get(i).getWeight(), 1e-10);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Sets;
+import org.apache.mahout.common.RandomUtils;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CandidateSetTest {
+  @Test
+  public void testSameAsHashSet() {
+    Random gen = RandomUtils.getRandom();
+    CandidateSet candidates = new CandidateSet();
+    // each search reuses the set, sometimes with more possible ids than before
+    for (int search = 0; search < 50; search++) {
+      int capacity = 10 + 20 * (search / 10);
+      candidates.reset(capacity);
+      Set<Integer> reference = Sets.newLinkedHashSet();
+      for (int i = 0; i < 30; i++) {
+        int id = gen.nextInt(capacity);
+        assertEquals(reference.add(id), candidates.add(id));
+      }
+      assertEquals(reference.size(), candidates.size());
+      int i = 0;
+      for (int id : reference) {
+        assertEquals(id, candidates.get(i++));
+      }
+      for (int id = 0; id < capacity; id++) {
+        assertEquals(reference.contains(id), candidates.contains(id));
+      }
+    }
+  }
+
+  @Test
+  public void testPrune() {
+    CandidateSet candidates = new CandidateSet();
+    candidates.reset(10, true);
+    // two projections whose windows have edges 3 and 4
+    candidates.addEdge(3);
+    candidates.add(1, 1, 3);
+    candidates.add(2, 2, 3);
+    candidates.addEdge(4);
+    candidates.add(2, 0, 4);
+    candidates.add(3, 3, 4);
+    candidates.add(5, 1, 4);
+
+    // where a candidate wasn't found, the edge is its smallest possible gap
+    assertEquals(Math.sqrt(1 + 16), candidates.lowerBound(1), 1e-12);
+    assertEquals(2, candidates.lowerBound(2), 1e-12);
+    assertEquals(Math.sqrt(9 + 9), candidates.lowerBound(3), 1e-12);
+    assertEquals(2, candidates.votes(2));
+
+    // not enough candidates have two votes, so all are kept, by increasing bound
+    assertEquals(4, candidates.prune(2, 2));
+    int[] expected = {2, 5, 1, 3};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], candidates.get(i));
+    }
+    assertEquals(1, candidates.prune(2, 1));
+    assertEquals(2, candidates.get(0));
+  }
+
+  @Test
+  public void testReset() {
+    CandidateSet candidates = new CandidateSet();
+    candidates.reset(5);
+    assertTrue(candidates.add(3));
+    assertFalse(candidates.add(3));
+    candidates.reset(5);
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.contains(3));
+    assertTrue(candidates.add(3));
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.Normal;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ConcurrentProjectionSearchTest extends AbstractSearchTest {
+  private static Iterable<MatrixSlice> data;
+
+  @Before
+  public void fillData() {
+    data = randomData();
+  }
+
+  @Override
+  public Iterable<MatrixSlice> testData() {
+    return data;
+  }
+
+  @Override
+  public UpdatableSearcher getSearch(int n) {
+    // wide enough that removing a vector doesn't change which of its neighbors are found
+    return new ConcurrentProjectionSearch(new EuclideanDistanceMeasure(), 10, 100);
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    final ConcurrentProjectionSearch search =
+        new ConcurrentProjectionSearch(new EuclideanDistanceMeasure(), 4, 20);
+    final List<Vector> reference = Lists.newArrayList();
+    for (int i = 0; i < 2000; i++) {
+      reference.add(new DenseVector(10).assign(new Normal()));
+    }
+    search.addAll(reference);
+
+    // several threads add vectors and remove half of them while others search for the reference
+    // vectors, which are always there
+    ExecutorService pool = Executors.newFixedThreadPool(6);
+    List<Future<List<Vector>>> writers = Lists.newArrayList();
+    for (int t = 0; t < 3; t++) {
+      writers.add(pool.submit(new Callable<List<Vector>>() {
+        @Override
+        public List<Vector> call() {
+          List<Vector> kept = Lists.newArrayList();
+          for (int i = 0; i < 1000; i++) {
+            Vector v = new DenseVector(10).assign(new Normal());
+            search.add(v);
+            if (i % 2 == 0) {
+              Assert.assertTrue(search.remove(v, 1e-7));
+            } else {
+              kept.add(v);
+            }
+          }
+          return kept;
+        }
+      }));
+    }
+    List<Future<Object>> readers = Lists.newArrayList();
+    for (int t = 0; t < 3; t++) {
+      final int seed = t;
+      readers.add(pool.submit(new Callable<Object>() {
+        @Override
+        public Object call() {
+          Random random = new Random(seed);
+          for (int i = 0; i < 2000; i++) {
+            Vector v = reference.get(random.nextInt(reference.size()));
+            Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+          }
+          return null;
+        }
+      }));
+    }
+    List<Vector> kept = Lists.newArrayList(reference);
+    for (Future<List<Vector>> writer : writers) {
+      kept.addAll(writer.get());
+    }
+    for (Future<Object> reader : readers) {
+      reader.get();
+    }
+    pool.shutdown();
+
+    Assert.assertEquals(kept.size(), search.size());
+    Assert.assertEquals(kept.size(), Iterables.size(search));
+    for (Vector v : kept) {
+      Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+    }
+    search.clear();
+    Assert.assertEquals(0, search.size());
+    Assert.assertTrue(search.search(reference.get(0), 1).isEmpty());
+  }
+
+  @Test
+  public void testSameRemovedOnce() throws Exception {
+    final ConcurrentProjectionSearch search =
+        new ConcurrentProjectionSearch(new EuclideanDistanceMeasure(), 4, 20);
+    final List<Vector> vectors = Lists.newArrayList();
+    for (int i = 0; i < 500; i++) {
+      vectors.add(new DenseVector(10).assign(new Normal()));
+    }
+    search.addAll(vectors);
+    // every vector is removed by two threads at once and only one of them can succeed
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    List<Future<Integer>> removers = Lists.newArrayList();
+    for (int t = 0; t < 2; t++) {
+      removers.add(pool.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          int removed = 0;
+          for (Vector v : vectors) {
+            if (search.remove(v, 1e-7)) {
+              removed++;
+            }
+          }
+          return removed;
+        }
+      }));
+    }
+    Assert.assertEquals(vectors.size(), removers.get(0).get() + removers.get(1).get());
+    pool.shutdown();
+    Assert.assertEquals(0, search.size());
+  }
+}
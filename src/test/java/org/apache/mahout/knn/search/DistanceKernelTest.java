@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.ChebyshevDistanceMeasure;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.Normal;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DistanceKernelTest {
+  @Test
+  public void testAgreesWithMeasure() {
+    final int dimension = 37;
+    List<Vector> rows = Lists.newArrayList();
+    PackedRows packed = new PackedRows(dimension);
+    for (int i = 0; i < 23; i++) {
+      Vector v = new DenseVector(dimension).assign(new Normal());
+      rows.add(v);
+      packed.add(v);
+    }
+    // a zero row exercises the corner case of cosine distance
+    rows.add(new DenseVector(dimension));
+    packed.add(rows.get(rows.size() - 1));
+
+    for (DistanceMeasure measure : new DistanceMeasure[]{new EuclideanDistanceMeasure(),
+        new SquaredEuclideanDistanceMeasure(), new ManhattanDistanceMeasure(),
+        new CosineDistanceMeasure()}) {
+      DistanceKernel kernel = DistanceKernel.forMeasure(measure);
+      for (int j = 0; j < 5; j++) {
+        Vector query = new DenseVector(dimension).assign(new Normal());
+        double[] q = packed.toArray(query, new double[dimension]);
+        double queryNorm = PackedRows.dot(q, 0, q, 0, dimension);
+
+        // scoring many rows at once must give the same scores as scoring them one at a time
+        double[] scores = new double[rows.size()];
+        kernel.scores(q, queryNorm, packed.getBlock(0), packed.getSquaredNorms(0), 0, rows.size(),
+            dimension, Double.POSITIVE_INFINITY, scores);
+        for (int i = 0; i < rows.size(); i++) {
+          double distance = measure.distance(rows.get(i), query);
+          assertEquals(distance, kernel.toDistance(scores[i]), 1e-10);
+          assertEquals(scores[i], kernel.score(q, 0, queryNorm, packed.getBlock(0),
+              packed.getSquaredNorms(0), i, dimension, Double.POSITIVE_INFINITY), 1e-12);
+          assertEquals(distance, kernel.toDistance(kernel.toScore(distance)), 1e-10);
+        }
+      }
+    }
+    assertNull(DistanceKernel.forMeasure(new ChebyshevDistanceMeasure()));
+  }
+
+  @Test
+  public void testAgreesWithPlainKernels() {
+    // whichever kernels are in use, they must agree with the plain ones, including when abandoned
+    final int dimension = 53;
+    PackedRows packed = new PackedRows(dimension);
+    for (int i = 0; i < 50; i++) {
+      packed.add(new DenseVector(dimension).assign(new Normal()));
+    }
+    DistanceKernel[] kernels = {DistanceKernel.SQUARED_EUCLIDEAN, DistanceKernel.EUCLIDEAN,
+        DistanceKernel.MANHATTAN, DistanceKernel.COSINE};
+    DistanceKernel[] plain = {new DistanceKernel.BoundedKernel(BoundedDistance.SQUARED_EUCLIDEAN),
+        new DistanceKernel.BoundedKernel(BoundedDistance.EUCLIDEAN),
+        new DistanceKernel.BoundedKernel(BoundedDistance.MANHATTAN),
+        new DistanceKernel.CosineKernel()};
+    for (int k = 0; k < kernels.length; k++) {
+      Vector query = new DenseVector(dimension).assign(new Normal());
+      double[] q = packed.toArray(query, new double[dimension]);
+      double queryNorm = PackedRows.dot(q, 0, q, 0, dimension);
+      double[] expected = new double[packed.size()];
+      double[] scores = new double[packed.size()];
+      plain[k].scores(q, queryNorm, packed.getBlock(0), packed.getSquaredNorms(0), 0,
+          packed.size(), dimension, Double.POSITIVE_INFINITY, expected);
+      double bound = expected[7];
+      kernels[k].scores(q, queryNorm, packed.getBlock(0), packed.getSquaredNorms(0), 0,
+          packed.size(), dimension, bound, scores);
+      for (int i = 0; i < packed.size(); i++) {
+        if (expected[i] > bound * (1 + 1e-12)) {
+          assertTrue(scores[i] > bound);
+        } else {
+          assertEquals(expected[i], scores[i], 1e-10);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDotScore() {
+    for (int i = 0; i < 20; i++) {
+      Vector x = new DenseVector(37).assign(new Normal());
+      Vector q = new DenseVector(37).assign(new Normal());
+      double dot = x.dot(q);
+
+      double cosine = new CosineDistanceMeasure().distance(x, q);
+      assertEquals(cosine, DistanceKernel.COSINE.dotScore(dot, x.getLengthSquared(),
+          q.getLengthSquared(), 37, Double.POSITIVE_INFINITY), 1e-12);
+
+      // the dot product form is only trusted to show that a vector is too far away
+      double squared = new SquaredEuclideanDistanceMeasure().distance(x, q);
+      assertTrue(Double.isNaN(DistanceKernel.SQUARED_EUCLIDEAN.dotScore(dot, x.getLengthSquared(),
+          q.getLengthSquared(), 37, Double.POSITIVE_INFINITY)));
+      assertTrue(Double.isNaN(DistanceKernel.SQUARED_EUCLIDEAN.dotScore(dot, x.getLengthSquared(),
+          q.getLengthSquared(), 37, squared)));
+      assertEquals(squared, DistanceKernel.SQUARED_EUCLIDEAN.dotScore(dot, x.getLengthSquared(),
+          q.getLengthSquared(), 37, squared / 2), 1e-10);
+      assertTrue(Double.isNaN(DistanceKernel.MANHATTAN.dotScore(dot, x.getLengthSquared(),
+          q.getLengthSquared(), 37, 0)));
+    }
+  }
+}
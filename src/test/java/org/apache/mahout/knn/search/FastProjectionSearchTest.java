@@ -21,18 +21,32 @@ import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.mahout.common.RandomUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
 import org.apache.mahout.knn.LumpyData;
 import org.apache.mahout.math.*;
+import org.apache.mahout.math.random.Normal;
 import org.apache.mahout.math.random.WeightedThing;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class FastProjectionSearchTest extends AbstractSearchTest {
@@ -118,6 +132,403 @@ public class FastProjectionSearchTest extends AbstractSearchTest {
     }
   }
 
+  @Test
+  public void testSort() {
+    Random random = RandomUtils.getRandom();
+    for (int n : new int[]{0, 1, 2, 7, 64, 1001}) {
+      double[] values = new double[n + 3];
+      int[] ids = new int[n + 3];
+      for (int i = 0; i < n; i++) {
+        values[i] = random.nextInt(100);
+        ids[i] = i;
+      }
+      double[] original = values.clone();
+      FastProjectionSearch.sort(values, ids, n);
+      for (int i = 0; i < n; i++) {
+        // every id still goes with its own value and equal values keep their order
+        Assert.assertEquals(original[ids[i]], values[i], 0);
+        if (i > 0) {
+          Assert.assertTrue(values[i - 1] < values[i]
+              || values[i - 1] == values[i] && ids[i - 1] < ids[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveAndReindex() {
+    FastProjectionSearch search = new FastProjectionSearch(new EuclideanDistanceMeasure(), 4, 20);
+    List<Vector> remaining = Lists.newArrayList();
+    for (MatrixSlice row : data) {
+      remaining.add(row.vector());
+    }
+    search.addAll(remaining);
+    Random random = RandomUtils.getRandom();
+    // removals from the projected vectors and from the pending additions, with reindexing between
+    for (int i = 0; i < 200; i++) {
+      Vector v = remaining.remove(random.nextInt(remaining.size()));
+      Assert.assertTrue(search.remove(v, 1e-7));
+      Vector added = new DenseVector(v.size()).assign(new Normal());
+      remaining.add(added);
+      search.add(added);
+      Assert.assertEquals(remaining.size(), search.size());
+    }
+    Assert.assertEquals(remaining.size(), Iterables.size(search));
+    for (Vector v : remaining) {
+      Assert.assertEquals(0, search.search(v, 1).get(0).getWeight(), 1e-7);
+    }
+  }
+
+  /**
+   * Returns the searcher for the tests of what only FastProjectionSearch does, which are skipped
+   * when a subclass tests another searcher.
+   */
+  private FastProjectionSearch fastProjectionSearch() {
+    UpdatableSearcher search = getSearch(0);
+    Assume.assumeTrue(search instanceof FastProjectionSearch);
+    return (FastProjectionSearch) search;
+  }
+
+  @Test
+  public void testParallelReindex() {
+    FastProjectionSearch search = fastProjectionSearch();
+    search.setReindexThreads(2);
+    List<Vector> added = Lists.newArrayList();
+    // big enough batches that two threads are used to merge them in
+    for (int batch = 0; batch < 3; batch++) {
+      for (int i = 0; i < 10000; i++) {
+        Vector v = new DenseVector(10).assign(new Normal());
+        added.add(v);
+        search.add(v);
+      }
+      search.reindexNow();
+      for (int i = 0; i < added.size(); i += 97) {
+        Assert.assertSame(added.get(i), search.search(added.get(i), 1).get(0).getValue());
+      }
+    }
+  }
+
+  @Test
+  public void testBackgroundReindex() {
+    FastProjectionSearch search = fastProjectionSearch();
+    List<Vector> remaining = Lists.newArrayList();
+    List<Vector> gone = Lists.newArrayList();
+    Random random = RandomUtils.getRandom();
+    for (int batch = 0; batch < 5; batch++) {
+      for (int i = 0; i < 2000; i++) {
+        Vector v = new DenseVector(10).assign(new Normal());
+        remaining.add(v);
+        search.add(v);
+      }
+      // this search starts a new snapshot, which the changes below have to be carried over to
+      search.search(remaining.get(0), 1);
+      for (int i = 0; i < 100; i++) {
+        Vector v = remaining.remove(random.nextInt(remaining.size()));
+        gone.add(v);
+        Assert.assertTrue(search.remove(v, 1e-7));
+        Assert.assertEquals(remaining.size(), search.size());
+      }
+    }
+    search.reindexNow();
+    Assert.assertEquals(remaining.size(), search.size());
+    Assert.assertEquals(remaining.size(), Iterables.size(search));
+    for (int i = 0; i < remaining.size(); i += 13) {
+      Vector v = remaining.get(i);
+      Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+    }
+    for (Vector v : gone) {
+      Assert.assertFalse(search.remove(v, 1e-7));
+    }
+  }
+
+  @Test
+  public void testUpdatedDuringReindex() throws Exception {
+    FastProjectionSearch search = fastProjectionSearch();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      search.setExecutor(executor);
+      search.setReindexThreads(1);
+      List<Vector> vectors = Lists.newArrayList();
+      for (int i = 0; i < 2200; i++) {
+        vectors.add(new DenseVector(10).assign(new Normal()));
+      }
+      // one vector is there twice
+      search.addAll(vectors.subList(0, 2000));
+      search.add(vectors.get(0));
+      search.reindexNow();
+      search.addAll(vectors.subList(2000, 2200));
+
+      // the snapshot is started but not built until the vectors have changed, some of them
+      // projected and some pending
+      final CountDownLatch started = new CountDownLatch(1);
+      executor.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          started.await();
+          return null;
+        }
+      });
+      search.search(vectors.get(0), 1);
+      for (Vector v : vectors.subList(0, 100)) {
+        v.assign(new Normal());
+        Assert.assertTrue(search.updated(v));
+      }
+      // setDirty doesn't wait for the snapshot either
+      List<Vector> dirty = Lists.newArrayList(vectors.subList(50, 150));
+      dirty.addAll(vectors.subList(2100, 2200));
+      for (Vector v : dirty) {
+        v.assign(new Normal());
+      }
+      search.setDirty(dirty);
+      started.countDown();
+      executor.submit(new Callable<Object>() {
+        @Override
+        public Object call() {
+          return null;
+        }
+      }).get();
+
+      // the snapshot swapped in by the first search has the changes carried over
+      for (Vector v : vectors) {
+        Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+      }
+      List<WeightedThing<Vector>> r = search.search(vectors.get(0), 2);
+      Assert.assertEquals(0, r.get(1).getWeight(), 1e-8);
+      Assert.assertEquals(2201, search.size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSetDirtyVectors() {
+    FastProjectionSearch search = fastProjectionSearch();
+    List<Vector> vectors = Lists.newArrayList();
+    for (int i = 0; i < 2000; i++) {
+      vectors.add(new DenseVector(10).assign(new Normal()));
+    }
+    search.addAll(vectors.subList(0, 1900));
+    search.reindexNow();
+    // some of the vectors modified are projected and some are still pending
+    search.addAll(vectors.subList(1900, 2000));
+
+    Random random = RandomUtils.getRandom();
+    List<Vector> modified = Lists.newArrayList();
+    for (Vector v : Iterables.limit(search, 2000)) {
+      if (random.nextInt(20) == 0) {
+        v.assign(new Normal());
+        modified.add(v);
+      }
+    }
+    modified.add(new DenseVector(10));
+    search.setDirty(modified);
+    Assert.assertEquals(2000, search.size());
+    Assert.assertEquals(2000, Iterables.size(search));
+
+    // the modified vectors are found at their new values and the others where they were
+    for (Vector v : vectors) {
+      Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+    }
+    search.reindexNow();
+    for (Vector v : vectors) {
+      Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+    }
+  }
+
+  @Test
+  public void testConcurrentSearch() throws Exception {
+    final FastProjectionSearch search = fastProjectionSearch();
+    final List<Vector> reference = Lists.newArrayList();
+    for (int i = 0; i < 5000; i++) {
+      reference.add(new DenseVector(10).assign(new Normal()));
+    }
+    search.addAll(reference);
+
+    // the readers keep finding the reference vectors while a writer adds and removes others,
+    // which commits several snapshots along the way
+    final AtomicBoolean done = new AtomicBoolean(false);
+    ExecutorService pool = Executors.newFixedThreadPool(5);
+    List<Future<Integer>> readers = Lists.newArrayList();
+    for (int t = 0; t < 4; t++) {
+      final int seed = t;
+      readers.add(pool.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          Random random = new Random(seed);
+          int searches = 0;
+          while (!done.get() || searches < 100) {
+            Vector v = reference.get(random.nextInt(reference.size()));
+            Assert.assertSame(v, search.search(v, 1).get(0).getValue());
+            searches++;
+          }
+          return searches;
+        }
+      }));
+    }
+    Future<?> writer = pool.submit(new Runnable() {
+      @Override
+      public void run() {
+        List<Vector> added = Lists.newArrayList();
+        for (int i = 0; i < 3000; i++) {
+          Vector v = new DenseVector(10).assign(new Normal());
+          added.add(v);
+          search.add(v);
+          if (i % 3 == 0) {
+            Assert.assertTrue(search.remove(added.remove(0), 1e-7));
+          }
+        }
+        done.set(true);
+      }
+    });
+    writer.get();
+    for (Future<Integer> reader : readers) {
+      Assert.assertTrue(reader.get() >= 100);
+    }
+    pool.shutdown();
+    Assert.assertEquals(5000 + 2000, search.size());
+  }
+
+  @Test
+  public void testSaveAndOpen() throws IOException {
+    FastProjectionSearch search = fastProjectionSearch();
+    search.setMinVotes(2);
+    search.setBoundFactor(1.5);
+    List<Vector> remaining = Lists.newArrayList();
+    for (int i = 0; i < 3000; i++) {
+      Vector v = new DenseVector(10).assign(new Normal());
+      // some of the vectors are weighted and come back that way
+      if (i % 3 == 1) {
+        v = new WeightedVector(v, i, i);
+      } else if (i % 3 == 2) {
+        v = new Centroid(i, v, i);
+      }
+      remaining.add(v);
+      search.add(v);
+    }
+    search.reindexNow();
+    // a removed vector and pending additions are committed before saving
+    Assert.assertTrue(search.remove(remaining.remove(0), 1e-7));
+    for (int i = 0; i < 20; i++) {
+      Vector v = new DenseVector(10).assign(new Normal());
+      remaining.add(v);
+      search.add(v);
+    }
+
+    File file = File.createTempFile("fast-projection", ".index");
+    file.deleteOnExit();
+    search.save(file);
+    FastProjectionSearch opened = FastProjectionSearch.open(file, search.getDistanceMeasure());
+    Assert.assertEquals(remaining.size(), opened.size());
+    Assert.assertEquals(search.getSearchSize(), opened.getSearchSize());
+    Assert.assertEquals(2, opened.getMinVotes());
+    Assert.assertEquals(1.5, opened.getBoundFactor(), 0);
+    List<Vector> found = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      Vector query = new DenseVector(10).assign(new Normal());
+      List<WeightedThing<Vector>> r0 = search.search(query, 5);
+      List<WeightedThing<Vector>> r1 = opened.search(query, 5);
+      Assert.assertEquals(r0.size(), r1.size());
+      for (int j = 0; j < r0.size(); j++) {
+        Vector v0 = r0.get(j).getValue();
+        Vector v1 = r1.get(j).getValue();
+        Assert.assertEquals(r0.get(j).getWeight(), r1.get(j).getWeight(), 0);
+        Assert.assertEquals(0, v0.minus(v1).norm(1), 0);
+        Assert.assertTrue(v0.getClass().isInstance(v1));
+        Assert.assertEquals(v0 instanceof Centroid, v1 instanceof Centroid);
+        if (v0 instanceof WeightedVector) {
+          Assert.assertEquals(((WeightedVector) v0).getWeight(),
+              ((WeightedVector) v1).getWeight(), 0);
+          Assert.assertEquals(((WeightedVector) v0).getIndex(), ((WeightedVector) v1).getIndex());
+        }
+      }
+      // a vector of the file is the same object every time it is found
+      Assert.assertSame(r1.get(0).getValue(), opened.search(query, 5).get(0).getValue());
+      found.add(r1.get(0).getValue());
+    }
+
+    // the opened searcher can still be changed, and the vectors of the file stay the same
+    Vector v = new DenseVector(10).assign(new Normal());
+    opened.add(v);
+    Assert.assertTrue(opened.remove(remaining.get(0), 1e-7));
+    opened.reindexNow();
+    Assert.assertEquals(remaining.size(), opened.size());
+    Assert.assertEquals(0, opened.search(v, 1).get(0).getWeight(), 0);
+    for (Vector u : found) {
+      Assert.assertSame(u, opened.search(u, 1).get(0).getValue());
+    }
+    // a vector of the file can be changed in place like the others
+    Vector u = opened.search(new DenseVector(10).assign(new Normal()), 1).get(0).getValue();
+    Assert.assertFalse(opened.updated(u.clone()));
+    u.assign(u.plus(new DenseVector(10).assign(new Normal()).times(0.01)));
+    Assert.assertTrue(opened.updated(u));
+    Assert.assertEquals(remaining.size(), opened.size());
+    Assert.assertSame(u, opened.search(u, 1).get(0).getValue());
+    Assert.assertEquals(0, opened.search(u, 1).get(0).getWeight(), 0);
+
+    // and saved again, with vectors from the file and from the heap
+    File again = File.createTempFile("fast-projection", ".index");
+    again.deleteOnExit();
+    opened.save(again);
+    FastProjectionSearch reopened = FastProjectionSearch.open(again, search.getDistanceMeasure());
+    Assert.assertEquals(opened.size(), reopened.size());
+    Assert.assertEquals(0, reopened.search(v, 1).get(0).getWeight(), 0);
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenCorruptHeader() throws IOException {
+    FastProjectionSearch search = fastProjectionSearch();
+    for (int i = 0; i < 100; i++) {
+      search.add(new DenseVector(10).assign(new Normal()));
+    }
+    File file = File.createTempFile("fast-projection", ".index");
+    file.deleteOnExit();
+    search.save(file);
+    // the projection type is the seventh int of the header
+    byte[] bytes = Files.toByteArray(file);
+    bytes[27] = 100;
+    Files.write(bytes, file);
+    FastProjectionSearch.open(file, new EuclideanDistanceMeasure());
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenWrongFile() throws IOException {
+    File file = File.createTempFile("fast-projection", ".index");
+    file.deleteOnExit();
+    Files.write(new byte[100], file);
+    FastProjectionSearch.open(file, new EuclideanDistanceMeasure());
+  }
+
+  @Test
+  public void testPruning() {
+    FastProjectionSearch search = fastProjectionSearch();
+    search.setSearchSize(200);
+    List<Vector> reference = Lists.newArrayList();
+    for (int i = 0; i < 5000; i++) {
+      reference.add(new DenseVector(10).assign(new Normal()));
+    }
+    search.addAll(reference);
+    search.reindexNow();
+    for (int i = 0; i < 20; i++) {
+      Vector query = new DenseVector(10).assign(new Normal());
+      // the lower bounds only skip candidates that can't be results
+      search.setBoundFactor(0);
+      List<WeightedThing<Vector>> r0 = search.search(query, 10);
+      search.setBoundFactor(1);
+      List<WeightedThing<Vector>> r1 = search.search(query, 10);
+      Assert.assertEquals(r0.size(), r1.size());
+      for (int j = 0; j < r0.size(); j++) {
+        Assert.assertEquals(r0.get(j).getWeight(), r1.get(j).getWeight(), 0);
+      }
+
+      // with votes required, there are still enough results and they are all real candidates
+      search.setMinVotes(4);
+      List<WeightedThing<Vector>> r2 = search.search(query, 10);
+      Assert.assertEquals(10, r2.size());
+      Assert.assertTrue(r2.get(0).getWeight() >= r0.get(0).getWeight());
+      search.setMinVotes(1);
+    }
+  }
+
   @Override
   public UpdatableSearcher getSearch(int n) {
     return new FastProjectionSearch(new EuclideanDistanceMeasure(), 4, 20);
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.WeightedThing;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InvertedIndexSearchTest extends AbstractSearchTest {
+  private static Iterable<MatrixSlice> data;
+
+  @Before
+  public void fillData() {
+    data = randomData();
+  }
+
+  @Override
+  public Iterable<MatrixSlice> testData() {
+    return data;
+  }
+
+  @Override
+  public UpdatableSearcher getSearch(int n) {
+    return new InvertedIndexSearch(new EuclideanDistanceMeasure());
+  }
+
+  /**
+   * Sparse vectors like hashed documents: a few common dimensions and many rare ones.
+   */
+  private static List<Vector> sparseData(Random random, int n) {
+    List<Vector> r = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      Vector v = new RandomAccessSparseVector(100000);
+      for (int j = 0; j < 30; j++) {
+        int index = j < 5 ? random.nextInt(20) : random.nextInt(5000);
+        v.set(index, random.nextDouble() + (random.nextInt(10) == 0 ? -1 : 0));
+      }
+      r.add(v);
+    }
+    return r;
+  }
+
+  @Test
+  public void testSameAsBrute() {
+    Random random = new Random(1);
+    for (DistanceMeasure measure : new DistanceMeasure[]{new CosineDistanceMeasure(),
+        new EuclideanDistanceMeasure()}) {
+      List<Vector> reference = sparseData(random, 2000);
+      BruteSearch brute = new BruteSearch(measure);
+      brute.addAll(reference);
+      InvertedIndexSearch index = new InvertedIndexSearch(measure);
+      index.addAll(reference);
+
+      // the queries include one that shares no dimension with anything
+      List<Vector> queries = sparseData(random, 50);
+      Vector disjoint = new RandomAccessSparseVector(100000);
+      disjoint.set(99999, 1);
+      queries.add(disjoint);
+      for (Vector query : queries) {
+        List<WeightedThing<Vector>> r0 = brute.search(query, 10);
+        List<WeightedThing<Vector>> r1 = index.search(query, 10);
+        assertEquals(r0.size(), r1.size());
+        for (int i = 0; i < r0.size(); i++) {
+          assertEquals(r0.get(i).getWeight(), r1.get(i).getWeight(), 1e-10);
+          assertEquals(measure.distance(query, r1.get(i).getValue()), r1.get(i).getWeight(),
+              1e-10);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveAndRebuild() {
+    Random random = new Random(2);
+    List<Vector> reference = sparseData(random, 1000);
+    InvertedIndexSearch index = new InvertedIndexSearch(new CosineDistanceMeasure());
+    index.addAll(reference);
+    // enough removals to rebuild the index more than once
+    List<Vector> remaining = Lists.newArrayList(reference);
+    for (int i = 0; i < 600; i++) {
+      Vector v = remaining.remove(random.nextInt(remaining.size()));
+      assertTrue(index.remove(v, 1e-7));
+    }
+    assertEquals(remaining.size(), index.size());
+
+    BruteSearch brute = new BruteSearch(new CosineDistanceMeasure());
+    brute.addAll(remaining);
+    for (Vector query : sparseData(random, 20)) {
+      List<WeightedThing<Vector>> r0 = brute.search(query, 5);
+      List<WeightedThing<Vector>> r1 = index.search(query, 5);
+      for (int i = 0; i < r0.size(); i++) {
+        assertEquals(r0.get(i).getWeight(), r1.get(i).getWeight(), 1e-10);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedMeasure() {
+    new InvertedIndexSearch(new ManhattanDistanceMeasure());
+  }
+}
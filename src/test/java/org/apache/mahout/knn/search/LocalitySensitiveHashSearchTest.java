@@ -61,6 +61,44 @@ public class LocalitySensitiveHashSearchTest {
     }
   }
 
+  @Test
+  public void testHashTables() {
+    Matrix testData = new DenseMatrix(20000, 10);
+    testData.assign(new Normal());
+
+    final EuclideanDistanceMeasure distance = new EuclideanDistanceMeasure();
+    BruteSearch ref = new BruteSearch(distance);
+    ref.addAllMatrixSlicesAsWeightedVectors(testData);
+
+    LocalitySensitiveHashSearch cut = new LocalitySensitiveHashSearch(distance, 10);
+    cut.addAllMatrixSlicesAsWeightedVectors(testData);
+    cut.setSearchSize(200);
+    cut.setHashTables(16, 12);
+    Assert.assertEquals(16, cut.getNumHashTables());
+    Assert.assertEquals(12, cut.getKeyBits());
+
+    // most of the true neighbors are in the buckets searched
+    OnlineSummarizer t1 = evaluateStrategy(testData, ref, cut);
+    Assert.assertTrue(t1.getQuartile(2) > 70);
+
+    // the tables follow the vectors removed and added
+    for (int i = 0; i < 100; i++) {
+      Vector v = testData.viewRow(i);
+      Assert.assertEquals(0, cut.search(v, 1).get(0).getWeight(), 1e-10);
+      Assert.assertTrue(cut.remove(v, 1e-7));
+      Assert.assertTrue(cut.search(v, 1).get(0).getWeight() > 0);
+    }
+    Assert.assertEquals(19900, cut.size());
+    cut.setHashTables(8, 10);
+    for (int i = 0; i < 100; i++) {
+      cut.add(new WeightedVector(testData.viewRow(i), 1, i));
+    }
+    for (int i = 0; i < 200; i++) {
+      Vector v = testData.viewRow(i);
+      Assert.assertEquals(0, cut.search(v, 1).get(0).getWeight(), 1e-10);
+    }
+  }
+
   private OnlineSummarizer evaluateStrategy(Matrix testData, BruteSearch ref,
                                             LocalitySensitiveHashSearch cut) {
     OnlineSummarizer t1 = new OnlineSummarizer();
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.ChebyshevDistanceMeasure;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.WeightedVector;
+import org.apache.mahout.math.random.WeightedThing;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PackedBruteSearchTest extends BruteSearchTest {
+  @Override
+  public UpdatableSearcher getSearch(int n) {
+    return new BruteSearch(new EuclideanDistanceMeasure(), true);
+  }
+
+  @Test
+  public void testSameAsUnpacked() {
+    checkSameAsUnpacked(new EuclideanDistanceMeasure());
+  }
+
+  @Test
+  public void testManhattanSameAsUnpacked() {
+    checkSameAsUnpacked(new ManhattanDistanceMeasure());
+  }
+
+  @Test
+  public void testCosineSameAsUnpacked() {
+    checkSameAsUnpacked(new CosineDistanceMeasure());
+  }
+
+  private void checkSameAsUnpacked(DistanceMeasure distanceMeasure) {
+    List<Vector> data = Lists.newArrayList();
+    for (MatrixSlice row : testData()) {
+      data.add(row.vector());
+    }
+    BruteSearch reference = new BruteSearch(distanceMeasure, false);
+    reference.addAll(data);
+    BruteSearch packed = new BruteSearch(distanceMeasure, true);
+    packed.addAll(data);
+
+    for (MatrixSlice query : randomData()) {
+      List<WeightedThing<Vector>> r0 = reference.search(query.vector(), 10);
+      List<WeightedThing<Vector>> r1 = packed.search(query.vector(), 10);
+      assertEquals(r0.size(), r1.size());
+      for (int i = 0; i < r0.size(); i++) {
+        assertSame("Packed search must return the original vectors",
+            r0.get(i).getValue(), r1.get(i).getValue());
+        assertEquals(r0.get(i).getWeight(), r1.get(i).getWeight(), 1e-10);
+      }
+    }
+  }
+
+  @Test
+  public void testBatchSameAsSingle() {
+    BruteSearch packed = new BruteSearch(new EuclideanDistanceMeasure(), true);
+    packed.addAllMatrixSlices(testData());
+    // Some exact matches and some random queries, more than one block of each.
+    List<WeightedVector> queries = Lists.newArrayList();
+    for (MatrixSlice row : Iterables.limit(testData(), 50)) {
+      queries.add(new WeightedVector(row.vector(), 1, row.index()));
+    }
+    for (MatrixSlice row : Iterables.limit(randomData(), 50)) {
+      queries.add(new WeightedVector(row.vector(), 1, row.index() + 50));
+    }
+
+    List<List<WeightedThing<Vector>>> batch = packed.search(queries, 25, 2);
+    assertEquals(queries.size(), batch.size());
+    for (int i = 0; i < queries.size(); i++) {
+      List<WeightedThing<Vector>> single = packed.search(queries.get(i), 25);
+      List<WeightedThing<Vector>> r = batch.get(i);
+      assertEquals(single.size(), r.size());
+      for (int j = 0; j < single.size(); j++) {
+        assertSame(single.get(j).getValue(), r.get(j).getValue());
+        assertEquals(single.get(j).getWeight(), r.get(j).getWeight(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testUnpackedByDefault() {
+    // Without packing, a dense vector changed in place is compared as it is now.
+    BruteSearch searcher = new BruteSearch(new EuclideanDistanceMeasure());
+    List<Vector> data = Lists.newArrayList();
+    for (MatrixSlice row : testData()) {
+      data.add(row.vector().clone());
+    }
+    searcher.addAll(data);
+    Vector v = data.get(10);
+    v.assign(data.get(20));
+    assertEquals(0, searcher.search(data.get(20), 2).get(1).getWeight(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedMeasure() {
+    new BruteSearch(new ChebyshevDistanceMeasure(), true);
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.Normal;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectionBasisTest {
+  @Test
+  public void testSameAsDotProducts() {
+    // more dimensions than a tile so that the blocks are multiplied a tile at a time
+    checkSameAsDotProducts(ProjectionSearch.generateBasis(300, 7));
+  }
+
+  @Test
+  public void testSparseBasis() {
+    List<Vector> basisVectors = ProjectionSearch.generateSparseBasis(300, 7);
+    for (Vector basisVector : basisVectors) {
+      assertEquals(1, basisVector.norm(2), 1e-10);
+      // about sqrt(300) non-zero values, all of the same magnitude
+      assertTrue(basisVector.getNumNondefaultElements() < 60);
+      double magnitude = basisVector.norm(Double.POSITIVE_INFINITY);
+      assertEquals(magnitude * basisVector.getNumNondefaultElements(), basisVector.norm(1), 1e-10);
+    }
+    checkSameAsDotProducts(basisVectors);
+  }
+
+  private void checkSameAsDotProducts(List<Vector> basisVectors) {
+    Random gen = RandomUtils.getRandom();
+    int numDimensions = basisVectors.get(0).size();
+    ProjectionBasis basis = new ProjectionBasis(basisVectors, false);
+
+    // dense and sparse vectors mixed, more than a block of them
+    List<Vector> vectors = Lists.newArrayList();
+    for (int k = 0; k < 100; k++) {
+      Vector v;
+      if (k % 3 == 0) {
+        v = new RandomAccessSparseVector(numDimensions);
+        for (int j = 0; j < 10; j++) {
+          v.set(gen.nextInt(numDimensions), gen.nextGaussian());
+        }
+      } else {
+        v = new DenseVector(numDimensions);
+        for (int j = 0; j < numDimensions; j++) {
+          v.set(j, gen.nextGaussian());
+        }
+      }
+      vectors.add(v);
+    }
+
+    double[] block = new double[1 + vectors.size() * 7];
+    basis.project(vectors, 0, vectors.size(), block, 1);
+    double[] single = new double[7];
+    for (int k = 0; k < vectors.size(); k++) {
+      Vector v = vectors.get(k);
+      basis.project(v, single, 0);
+      for (int i = 0; i < 7; i++) {
+        assertEquals(basisVectors.get(i).dot(v), single[i], 1e-10);
+        // the projections have to be exactly the same either way for removals to find them
+        assertEquals(single[i], block[1 + k * 7 + i], 0);
+      }
+    }
+  }
+
+  @Test
+  public void testSparseSearchers() {
+    EuclideanDistanceMeasure measure = new EuclideanDistanceMeasure();
+    List<Vector> data = Lists.newArrayList();
+    for (int k = 0; k < 1000; k++) {
+      data.add(new DenseVector(100).assign(new Normal()));
+    }
+    List<UpdatableSearcher> searchers = Lists.<UpdatableSearcher>newArrayList(
+        new ProjectionSearch(measure, 4, 20, ProjectionType.SPARSE),
+        new FastProjectionSearch(measure, 4, 20, null, ProjectionType.SPARSE),
+        new LocalitySensitiveHashSearch(measure, 20, ProjectionType.SPARSE));
+    for (UpdatableSearcher searcher : searchers) {
+      searcher.addAll(data);
+      for (int k = 0; k < data.size(); k += 10) {
+        assertSame(data.get(k), searcher.search(data.get(k), 1).get(0).getValue());
+      }
+      assertTrue(searcher.remove(data.get(0), 1e-7));
+      assertEquals(data.size() - 1, searcher.size());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrongDimension() {
+    ProjectionBasis basis = ProjectionBasis.generate(ProjectionType.DENSE, 10, 3);
+    basis.project(new DenseVector(11), new double[3], 0);
+  }
+}
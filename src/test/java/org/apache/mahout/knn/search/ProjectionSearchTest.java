@@ -37,6 +37,20 @@ public class ProjectionSearchTest extends FastProjectionSearchTest {
     private static final int SEARCH_SIZE = 300;
     private static final int MAX_DEPTH = 100;
 
+    @Test
+    public void testBasis() {
+        for (int numProjections : new int[]{1, 4, 10, 12}) {
+            List<Vector> basis = ProjectionSearch.generateBasis(10, numProjections);
+            Assert.assertEquals(numProjections, basis.size());
+            for (int i = 0; i < numProjections; i++) {
+                Assert.assertEquals(1, basis.get(i).getLengthSquared(), 1e-10);
+                for (int j = 0; j < i && ProjectionSearch.isOrthonormal(10, numProjections); j++) {
+                    Assert.assertEquals(0, basis.get(i).dot(basis.get(j)), 1e-10);
+                }
+            }
+        }
+    }
+
     @Override
     public UpdatableSearcher getSearch(int n) {
         return new ProjectionSearch(new EuclideanDistanceMeasure(), 4, 20);
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.WeightedThing;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizedBruteSearchTest extends BruteSearchTest {
+  @Override
+  public UpdatableSearcher getSearch(int n) {
+    return new BruteSearch(new EuclideanDistanceMeasure(), false, QuantizedRows.Encoding.INT8);
+  }
+
+  @Test
+  public void testRecall() {
+    List<Vector> data = Lists.newArrayList();
+    for (MatrixSlice row : testData()) {
+      data.add(row.vector());
+    }
+    BruteSearch exact = new BruteSearch(new EuclideanDistanceMeasure());
+    exact.addAll(data);
+
+    for (QuantizedRows.Encoding encoding : QuantizedRows.Encoding.values()) {
+      BruteSearch quantized = new BruteSearch(new EuclideanDistanceMeasure(), true, encoding);
+      quantized.addAll(data);
+
+      int found = 0;
+      int total = 0;
+      for (MatrixSlice query : randomData()) {
+        List<WeightedThing<Vector>> r0 = exact.search(query.vector(), 10);
+        List<WeightedThing<Vector>> r1 = quantized.search(query.vector(), 10);
+        assertEquals(r0.size(), r1.size());
+        for (WeightedThing<Vector> result : r1) {
+          // whatever is returned has its exact distance
+          assertEquals(new EuclideanDistanceMeasure().distance(query.vector(), result.getValue()),
+              result.getWeight(), 1e-10);
+        }
+        for (int i = 0; i < r0.size(); i++) {
+          for (WeightedThing<Vector> result : r1) {
+            if (result.getValue() == r0.get(i).getValue()) {
+              found++;
+              break;
+            }
+          }
+          total++;
+        }
+      }
+      assertTrue(encoding + " recall " + (double) found / total, found > 0.95 * total);
+    }
+  }
+}
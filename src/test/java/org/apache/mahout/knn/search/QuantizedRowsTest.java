@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.Normal;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizedRowsTest {
+  @Test
+  public void testHalf() {
+    for (float x : new float[]{0, 1, -2, 0.5f, 65504, 1e-5f, 6e-8f}) {
+      // relative precision of 11 bits for normal halves, absolute precision of 2^-24 below that
+      assertEquals(x, QuantizedRows.fromHalf(QuantizedRows.toHalf(x)),
+          Math.max(Math.abs(x) / 1024, 0x1p-25));
+    }
+    assertEquals(Float.POSITIVE_INFINITY, QuantizedRows.fromHalf(QuantizedRows.toHalf(1e6f)), 0);
+    assertTrue(Float.isNaN(QuantizedRows.fromHalf(QuantizedRows.toHalf(Float.NaN))));
+    // 1 + 2^-11 is half way between two halves and 1 + 3 * 2^-12 is nearer the upper one
+    assertEquals(1 + 0x1p-10f, QuantizedRows.fromHalf(QuantizedRows.toHalf(1 + 3 * 0x1p-12f)), 0);
+  }
+
+  @Test
+  public void testApproximateDistance() {
+    List<Vector> data = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      data.add(new DenseVector(20).assign(new Normal()));
+    }
+    for (QuantizedRows.Encoding encoding : QuantizedRows.Encoding.values()) {
+      QuantizedRows rows = new QuantizedRows(20, encoding, BoundedDistance.SQUARED_EUCLIDEAN);
+      rows.add(data.get(0));
+      assertTrue(rows.needsCalibration());
+      rows.rebuild(data);
+      assertFalse(rows.needsCalibration());
+      assertEquals(100, rows.size());
+
+      Vector query = new DenseVector(20).assign(new Normal());
+      QuantizedRows.Query prepared = rows.prepare(query, new QuantizedRows.Query());
+      for (int i = 0; i < data.size(); i++) {
+        double exact = new SquaredEuclideanDistanceMeasure().distance(query, data.get(i));
+        assertEquals(exact, rows.distance(i, prepared), 0.05 * exact);
+      }
+
+      // the last row takes the place of the one removed
+      rows.swapRemove(0);
+      assertEquals(99, rows.size());
+      assertEquals(new SquaredEuclideanDistanceMeasure().distance(query, data.get(99)),
+          rows.distance(0, prepared), 0.05 * rows.distance(0, prepared));
+
+      rows.add(data.get(0).times(100));
+      assertTrue(rows.needsCalibration());
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.knn.search;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.random.Normal;
+import org.apache.mahout.math.random.WeightedThing;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearcherTunerTest {
+  private static List<Vector> randomVectors(int n) {
+    List<Vector> r = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      r.add(new DenseVector(10).assign(new Normal()));
+    }
+    return r;
+  }
+
+  @Test
+  public void testTargetReached() {
+    EuclideanDistanceMeasure measure = new EuclideanDistanceMeasure();
+    List<Vector> data = randomVectors(5000);
+    List<Vector> queries = randomVectors(50);
+    SearcherTuner tuner = new SearcherTuner(measure, data, queries, 10);
+    SearcherTuner.Result result = tuner.tune(SearcherTuner.fastProjectionSearch(2, 4), 0.9);
+
+    assertTrue(result.isTargetReached());
+    SearcherTuner.Point best = result.getBest();
+    assertTrue(best.getRecall() >= 0.9);
+    FastProjectionSearch searcher = (FastProjectionSearch) result.getSearcher();
+    assertEquals(best.getSearchSize(), searcher.getSearchSize());
+    assertEquals(data.size(), searcher.size());
+
+    // the curve goes from the cheapest configuration up, and none that reached the target is
+    // cheaper than the one picked
+    List<SearcherTuner.Point> curve = result.getCurve();
+    assertTrue(curve.contains(best));
+    for (int i = 0; i < curve.size(); i++) {
+      SearcherTuner.Point point = curve.get(i);
+      assertTrue(i == 0 || curve.get(i - 1).getCost() <= point.getCost());
+      assertTrue(point.getRecall() < 0.9 || point.getCost() >= best.getCost());
+    }
+
+    // the searcher as returned gets the recall that was measured
+    BruteSearch brute = new BruteSearch(measure);
+    brute.addAll(data);
+    int hits = 0;
+    for (Vector query : queries) {
+      double kth = brute.search(query, 10).get(9).getWeight();
+      for (WeightedThing<Vector> r : searcher.search(query, 10)) {
+        if (measure.distance(query, r.getValue()) <= kth + 1e-9) {
+          hits++;
+        }
+      }
+    }
+    assertEquals(best.getRecall(), hits / 500.0, 1e-9);
+  }
+
+  @Test
+  public void testTargetMissed() {
+    List<Vector> data = randomVectors(2000);
+    SearcherTuner tuner = new SearcherTuner(new EuclideanDistanceMeasure(), data,
+        randomVectors(20), 10);
+    // with tiny search sizes, the locality sensitive hash can't find all the neighbors
+    tuner.setMaxSearchSize(10);
+    SearcherTuner.Result result = tuner.tune(SearcherTuner.localitySensitiveHashSearch(-1, 0.9), 1);
+    assertFalse(result.isTargetReached());
+    for (SearcherTuner.Point point : result.getCurve()) {
+      assertTrue(point.getRecall() <= result.getBest().getRecall());
+    }
+    assertEquals(data.size(), result.getSearcher().size());
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.knn.search;
+
+import org.apache.mahout.common.RandomUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopKHeapTest {
+  @Test
+  public void testBestKept() {
+    Random gen = RandomUtils.getRandom();
+    TopKHeap heap = new TopKHeap(0);
+    for (int limit : new int[]{1, 2, 7, 50, 1000}) {
+      double[] distances = new double[500];
+      for (int i = 0; i < distances.length; i++) {
+        distances[i] = gen.nextDouble();
+      }
+
+      // the same heap is reused with different limits
+      heap.reset(limit);
+      for (int i = 0; i < distances.length; i++) {
+        heap.offer(i, distances[i]);
+      }
+      heap.sort();
+
+      double[] sorted = distances.clone();
+      Arrays.sort(sorted);
+      assertEquals(Math.min(limit, distances.length), heap.size());
+      for (int i = 0; i < heap.size(); i++) {
+        assertEquals(sorted[i], heap.distance(i), 0);
+        assertEquals(distances[heap.id(i)], heap.distance(i), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testThreshold() {
+    TopKHeap heap = new TopKHeap(2);
+    assertEquals(Double.POSITIVE_INFINITY, heap.threshold(), 0);
+    assertTrue(heap.offer(0, 3));
+    assertTrue(heap.offer(1, 1));
+    assertEquals(3, heap.threshold(), 0);
+    assertFalse(heap.offer(2, 3));
+    assertTrue(heap.offer(3, 2));
+    assertEquals(2, heap.threshold(), 0);
+
+    TopKHeap other = new TopKHeap(2);
+    other.offer(4, 0.5);
+    heap.addAll(other);
+    heap.sort();
+    assertEquals(4, heap.id(0));
+    assertEquals(1, heap.id(1));
+  }
+}